@@ -19,6 +19,7 @@ package sonia.scm.mail.api;
 import jakarta.xml.bind.annotation.XmlAccessType;
 import jakarta.xml.bind.annotation.XmlAccessorType;
 import jakarta.xml.bind.annotation.XmlElement;
+import jakarta.xml.bind.annotation.XmlElementWrapper;
 import jakarta.xml.bind.annotation.XmlRootElement;
 import jakarta.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 import lombok.Setter;
@@ -27,6 +28,9 @@ import sonia.scm.util.Util;
 import sonia.scm.util.ValidationUtil;
 import sonia.scm.xml.XmlCipherStringAdapter;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * Configuration for the {@link MailService}.
@@ -38,6 +42,9 @@ import sonia.scm.xml.XmlCipherStringAdapter;
 @Setter
 public class MailConfiguration implements Validateable {
 
+  public static final int DEFAULT_ASYNC_POOL_SIZE = 4;
+  public static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 30_000;
+
   /**
    * default from address
    */
@@ -86,6 +93,122 @@ public class MailConfiguration implements Validateable {
    */
   private String language;
 
+  /**
+   * additional smtp servers, which share the load with the configured host
+   */
+  @XmlElementWrapper(name = "relays")
+  @XmlElement(name = "relay")
+  private List<MailRelay> relays = new ArrayList<>();
+
+  /**
+   * delivery settings for specific recipient domains
+   */
+  @XmlElementWrapper(name = "domain-policies")
+  @XmlElement(name = "domain-policy")
+  private List<MailDomainPolicy> domainPolicies = new ArrayList<>();
+
+  /**
+   * number of threads used for asynchronous delivery
+   */
+  @XmlElement(name = "async-pool-size")
+  private int asyncPoolSize = DEFAULT_ASYNC_POOL_SIZE;
+
+  /**
+   * maximum number of mails queued for asynchronous delivery, 0 disables the limit
+   */
+  @XmlElement(name = "dispatch-queue-capacity")
+  private int dispatchQueueCapacity = 1000;
+
+  /**
+   * maximum size in bytes of all mails queued for asynchronous delivery, 0 disables the limit
+   */
+  @XmlElement(name = "dispatch-queue-max-bytes")
+  private long dispatchQueueMaxBytes = 64L * 1024 * 1024;
+
+  /**
+   * what happens with mails sent asynchronously, if the dispatch queue is full
+   */
+  @XmlElement(name = "dispatch-overflow-policy")
+  private MailOverflowPolicy dispatchOverflowPolicy = MailOverflowPolicy.SPILL_TO_OUTBOX;
+
+  /**
+   * time in milliseconds to wait for running deliveries on shutdown
+   */
+  @XmlElement(name = "shutdown-timeout-millis")
+  private long shutdownTimeoutMillis = DEFAULT_SHUTDOWN_TIMEOUT_MILLIS;
+
+  /**
+   * number of concurrent smtp connections used to deliver a batch of mails
+   */
+  @XmlElement(name = "parallel-connections")
+  private int parallelConnections = 1;
+
+  /**
+   * maximum number of delivery attempts for a mail, if the smtp server reports a transient failure
+   */
+  @XmlElement(name = "retry-max-attempts")
+  private int retryMaxAttempts = 3;
+
+  /**
+   * delay in milliseconds before the first retry, the delay is doubled for every further retry
+   */
+  @XmlElement(name = "retry-backoff-millis")
+  private long retryBackoffMillis = 1000;
+
+  /**
+   * number of consecutive connection failures after which the circuit breaker of a relay opens, 0 disables it
+   */
+  @XmlElement(name = "circuit-breaker-threshold")
+  private int circuitBreakerThreshold = 5;
+
+  /**
+   * time in milliseconds an open circuit breaker rejects mails before a probe is sent to the relay
+   */
+  @XmlElement(name = "circuit-breaker-open-millis")
+  private long circuitBreakerOpenMillis = 60_000;
+
+  /**
+   * maximum number of mails per second delivered to a single relay, 0 disables the limit
+   */
+  @XmlElement(name = "rate-limit-per-second")
+  private int rateLimitPerSecond;
+
+  /**
+   * number of mails which may be delivered to a single relay at once, before the rate limit applies
+   */
+  @XmlElement(name = "rate-limit-burst")
+  private int rateLimitBurst = 10;
+
+  /**
+   * maximum number of mails delivered to a single relay at the same time, 0 disables the limit
+   */
+  @XmlElement(name = "max-concurrent-deliveries-per-relay")
+  private int maxConcurrentDeliveriesPerRelay;
+
+  /**
+   * true if recipients which receive the same content are addressed as bcc of a single mail
+   */
+  @XmlElement(name = "coalesce-recipients")
+  private boolean coalesceRecipients;
+
+  /**
+   * maximum number of recipients of a single mail, if recipients are coalesced
+   */
+  @XmlElement(name = "max-recipients-per-mail")
+  private int maxRecipientsPerMail = 50;
+
+  /**
+   * time in milliseconds during which a mail with the same idempotency key is dropped, 0 disables the check
+   */
+  @XmlElement(name = "idempotency-ttl-millis")
+  private long idempotencyTtlMillis = 600_000;
+
+  /**
+   * directory to which mails are written, if the transport strategy is {@link ScmTransportStrategy#PICKUP_DIRECTORY}
+   */
+  @XmlElement(name = "pickup-directory")
+  private String pickupDirectory;
+
   /**
    * Constructs a new MailConfiguration.
    * This constructor should only be use from JAXB.
@@ -208,10 +331,195 @@ public class MailConfiguration implements Validateable {
    */
   @Override
   public boolean isValid() {
-    return Util.isNotEmpty(host) && Util.isNotEmpty(from) && (port > 0) && ValidationUtil.isMailAddressValid(from);
+    return isTransportValid() && Util.isNotEmpty(from) && ValidationUtil.isMailAddressValid(from);
+  }
+
+  private boolean isTransportValid() {
+    if (transportStrategy == ScmTransportStrategy.PICKUP_DIRECTORY) {
+      return Util.isNotEmpty(pickupDirectory);
+    }
+    if (transportStrategy == ScmTransportStrategy.SENDMAIL) {
+      return true;
+    }
+    return Util.isNotEmpty(host) && (port > 0);
   }
 
   public String getLanguage() {
     return language;
   }
+
+  /**
+   * Returns the additional smtp servers, which share the load with the configured host.
+   *
+   * @return additional smtp servers
+   */
+  public List<MailRelay> getRelays() {
+    return relays;
+  }
+
+  /**
+   * Returns the delivery settings for specific recipient domains.
+   *
+   * @return domain policies
+   */
+  public List<MailDomainPolicy> getDomainPolicies() {
+    return domainPolicies;
+  }
+
+  /**
+   * Returns the number of threads used for asynchronous delivery.
+   *
+   * @return number of threads used for asynchronous delivery
+   */
+  public int getAsyncPoolSize() {
+    return asyncPoolSize;
+  }
+
+  /**
+   * Returns the maximum number of mails queued for asynchronous delivery. A value of 0 disables the limit.
+   *
+   * @return maximum number of queued mails
+   */
+  public int getDispatchQueueCapacity() {
+    return dispatchQueueCapacity;
+  }
+
+  /**
+   * Returns the maximum size in bytes of all mails queued for asynchronous delivery. A value of 0 disables the limit.
+   *
+   * @return maximum size of queued mails in bytes
+   */
+  public long getDispatchQueueMaxBytes() {
+    return dispatchQueueMaxBytes;
+  }
+
+  /**
+   * Returns what happens with mails sent asynchronously, if the dispatch queue is full.
+   *
+   * @return overflow policy of the dispatch queue
+   */
+  public MailOverflowPolicy getDispatchOverflowPolicy() {
+    return dispatchOverflowPolicy;
+  }
+
+  /**
+   * Returns the time in milliseconds to wait for running deliveries on shutdown. Mails which are not delivered in time
+   * are delivered after the next start.
+   *
+   * @return shutdown timeout in milliseconds
+   */
+  public long getShutdownTimeoutMillis() {
+    return shutdownTimeoutMillis;
+  }
+
+  /**
+   * Returns the number of concurrent smtp connections used to deliver a batch of mails.
+   *
+   * @return number of concurrent smtp connections
+   */
+  public int getParallelConnections() {
+    return parallelConnections;
+  }
+
+  /**
+   * Returns the maximum number of delivery attempts for a mail, if the smtp server reports a transient failure.
+   *
+   * @return maximum number of delivery attempts
+   */
+  public int getRetryMaxAttempts() {
+    return retryMaxAttempts;
+  }
+
+  /**
+   * Returns the delay in milliseconds before the first retry. The delay is doubled for every further retry.
+   *
+   * @return delay in milliseconds before the first retry
+   */
+  public long getRetryBackoffMillis() {
+    return retryBackoffMillis;
+  }
+
+  /**
+   * Returns the number of consecutive connection failures after which the circuit breaker of a relay opens.
+   * A value of 0 disables the circuit breaker.
+   *
+   * @return number of consecutive failures
+   */
+  public int getCircuitBreakerThreshold() {
+    return circuitBreakerThreshold;
+  }
+
+  /**
+   * Returns the time in milliseconds an open circuit breaker rejects mails, before a probe is sent to the relay.
+   *
+   * @return time in milliseconds
+   */
+  public long getCircuitBreakerOpenMillis() {
+    return circuitBreakerOpenMillis;
+  }
+
+  /**
+   * Returns the maximum number of mails per second delivered to a single relay. A value of 0 disables the limit.
+   *
+   * @return maximum number of mails per second
+   */
+  public int getRateLimitPerSecond() {
+    return rateLimitPerSecond;
+  }
+
+  /**
+   * Returns the number of mails which may be delivered to a single relay at once, before the rate limit applies.
+   *
+   * @return number of mails
+   */
+  public int getRateLimitBurst() {
+    return rateLimitBurst;
+  }
+
+  /**
+   * Returns the maximum number of mails delivered to a single relay at the same time. A value of 0 disables the limit.
+   *
+   * @return maximum number of concurrent deliveries
+   */
+  public int getMaxConcurrentDeliveriesPerRelay() {
+    return maxConcurrentDeliveriesPerRelay;
+  }
+
+  /**
+   * Returns true if recipients which receive the same content are addressed as bcc of a single mail, instead of
+   * sending a separate mail to each of them.
+   *
+   * @return true if recipients are coalesced
+   */
+  public boolean isCoalesceRecipients() {
+    return coalesceRecipients;
+  }
+
+  /**
+   * Returns the maximum number of recipients of a single mail, if recipients are coalesced.
+   *
+   * @return maximum number of recipients
+   */
+  public int getMaxRecipientsPerMail() {
+    return maxRecipientsPerMail;
+  }
+
+  /**
+   * Returns the time in milliseconds during which a further mail with the same idempotency key is dropped.
+   *
+   * @return time to live of idempotency keys in milliseconds
+   */
+  public long getIdempotencyTtlMillis() {
+    return idempotencyTtlMillis;
+  }
+
+  /**
+   * Returns the directory to which mails are written, if the transport strategy is
+   * {@link ScmTransportStrategy#PICKUP_DIRECTORY}.
+   *
+   * @return pickup directory
+   */
+  public String getPickupDirectory() {
+    return pickupDirectory;
+  }
 }
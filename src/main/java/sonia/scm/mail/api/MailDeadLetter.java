@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.api;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Mail which could not be delivered and is waiting in the dead-letter store to be replayed or purged.
+ */
+@Getter
+@AllArgsConstructor
+public class MailDeadLetter {
+
+  /**
+   * id of the mail in the dead-letter store
+   */
+  private final String id;
+
+  /**
+   * subject of the mail
+   */
+  private final String subject;
+
+  /**
+   * addresses of all recipients
+   */
+  private final List<String> recipients;
+
+  /**
+   * priority which was used for the delivery
+   */
+  private final MailPriority priority;
+
+  /**
+   * number of delivery attempts
+   */
+  private final int attempts;
+
+  /**
+   * smtp relay of the last attempt, or {@code null} if it is unknown
+   */
+  private final String relay;
+
+  /**
+   * reason of the last failure
+   */
+  private final String reason;
+
+  /**
+   * time of the last failure
+   */
+  private final Instant failedAt;
+}
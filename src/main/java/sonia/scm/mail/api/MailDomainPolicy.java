@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.api;
+
+import jakarta.xml.bind.annotation.XmlAccessType;
+import jakarta.xml.bind.annotation.XmlAccessorType;
+import jakarta.xml.bind.annotation.XmlRootElement;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import sonia.scm.util.Util;
+
+import java.util.Locale;
+
+/**
+ * Delivery settings for mails to a recipient domain. Mails to the domain are delivered separately from the other
+ * mails of a batch, so that a slow domain does not delay the delivery to other domains. Optionally the mails are
+ * routed to a dedicated smtp server, which uses the credentials and the transport strategy of the
+ * {@link MailConfiguration}.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@XmlRootElement(name = "domain-policy")
+@XmlAccessorType(value = XmlAccessType.FIELD)
+public class MailDomainPolicy {
+
+  /**
+   * recipient domain, the policy applies to subdomains as well
+   */
+  private String domain;
+
+  /**
+   * hostname of the smtp server mails to the domain are routed to, empty to use the configured servers
+   */
+  private String relayHost;
+
+  /**
+   * port of the smtp server mails to the domain are routed to
+   */
+  private int relayPort;
+
+  /**
+   * maximum number of mails delivered to the domain at the same time, 0 disables the limit
+   */
+  private int maxConcurrentDeliveries;
+
+  /**
+   * maximum number of mails per second delivered to the domain, 0 disables the limit
+   */
+  private int rateLimitPerSecond;
+
+  /**
+   * Returns {@code true} if the domain is set.
+   *
+   * @return {@code true} if the policy is valid
+   */
+  public boolean isValid() {
+    return Util.isNotEmpty(domain);
+  }
+
+  /**
+   * Returns {@code true} if the given recipient domain is the domain of the policy or one of its subdomains.
+   *
+   * @param recipientDomain domain of a recipient address
+   * @return {@code true} if the policy applies to the recipient domain
+   */
+  public boolean matches(String recipientDomain) {
+    if (!isValid() || recipientDomain == null) {
+      return false;
+    }
+    String normalized = recipientDomain.toLowerCase(Locale.ENGLISH);
+    String policyDomain = domain.toLowerCase(Locale.ENGLISH);
+    return normalized.equals(policyDomain) || normalized.endsWith("." + policyDomain);
+  }
+
+  /**
+   * Returns the smtp server the mails are routed to or {@code null} if the configured servers are used.
+   *
+   * @return dedicated smtp server or {@code null}
+   */
+  public MailRelay createRelay() {
+    MailRelay relay = new MailRelay(relayHost, relayPort, 1);
+    return relay.isValid() ? relay : null;
+  }
+}
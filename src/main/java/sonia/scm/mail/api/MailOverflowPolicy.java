@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.api;
+
+/**
+ * Decides what happens with mails sent asynchronously, if the dispatch queue is full.
+ */
+public enum MailOverflowPolicy {
+  /**
+   * The caller waits until enough mails of the queue are delivered.
+   */
+  BLOCK,
+  /**
+   * The mails are only written to the outbox and are delivered as soon as the queue has room again.
+   */
+  SPILL_TO_OUTBOX,
+  /**
+   * Mails with {@link MailPriority#BULK} are dropped, all other mails are spilled to the outbox.
+   */
+  DROP_BULK
+}
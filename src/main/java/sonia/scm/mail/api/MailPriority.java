@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.api;
+
+/**
+ * Priority of mails. Mails of each priority are delivered by their own workers, so that a large amount of mails with
+ * a low priority does not delay mails with a higher priority.
+ */
+public enum MailPriority {
+
+  /**
+   * Alerts which must be delivered as fast as possible, e.g. for failed health checks. Critical mails use their own
+   * smtp connections and are not delayed by the rate limit.
+   */
+  CRITICAL,
+
+  /**
+   * Default priority for mails.
+   */
+  NORMAL,
+
+  /**
+   * Mass notifications, which may be delivered with a delay.
+   */
+  BULK
+}
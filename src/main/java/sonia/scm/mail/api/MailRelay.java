@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.api;
+
+import jakarta.xml.bind.annotation.XmlAccessType;
+import jakarta.xml.bind.annotation.XmlAccessorType;
+import jakarta.xml.bind.annotation.XmlRootElement;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import sonia.scm.util.Util;
+
+/**
+ * Additional smtp server, which shares the load with the server of the {@link MailConfiguration}. Credentials and
+ * transport strategy are taken from the {@link MailConfiguration}.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@XmlRootElement(name = "relay")
+@XmlAccessorType(value = XmlAccessType.FIELD)
+public class MailRelay {
+
+  /**
+   * hostname of the smtp server
+   */
+  private String host;
+
+  /**
+   * port of the smtp server
+   */
+  private int port;
+
+  /**
+   * share of the mails delivered by this server relative to the other servers, 0 uses the server only for failover
+   */
+  private int weight = 1;
+
+  /**
+   * Returns {@code true} if host and port are set.
+   *
+   * @return {@code true} if the relay is valid
+   */
+  public boolean isValid() {
+    return Util.isNotEmpty(host) && port > 0;
+  }
+
+  @Override
+  public String toString() {
+    return host + ":" + port;
+  }
+}
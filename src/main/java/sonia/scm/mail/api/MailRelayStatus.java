@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.api;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+
+/**
+ * State of the circuit breaker for a smtp relay.
+ */
+@Getter
+@AllArgsConstructor
+public class MailRelayStatus {
+
+  /**
+   * host and port of the relay
+   */
+  private final String relay;
+
+  /**
+   * state of the circuit breaker
+   */
+  private final CircuitState state;
+
+  /**
+   * number of consecutive connection failures
+   */
+  private final int consecutiveFailures;
+
+  /**
+   * time at which the circuit breaker was opened, or {@code null} if it is closed
+   */
+  private final Instant openedAt;
+
+  public enum CircuitState {
+    /**
+     * mails are delivered to the relay
+     */
+    CLOSED,
+    /**
+     * mails are rejected without contacting the relay
+     */
+    OPEN,
+    /**
+     * a single probe is delivered to the relay to check whether it is available again
+     */
+    HALF_OPEN
+  }
+}
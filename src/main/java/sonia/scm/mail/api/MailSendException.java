@@ -42,8 +42,23 @@ public class MailSendException extends Exception {
    * @param cause   cause of the exception
    */
   public MailSendException(String message, Email email, Throwable cause) {
+    this(message, email, cause, null, 1);
+  }
+
+  /**
+   * Constructs a new MailSendException.
+   *
+   * @param message  message message for the exception
+   * @param email    e-mail failed to send
+   * @param cause    cause of the exception
+   * @param relay    smtp relay which was used for the last attempt or {@code null}
+   * @param attempts number of delivery attempts
+   */
+  public MailSendException(String message, Email email, Throwable cause, String relay, int attempts) {
     super(message, cause);
     this.email = email;
+    this.relay = relay;
+    this.attempts = attempts;
   }
 
   //~--- get methods ----------------------------------------------------------
@@ -57,10 +72,38 @@ public class MailSendException extends Exception {
     return email;
   }
 
+  /**
+   * Returns the smtp relay which was used for the last attempt
+   *
+   * @return smtp relay or {@code null}
+   */
+  public String getRelay() {
+    return relay;
+  }
+
+  /**
+   * Returns the number of delivery attempts
+   *
+   * @return number of delivery attempts
+   */
+  public int getAttempts() {
+    return attempts;
+  }
+
   //~--- fields ---------------------------------------------------------------
 
   /**
    * e-mail failed to send
    */
   private Email email;
+
+  /**
+   * smtp relay of the last attempt
+   */
+  private String relay;
+
+  /**
+   * number of delivery attempts
+   */
+  private int attempts;
 }
@@ -21,6 +21,7 @@ package sonia.scm.mail.api;
 import org.simplejavamail.api.email.Email;
 
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Service for sending e-mails.
@@ -88,6 +89,69 @@ public interface MailService {
   void send(MailConfiguration configuration, Iterable<Email> emails)
     throws MailSendBatchException;
 
+  /**
+   * Send e-mails with the given configuration and priority. The default implementation ignores the priority.
+   *
+   * @param configuration mail configuration
+   * @param priority      priority of the e-mails
+   * @param emails        e-mails to send
+   * @throws MailSendBatchException
+   */
+  default void send(MailConfiguration configuration, MailPriority priority, Iterable<Email> emails)
+    throws MailSendBatchException {
+    send(configuration, emails);
+  }
+
+  /**
+   * Send e-mails asynchronously with the default configuration. The default implementation sends the e-mails on the
+   * calling thread.
+   *
+   * @param emails e-mails to send
+   * @return future which is completed after the delivery or completed exceptionally with a
+   * {@link MailSendBatchException}, if some of the e-mails could not be sent
+   */
+  default CompletableFuture<Void> sendAsync(Iterable<Email> emails) {
+    try {
+      send(emails);
+      return CompletableFuture.completedFuture(null);
+    } catch (MailSendBatchException ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
+  }
+
+  /**
+   * Send e-mails asynchronously with the given configuration. The default implementation sends the e-mails on the
+   * calling thread.
+   *
+   * @param configuration mail configuration
+   * @param emails        e-mails to send
+   * @return future which is completed after the delivery or completed exceptionally with a
+   * {@link MailSendBatchException}, if some of the e-mails could not be sent
+   */
+  default CompletableFuture<Void> sendAsync(MailConfiguration configuration, Iterable<Email> emails) {
+    try {
+      send(configuration, emails);
+      return CompletableFuture.completedFuture(null);
+    } catch (MailSendBatchException ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
+  }
+
+  /**
+   * Send e-mails asynchronously with the given configuration. The e-mails are queued and delivered by the workers of
+   * the given priority. The default implementation ignores the priority.
+   *
+   * @param configuration mail configuration
+   * @param priority      priority of the e-mails
+   * @param emails        e-mails to send
+   * @return future which is completed after the delivery or completed exceptionally with a
+   * {@link MailSendBatchException}, if some of the e-mails could not be sent
+   */
+  default CompletableFuture<Void> sendAsync(MailConfiguration configuration, MailPriority priority,
+                                            Iterable<Email> emails) {
+    return sendAsync(configuration, emails);
+  }
+
   //~--- get methods ----------------------------------------------------------
 
   /**
@@ -183,6 +247,30 @@ public interface MailService {
 
     EnvelopeBuilder onEntity(String entityId);
 
+    /**
+     * Sets the priority of the mails, the default is {@link MailPriority#NORMAL}. The default implementation ignores
+     * the priority.
+     *
+     * @param priority priority of the mails
+     * @return {@code this}
+     */
+    default EnvelopeBuilder withPriority(MailPriority priority) {
+      return this;
+    }
+
+    /**
+     * Sets a key which identifies the occurrence the mails are sent for, e.g. the id of an event. If mails with the
+     * same key were already sent within the configured time to live, the mails are dropped without being rendered.
+     * This prevents duplicate mails if an event is delivered more than once. The default implementation ignores the
+     * key.
+     *
+     * @param key idempotency key
+     * @return {@code this}
+     */
+    default EnvelopeBuilder withIdempotencyKey(String key) {
+      return this;
+    }
+
     /**
      * Sets the default subject for the mail and returns the next step of the builder.
      *
@@ -246,6 +334,22 @@ public interface MailService {
      */
     void send() throws MailSendBatchException;
 
+    /**
+     * Builds the emails on the calling thread and sends them asynchronously to the configured recipients. The default
+     * implementation sends the emails on the calling thread, too.
+     *
+     * @return future which is completed after the delivery or completed exceptionally with a
+     * {@link MailSendBatchException}, if some of the e-mails could not be sent
+     */
+    default CompletableFuture<Void> sendAsync() {
+      try {
+        send();
+        return CompletableFuture.completedFuture(null);
+      } catch (MailSendBatchException ex) {
+        return CompletableFuture.failedFuture(ex);
+      }
+    }
+
     void queueMails() throws MailSendBatchException;
   }
 }
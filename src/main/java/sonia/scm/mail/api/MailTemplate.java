@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.api;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A mail template, which is known before the first mail is sent.
+ *
+ * @see MailTemplateProvider
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public class MailTemplate {
+
+  private static final List<Locale> DEFAULT_LOCALES = List.of(Locale.ENGLISH, Locale.GERMAN);
+
+  private final String path;
+  private final MailTemplateType type;
+  private final Collection<Locale> locales;
+
+  /**
+   * Creates a template, which is available in english and german.
+   */
+  public MailTemplate(String path, MailTemplateType type) {
+    this(path, type, DEFAULT_LOCALES);
+  }
+
+  public MailTemplate(String path, MailTemplateType type, Collection<Locale> locales) {
+    this.path = path;
+    this.type = type;
+    this.locales = List.copyOf(locales);
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.api;
+
+import sonia.scm.plugin.ExtensionPoint;
+
+import java.util.Collection;
+
+/**
+ * Provides the mail templates of a plugin. All provided templates are resolved and rendered once with an empty model
+ * in every locale during startup, so that the first mail after a restart does not have to pay for it.
+ */
+@ExtensionPoint
+public interface MailTemplateProvider {
+  Collection<MailTemplate> templates();
+}
@@ -22,7 +22,15 @@ import org.simplejavamail.api.mailer.config.TransportStrategy;
 public enum ScmTransportStrategy {
   SMTP(TransportStrategy.SMTP),
   SMTPS(TransportStrategy.SMTPS),
-  SMTP_TLS(TransportStrategy.SMTP_TLS);
+  SMTP_TLS(TransportStrategy.SMTP_TLS),
+  /**
+   * Mails are written as eml files to a directory, from which they are picked up by a local mail transfer agent.
+   */
+  PICKUP_DIRECTORY(null),
+  /**
+   * Mails are handed to the local sendmail binary, which is started once for each batch of mails.
+   */
+  SENDMAIL(null);
 
   @Getter
   private final TransportStrategy transportStrategy;
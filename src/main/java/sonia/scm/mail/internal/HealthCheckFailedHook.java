@@ -23,12 +23,14 @@ import jakarta.inject.Inject;
 import sonia.scm.EagerSingleton;
 import sonia.scm.config.ScmConfiguration;
 import sonia.scm.mail.api.Category;
+import sonia.scm.mail.api.MailPriority;
 import sonia.scm.mail.api.MailSendBatchException;
 import sonia.scm.mail.api.MailService;
 import sonia.scm.mail.api.MailTemplateType;
 import sonia.scm.mail.api.Topic;
 import sonia.scm.plugin.Extension;
 import sonia.scm.repository.HealthCheckEvent;
+import sonia.scm.repository.HealthCheckFailure;
 import sonia.scm.repository.Repository;
 import sonia.scm.user.DisplayUser;
 import sonia.scm.user.UserDisplayManager;
@@ -41,6 +43,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static java.util.Locale.ENGLISH;
 import static java.util.Locale.GERMAN;
@@ -83,6 +86,8 @@ public class HealthCheckFailedHook {
 
       envelopeBuilder
         .onTopic(TOPIC_HEALTH_CHECK_FAILED)
+        .withPriority(MailPriority.CRITICAL)
+        .withIdempotencyKey(getIdempotencyKey(event))
         .withSubject(getMailSubject(event, ENGLISH))
         .withSubject(GERMAN, getMailSubject(event, GERMAN))
         .withTemplate(HEALTH_CHECK_FAILED_TEMPLATE_PATH, MailTemplateType.MARKDOWN_HTML)
@@ -101,6 +106,15 @@ public class HealthCheckFailedHook {
     }
   }
 
+  private String getIdempotencyKey(HealthCheckEvent event) {
+    String failures = event.getCurrentFailures()
+      .stream()
+      .map(HealthCheckFailure::getId)
+      .sorted()
+      .collect(Collectors.joining(","));
+    return "health-check-failed/" + event.getRepository().getId() + "/" + failures;
+  }
+
   private Map<String, Object> getTemplateModel(HealthCheckEvent event) {
     Map<String, Object> result = Maps.newHashMap();
     result.put("namespace", event.getRepository().getNamespace());
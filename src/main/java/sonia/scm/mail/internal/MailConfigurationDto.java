@@ -21,6 +21,8 @@ import de.otto.edison.hal.Links;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.List;
+
 
 @Getter
 @Setter
@@ -34,6 +36,25 @@ public class MailConfigurationDto extends HalRepresentation {
   private boolean fromAddressAsSender;
   private String subjectPrefix;
   private String language;
+  private List<MailRelayDto> relays;
+  private List<MailDomainPolicyDto> domainPolicies;
+  private Integer asyncPoolSize;
+  private Integer dispatchQueueCapacity;
+  private Long dispatchQueueMaxBytes;
+  private String dispatchOverflowPolicy;
+  private Long shutdownTimeoutMillis;
+  private Integer parallelConnections;
+  private Integer retryMaxAttempts;
+  private Long retryBackoffMillis;
+  private Integer circuitBreakerThreshold;
+  private Long circuitBreakerOpenMillis;
+  private Integer rateLimitPerSecond;
+  private Integer rateLimitBurst;
+  private Integer maxConcurrentDeliveriesPerRelay;
+  private Boolean coalesceRecipients;
+  private Integer maxRecipientsPerMail;
+  private Long idempotencyTtlMillis;
+  private String pickupDirectory;
 
   @Override
   @SuppressWarnings("squid:S1185") // We want to have this method available in this package
@@ -25,6 +25,10 @@ import org.mapstruct.MappingTarget;
 import sonia.scm.config.ConfigurationPermissions;
 import sonia.scm.mail.api.Category;
 import sonia.scm.mail.api.MailConfiguration;
+import sonia.scm.mail.api.MailDeadLetter;
+import sonia.scm.mail.api.MailDomainPolicy;
+import sonia.scm.mail.api.MailRelay;
+import sonia.scm.mail.api.MailRelayStatus;
 import sonia.scm.mail.api.Topic;
 import sonia.scm.mail.api.UserMailConfiguration;
 
@@ -66,6 +70,18 @@ public abstract class MailConfigurationMapper {
 
   abstract Set<TopicDto> mapTopicCollection(Set<Topic> topics);
 
+  abstract MailRelayStatusDto map(MailRelayStatus status);
+
+  abstract MailRelayDto map(MailRelay relay);
+
+  abstract MailDeadLetterDto map(MailDeadLetter deadLetter);
+
+  abstract MailRelay map(MailRelayDto dto);
+
+  abstract MailDomainPolicyDto map(MailDomainPolicy policy);
+
+  abstract MailDomainPolicy map(MailDomainPolicyDto dto);
+
   public MailConfigurationMapper using(UriInfo uriInfo) {
     mailConfigurationResourceLinks = new MailConfigurationResourceLinks(uriInfo::getBaseUri);
     return this;
@@ -75,6 +91,8 @@ public abstract class MailConfigurationMapper {
   void addLinks(@MappingTarget MailConfigurationDto dto) {
     Links.Builder links = Links.linkingTo();
     links.self(mailConfigurationResourceLinks.self());
+    links.single(link("relays", mailConfigurationResourceLinks.relays()));
+    links.single(link("deadLetters", mailConfigurationResourceLinks.deadLetters()));
     if (ConfigurationPermissions.write("mail").isPermitted()) {
       links.single(link("update", mailConfigurationResourceLinks.update()));
       links.single(link("test", mailConfigurationResourceLinks.test()));
@@ -109,4 +127,22 @@ public abstract class MailConfigurationMapper {
     List<TopicDto> collection = availableTopics.stream().map(this::map).collect(Collectors.toList());
     return new TopicCollectionDto(links.build(), collection);
   }
+
+  public MailRelayStatusCollectionDto mapRelayStatus(Collection<MailRelayStatus> relays) {
+    Links.Builder links = Links.linkingTo();
+    links.self(mailConfigurationResourceLinks.relays());
+    List<MailRelayStatusDto> collection = relays.stream().map(this::map).collect(Collectors.toList());
+    return new MailRelayStatusCollectionDto(links.build(), collection);
+  }
+
+  public MailDeadLetterCollectionDto mapDeadLetters(Collection<MailDeadLetter> deadLetters) {
+    Links.Builder links = Links.linkingTo();
+    links.self(mailConfigurationResourceLinks.deadLetters());
+    if (ConfigurationPermissions.write("mail").isPermitted()) {
+      links.single(link("replay", mailConfigurationResourceLinks.replayDeadLetters()));
+      links.single(link("purge", mailConfigurationResourceLinks.purgeDeadLetters()));
+    }
+    List<MailDeadLetterDto> collection = deadLetters.stream().map(this::map).collect(Collectors.toList());
+    return new MailDeadLetterCollectionDto(links.build(), collection);
+  }
 }
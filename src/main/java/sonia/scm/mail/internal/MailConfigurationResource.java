@@ -25,6 +25,7 @@ import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.PUT;
@@ -45,11 +46,17 @@ import sonia.scm.mail.api.MailSendBatchException;
 import sonia.scm.mail.api.MailService;
 import sonia.scm.mail.api.MailTemplateType;
 import sonia.scm.mail.api.UserMailConfiguration;
+import sonia.scm.mail.spi.MailCircuitBreakerRegistry;
+import sonia.scm.mail.spi.MailDeadLetterQueue;
 import sonia.scm.security.Authentications;
 import sonia.scm.user.User;
 import sonia.scm.util.ValidationUtil;
 import sonia.scm.web.VndMediaType;
 
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
 /**
  * @author Sebastian Sdorra
  */
@@ -59,15 +66,22 @@ import sonia.scm.web.VndMediaType;
 @Path("v2/plugins/mail")
 public class MailConfigurationResource {
 
+  static final String TEST_TEMPLATE_PATH = "sonia/scm/mail/test.mustache";
+
   private final MailService mailService;
   private final MailContext context;
   private final MailConfigurationMapper mapper;
+  private final MailCircuitBreakerRegistry circuitBreakers;
+  private final MailDeadLetterQueue deadLetterQueue;
 
   @Inject
-  public MailConfigurationResource(MailService mailService, MailContext context, MailConfigurationMapper mapper) {
+  public MailConfigurationResource(MailService mailService, MailContext context, MailConfigurationMapper mapper,
+                                   MailCircuitBreakerRegistry circuitBreakers, MailDeadLetterQueue deadLetterQueue) {
     this.mailService = mailService;
     this.context = context;
     this.mapper = mapper;
+    this.circuitBreakers = circuitBreakers;
+    this.deadLetterQueue = deadLetterQueue;
   }
 
   @POST
@@ -90,15 +104,14 @@ public class MailConfigurationResource {
     throws MailSendBatchException {
     ConfigurationPermissions.write("mail").check();
 
-    MailConfiguration configuration = mapper.using(uriInfo).map(mailConfigurationDto);
-    recoverOriginalPasswordIfNotChanged(configuration);
+    MailConfiguration configuration = toConfiguration(uriInfo, mailConfigurationDto);
     if (configuration.isValid() && ValidationUtil.isMailAddressValid(to)) {
 
       mailService.emailTemplateBuilder()
         .withConfiguration(configuration)
         .toAddress(to)
         .withSubject("Test Message from SCM-Manager")
-        .withTemplate("sonia/scm/mail/test.mustache", MailTemplateType.MARKDOWN_HTML)
+        .withTemplate(TEST_TEMPLATE_PATH, MailTemplateType.MARKDOWN_HTML)
         .andModel(configuration)
         .send();
 
@@ -125,8 +138,7 @@ public class MailConfigurationResource {
   )
   public void storeConfiguration(@Context UriInfo uriInfo, MailConfigurationDto mailConfigurationDto) {
     ConfigurationPermissions.write("mail").check();
-    MailConfiguration newConfiguration = mapper.using(uriInfo).map(mailConfigurationDto);
-    recoverOriginalPasswordIfNotChanged(newConfiguration);
+    MailConfiguration newConfiguration = toConfiguration(uriInfo, mailConfigurationDto);
     synchronized (context) {
       context.store(newConfiguration);
     }
@@ -149,13 +161,59 @@ public class MailConfigurationResource {
   )
   public void updateConfiguration(@Context UriInfo uriInfo, MailConfigurationDto mailConfigurationDto) {
     ConfigurationPermissions.write("mail").check();
-    MailConfiguration mailConfiguration = mapper.using(uriInfo).map(mailConfigurationDto);
-    recoverOriginalPasswordIfNotChanged(mailConfiguration);
+    MailConfiguration mailConfiguration = toConfiguration(uriInfo, mailConfigurationDto);
     synchronized (context) {
       context.store(mailConfiguration);
     }
   }
 
+  private MailConfiguration toConfiguration(UriInfo uriInfo, MailConfigurationDto dto) {
+    MailConfiguration configuration = mapper.using(uriInfo).map(dto);
+    recoverOriginalPasswordIfNotChanged(configuration);
+    recoverOriginalSettingsIfMissing(dto, configuration);
+    return configuration;
+  }
+
+  /**
+   * Settings which are missing in the request keep their stored value, instead of being reset to 0 or removed, which
+   * would disable limits, retries or relays.
+   */
+  private void recoverOriginalSettingsIfMissing(MailConfigurationDto dto, MailConfiguration newConfiguration) {
+    MailConfiguration current = context.getConfiguration();
+    if (current == null) {
+      return;
+    }
+    recover(dto.getAsyncPoolSize(), current::getAsyncPoolSize, newConfiguration::setAsyncPoolSize);
+    recover(dto.getDispatchQueueCapacity(), current::getDispatchQueueCapacity, newConfiguration::setDispatchQueueCapacity);
+    recover(dto.getDispatchQueueMaxBytes(), current::getDispatchQueueMaxBytes, newConfiguration::setDispatchQueueMaxBytes);
+    recover(dto.getShutdownTimeoutMillis(), current::getShutdownTimeoutMillis, newConfiguration::setShutdownTimeoutMillis);
+    recover(dto.getParallelConnections(), current::getParallelConnections, newConfiguration::setParallelConnections);
+    recover(dto.getRetryMaxAttempts(), current::getRetryMaxAttempts, newConfiguration::setRetryMaxAttempts);
+    recover(dto.getRetryBackoffMillis(), current::getRetryBackoffMillis, newConfiguration::setRetryBackoffMillis);
+    recover(dto.getCircuitBreakerThreshold(), current::getCircuitBreakerThreshold, newConfiguration::setCircuitBreakerThreshold);
+    recover(dto.getCircuitBreakerOpenMillis(), current::getCircuitBreakerOpenMillis, newConfiguration::setCircuitBreakerOpenMillis);
+    recover(dto.getRateLimitPerSecond(), current::getRateLimitPerSecond, newConfiguration::setRateLimitPerSecond);
+    recover(dto.getRateLimitBurst(), current::getRateLimitBurst, newConfiguration::setRateLimitBurst);
+    recover(
+      dto.getMaxConcurrentDeliveriesPerRelay(),
+      current::getMaxConcurrentDeliveriesPerRelay,
+      newConfiguration::setMaxConcurrentDeliveriesPerRelay
+    );
+    recover(dto.getCoalesceRecipients(), current::isCoalesceRecipients, newConfiguration::setCoalesceRecipients);
+    recover(dto.getMaxRecipientsPerMail(), current::getMaxRecipientsPerMail, newConfiguration::setMaxRecipientsPerMail);
+    recover(dto.getIdempotencyTtlMillis(), current::getIdempotencyTtlMillis, newConfiguration::setIdempotencyTtlMillis);
+    recover(dto.getDispatchOverflowPolicy(), current::getDispatchOverflowPolicy, newConfiguration::setDispatchOverflowPolicy);
+    recover(dto.getRelays(), current::getRelays, newConfiguration::setRelays);
+    recover(dto.getDomainPolicies(), current::getDomainPolicies, newConfiguration::setDomainPolicies);
+    recover(dto.getPickupDirectory(), current::getPickupDirectory, newConfiguration::setPickupDirectory);
+  }
+
+  private static <T> void recover(Object value, Supplier<T> storedValue, Consumer<T> setter) {
+    if (value == null) {
+      setter.accept(storedValue.get());
+    }
+  }
+
   private void recoverOriginalPasswordIfNotChanged(MailConfiguration newConfiguration) {
     if (newConfiguration.getPassword() == null) {
       newConfiguration.setPassword(context.getConfiguration().getPassword());
@@ -273,4 +331,100 @@ public class MailConfigurationResource {
   public TopicCollectionDto getTopics(@Context UriInfo uriInfo) {
     return mapper.using(uriInfo).map(context.availableTopics());
   }
+
+  @GET
+  @Path("relays")
+  @Produces(MediaType.APPLICATION_JSON)
+  @Operation(summary = "Get relay status", description = "Returns the circuit breaker state of the smtp relays", tags = "Mail Plugin")
+  @ApiResponse(
+    responseCode = "200",
+    description = "success",
+    content = @Content(
+      mediaType = MediaType.APPLICATION_JSON,
+      schema = @Schema(implementation = MailRelayStatusCollectionDto.class)
+    )
+  )
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the right privilege")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public MailRelayStatusCollectionDto getRelayStatus(@Context UriInfo uriInfo) {
+    ConfigurationPermissions.read("mail").check();
+
+    return mapper.using(uriInfo).mapRelayStatus(circuitBreakers.getStatus());
+  }
+
+  @GET
+  @Path("dead-letters")
+  @Produces(MediaType.APPLICATION_JSON)
+  @Operation(summary = "Get undeliverable mails", description = "Returns the mails of the dead-letter store", tags = "Mail Plugin")
+  @ApiResponse(
+    responseCode = "200",
+    description = "success",
+    content = @Content(
+      mediaType = MediaType.APPLICATION_JSON,
+      schema = @Schema(implementation = MailDeadLetterCollectionDto.class)
+    )
+  )
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the right privilege")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public MailDeadLetterCollectionDto getDeadLetters(@Context UriInfo uriInfo) {
+    ConfigurationPermissions.read("mail").check();
+
+    return mapper.using(uriInfo).mapDeadLetters(deadLetterQueue.getAll());
+  }
+
+  @POST
+  @Path("dead-letters/replay")
+  @Operation(summary = "Replay undeliverable mails", description = "Delivers the given mails of the dead-letter store again, or all mails if no id is given", tags = "Mail Plugin")
+  @ApiResponse(responseCode = "204", description = "success")
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the right privilege")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public void replayDeadLetters(@QueryParam("id") List<String> ids) {
+    ConfigurationPermissions.write("mail").check();
+
+    deadLetterQueue.replay(ids);
+  }
+
+  @DELETE
+  @Path("dead-letters")
+  @Operation(summary = "Purge undeliverable mails", description = "Removes the given mails from the dead-letter store, or all mails if no id is given", tags = "Mail Plugin")
+  @ApiResponse(responseCode = "204", description = "success")
+  @ApiResponse(responseCode = "401", description = "not authenticated / invalid credentials")
+  @ApiResponse(responseCode = "403", description = "not authorized /  the current user does not have the right privilege")
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public void purgeDeadLetters(@QueryParam("id") List<String> ids) {
+    ConfigurationPermissions.write("mail").check();
+
+    deadLetterQueue.purge(ids);
+  }
 }
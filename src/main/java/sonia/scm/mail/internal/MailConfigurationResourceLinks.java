@@ -62,5 +62,28 @@ public class MailConfigurationResourceLinks {
       .method("getTopics").parameters()
       .href();
   }
-}
 
+  public String relays() {
+    return linkBuilder
+      .method("getRelayStatus").parameters()
+      .href();
+  }
+
+  public String deadLetters() {
+    return linkBuilder
+      .method("getDeadLetters").parameters()
+      .href();
+  }
+
+  public String replayDeadLetters() {
+    return linkBuilder
+      .method("replayDeadLetters").parameters()
+      .href();
+  }
+
+  public String purgeDeadLetters() {
+    return linkBuilder
+      .method("purgeDeadLetters").parameters()
+      .href();
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.internal;
+
+import sonia.scm.mail.api.MailTemplate;
+import sonia.scm.mail.api.MailTemplateProvider;
+import sonia.scm.mail.api.MailTemplateType;
+import sonia.scm.plugin.Extension;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+import static sonia.scm.mail.internal.HealthCheckFailedHook.HEALTH_CHECK_FAILED_TEMPLATE_PATH;
+import static sonia.scm.mail.internal.MailConfigurationResource.TEST_TEMPLATE_PATH;
+import static sonia.scm.mail.internal.RepositoryImportHook.IMPORT_FAILED_TEMPLATE_PATH;
+import static sonia.scm.mail.internal.RepositoryImportHook.IMPORT_SUCCESS_TEMPLATE_PATH;
+
+@Extension
+public class NotificationMailTemplates implements MailTemplateProvider {
+
+  @Override
+  public Collection<MailTemplate> templates() {
+    return List.of(
+      new MailTemplate(HEALTH_CHECK_FAILED_TEMPLATE_PATH, MailTemplateType.MARKDOWN_HTML),
+      new MailTemplate(IMPORT_SUCCESS_TEMPLATE_PATH, MailTemplateType.MARKDOWN_HTML),
+      new MailTemplate(IMPORT_FAILED_TEMPLATE_PATH, MailTemplateType.MARKDOWN_HTML),
+      new MailTemplate(TEST_TEMPLATE_PATH, MailTemplateType.MARKDOWN_HTML, List.of(Locale.ENGLISH))
+    );
+  }
+}
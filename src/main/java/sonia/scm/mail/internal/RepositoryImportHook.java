@@ -79,6 +79,7 @@ public class RepositoryImportHook {
       .fromCurrentUser()
       .toUser(currentUser.getId())
       .onTopic(evaluateTopic(event.isFailed()))
+      .withIdempotencyKey(getIdempotencyKey(event))
       .withSubject(getMailSubject(event, ENGLISH))
       .withSubject(GERMAN, getMailSubject(event, GERMAN))
       .withTemplate(evaluateTemplatePath(event.isFailed()), MailTemplateType.MARKDOWN_HTML)
@@ -86,6 +87,10 @@ public class RepositoryImportHook {
       .send();
   }
 
+  private String getIdempotencyKey(RepositoryImportEvent event) {
+    return "repository-import/" + event.getItem().getId() + "/" + event.getLogId() + "/" + event.isFailed();
+  }
+
   private Topic evaluateTopic(boolean failed) {
     return failed ? TOPIC_IMPORT_FAILED : TOPIC_IMPORT_SUCCESS;
   }
@@ -26,6 +26,8 @@ import sonia.scm.mail.api.MailContext;
 import sonia.scm.mail.api.MailSendBatchException;
 import sonia.scm.mail.api.MailService;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * @author Sebastian Sdorra
  */
@@ -85,6 +87,18 @@ public abstract class AbstractMailService implements MailService {
     send(configuration, Lists.asList(email, emails));
   }
 
+  /**
+   * Sends the e-mails asynchronously with the default configuration.
+   *
+   * @param emails e-mails to send
+   * @return future which is completed after the delivery or completed exceptionally with a
+   * {@link MailSendBatchException}, if some of the e-mails could not be sent
+   */
+  @Override
+  public CompletableFuture<Void> sendAsync(Iterable<Email> emails) {
+    return sendAsync(context.getConfiguration(), emails);
+  }
+
   //~--- get methods ----------------------------------------------------------
 
   /**
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import jakarta.xml.bind.annotation.XmlAccessType;
+import jakarta.xml.bind.annotation.XmlAccessorType;
+import jakarta.xml.bind.annotation.XmlRootElement;
+import jakarta.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.mail.internal.LocalDateTimeAdapter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Mail which could not be delivered and is kept in the dead-letter store until it is replayed or purged. The mail is
+ * stored in the eml format.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@XmlRootElement(name = "deadLetterMail")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class DeadLetterMail {
+
+  private String eml;
+  private MailPriority priority;
+  private int attempts;
+  private String relay;
+  private String reason;
+
+  @XmlJavaTypeAdapter(LocalDateTimeAdapter.class)
+  private LocalDateTime failedAt = LocalDateTime.now();
+
+  public MailPriority getPriority() {
+    return priority != null ? priority : MailPriority.NORMAL;
+  }
+}
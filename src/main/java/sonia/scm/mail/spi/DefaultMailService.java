@@ -18,14 +18,21 @@ package sonia.scm.mail.spi;
 
 import com.github.legman.Subscribe;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.inject.Singleton;
 import lombok.AccessLevel;
 import lombok.Getter;
 import org.simplejavamail.api.email.Email;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import sonia.scm.mail.api.MailConfiguration;
 import sonia.scm.mail.api.MailContext;
+import sonia.scm.mail.api.MailPriority;
 import sonia.scm.mail.api.MailSendBatchException;
+import sonia.scm.mail.api.MailSendException;
 import sonia.scm.mail.api.ScmMail;
 import sonia.scm.mail.api.SummarizeMailConfigChangedEvent;
 import sonia.scm.mail.spi.content.MailContentRendererFactory;
@@ -33,9 +40,14 @@ import sonia.scm.schedule.Scheduler;
 import sonia.scm.user.UserDisplayManager;
 import sonia.scm.user.UserEvent;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 @Singleton
 public class DefaultMailService extends AbstractMailService {
 
+  private static final Logger LOG = LoggerFactory.getLogger(DefaultMailService.class);
+
   private final UserDisplayManager userDisplayManager;
   private final MailContentRendererFactory mailContentRendererFactory;
 
@@ -47,32 +59,90 @@ public class DefaultMailService extends AbstractMailService {
   @Getter(value = AccessLevel.PACKAGE)
   private final MailSummarizer mailSummarizer;
 
+  private final MailDispatcher mailDispatcher;
+  private final MailDeadLetterStore deadLetterStore;
+  private final MailIdempotencyIndex idempotencyIndex = new MailIdempotencyIndex();
+
   @Inject
   DefaultMailService(MailContext context,
                      UserDisplayManager userDisplayManager,
                      MailContentRendererFactory mailContentRendererFactory,
                      MailSender mailSender,
                      MailSummaryQueueStore summaryQueueStore,
-                     Scheduler scheduler) {
+                     MailOutboxStore outboxStore,
+                     MailDeadLetterStore deadLetterStore,
+                     Scheduler scheduler,
+                     MeterRegistry meterRegistry) {
     super(context);
     this.userDisplayManager = userDisplayManager;
     this.mailContentRendererFactory = mailContentRendererFactory;
     this.mailSender = mailSender;
     this.mailSummarizer = new MailSummarizer(summaryQueueStore, this::emailTemplateBuilder, getContext(), scheduler);
+    this.deadLetterStore = deadLetterStore;
+    this.mailDispatcher = new MailDispatcher(
+      mailSender, context, outboxStore, deadLetterStore, scheduler, meterRegistry
+    );
   }
 
   @Override
   public EnvelopeBuilder emailTemplateBuilder() {
     return new EnvelopeBuilderImpl(
       new MailCreationContext(
-        getContext().getConfiguration(), mailContentRendererFactory, getContext(), userDisplayManager, this
+        getContext().getConfiguration(), mailContentRendererFactory, getContext(), userDisplayManager, this,
+        idempotencyIndex
       )
     );
   }
 
+  @Override
+  public void send(Email email, Email... emails) throws MailSendBatchException {
+    send(getContext().getConfiguration(), MailPriority.NORMAL, Lists.asList(email, emails), true);
+  }
+
+  @Override
+  public void send(Iterable<Email> emails) throws MailSendBatchException {
+    send(getContext().getConfiguration(), MailPriority.NORMAL, emails, true);
+  }
+
   @Override
   public void send(MailConfiguration configuration, Iterable<Email> emails) throws MailSendBatchException {
-    this.mailSender.send(configuration, emails);
+    send(configuration, MailPriority.NORMAL, emails);
+  }
+
+  @Override
+  public void send(MailConfiguration configuration, MailPriority priority, Iterable<Email> emails)
+    throws MailSendBatchException {
+    send(configuration, priority, emails, false);
+  }
+
+  /**
+   * Sends the mails synchronously. Mails which could not be sent are moved to the dead-letter store only if they are
+   * replayable, that is if they were sent with the global configuration. Mails sent with a custom configuration, e.g.
+   * test mails, can not be replayed with the global configuration.
+   */
+  void send(MailConfiguration configuration, MailPriority priority, Iterable<Email> emails, boolean replayable)
+    throws MailSendBatchException {
+    try {
+      this.mailSender.send(configuration, priority, emails);
+    } catch (MailSendBatchException ex) {
+      if (replayable) {
+        for (MailSendException failure : ex.getSendExceptions()) {
+          deadLetterStore.add(failure.getEmail(), priority, failure.getAttempts(), failure);
+        }
+      }
+      throw ex;
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> sendAsync(MailConfiguration configuration, Iterable<Email> emails) {
+    return sendAsync(configuration, MailPriority.NORMAL, emails);
+  }
+
+  @Override
+  public CompletableFuture<Void> sendAsync(MailConfiguration configuration, MailPriority priority,
+                                           Iterable<Email> emails) {
+    return this.mailDispatcher.dispatch(configuration, priority, emails);
   }
 
   @Override
@@ -80,6 +150,45 @@ public class DefaultMailService extends AbstractMailService {
     this.mailSummarizer.addMail(userId, category, entityId, mail);
   }
 
+  /**
+   * Starts the asynchronous delivery of the mails, which were left in the outbox by the last run.
+   */
+  void start() {
+    mailDispatcher.start();
+  }
+
+  /**
+   * Delivers all mails of the outbox, which are not currently delivered, e.g. after mails were replayed from the
+   * dead-letter store.
+   */
+  void drainOutbox() {
+    mailDispatcher.drain();
+  }
+
+  /**
+   * Stops scheduled summary mails and asynchronous delivery on shutdown. Retries which wait for their delay fail right
+   * away. Running deliveries are awaited until the configured timeout is reached. Everything which is not delivered by
+   * then is kept in the outbox and the summary store and is delivered after the next start.
+   */
+  void shutdown() {
+    MailConfiguration configuration = getContext().getConfiguration();
+    long timeoutMillis = configuration != null
+      ? configuration.getShutdownTimeoutMillis() : MailConfiguration.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS;
+
+    Stopwatch sw = Stopwatch.createStarted();
+    mailSummarizer.shutdown();
+    mailSender.cancelRetries();
+    boolean dispatched = mailDispatcher.shutdown(remainingMillis(timeoutMillis, sw));
+    boolean delivered = mailSender.shutdown(remainingMillis(timeoutMillis, sw));
+    if (dispatched && delivered) {
+      LOG.info("mail service stopped after {}", sw.stop());
+    }
+  }
+
+  private long remainingMillis(long timeoutMillis, Stopwatch sw) {
+    return Math.max(0, timeoutMillis - sw.elapsed(TimeUnit.MILLISECONDS));
+  }
+
   @Subscribe(async = false)
   public void onSummarizeMailConfigChanged(SummarizeMailConfigChangedEvent event) {
     this.mailSummarizer.onSummarizeMailConfigChanged(event);
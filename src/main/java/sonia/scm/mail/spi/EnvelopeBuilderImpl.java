@@ -21,6 +21,7 @@ import lombok.AccessLevel;
 import lombok.Getter;
 import org.apache.shiro.SecurityUtils;
 import sonia.scm.mail.api.MailConfiguration;
+import sonia.scm.mail.api.MailPriority;
 import sonia.scm.mail.api.MailService;
 import sonia.scm.mail.api.ScmRecipient;
 import sonia.scm.mail.api.Topic;
@@ -46,6 +47,10 @@ class EnvelopeBuilderImpl implements MailService.EnvelopeBuilder {
   private Topic topic;
   @Getter(value = AccessLevel.PACKAGE)
   private String entityId;
+  @Getter(value = AccessLevel.PACKAGE)
+  private MailPriority priority = MailPriority.NORMAL;
+  @Getter(value = AccessLevel.PACKAGE)
+  private String idempotencyKey;
 
 
   EnvelopeBuilderImpl(MailCreationContext mailCreationContext) {
@@ -130,6 +135,33 @@ class EnvelopeBuilderImpl implements MailService.EnvelopeBuilder {
     return this;
   }
 
+  @Override
+  public MailService.EnvelopeBuilder withPriority(MailPriority priority) {
+    this.priority = priority;
+    return this;
+  }
+
+  @Override
+  public MailService.EnvelopeBuilder withIdempotencyKey(String key) {
+    this.idempotencyKey = key;
+    return this;
+  }
+
+  /**
+   * Registers the idempotency key and returns {@code false}, if a mail with the same key was sent recently.
+   */
+  boolean registerIdempotencyKey() {
+    return mailCreationContext.getIdempotencyIndex()
+      .register(idempotencyKey, mailCreationContext.getConfiguration().getIdempotencyTtlMillis());
+  }
+
+  /**
+   * Releases the idempotency key, because the mails could not be sent and a retry must not be dropped.
+   */
+  void unregisterIdempotencyKey() {
+    mailCreationContext.getIdempotencyIndex().unregister(idempotencyKey);
+  }
+
   String effectiveFromAddress() {
     return !Strings.isNullOrEmpty(fromAddress) ? fromAddress : mailCreationContext.getConfiguration().getFrom();
   }
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.simplejavamail.api.email.Email;
+import sonia.scm.mail.api.MailConfiguration;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Transport which hands mails to a mail transfer agent on the same machine instead of a smtp server.
+ */
+interface LocalMailTransport {
+
+  /**
+   * Returns the name of the transport, which is used as method label of the trace.
+   */
+  String getMethod();
+
+  /**
+   * Opens a session, which is used for all mails of a batch.
+   */
+  Session open(MailConfiguration configuration) throws IOException;
+
+  /**
+   * Releases the resources of the transport, e.g. its threads, on shutdown.
+   */
+  default void shutdown() {
+  }
+
+  interface Session extends Closeable {
+
+    /**
+     * Returns a description of the mail transfer agent, e.g. the directory or the command.
+     */
+    String getTarget();
+
+    void send(Email email) throws IOException;
+  }
+}
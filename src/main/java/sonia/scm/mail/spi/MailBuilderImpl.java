@@ -19,29 +19,35 @@ package sonia.scm.mail.spi;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import org.simplejavamail.api.email.Email;
 import org.simplejavamail.api.email.EmailPopulatingBuilder;
 import org.simplejavamail.email.EmailBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sonia.scm.mail.api.MailConfiguration;
 import sonia.scm.mail.api.MailContext;
 import sonia.scm.mail.api.MailSendBatchException;
 import sonia.scm.mail.api.MailService;
-import sonia.scm.mail.api.MailTemplateType;
 import sonia.scm.mail.api.ScmMail;
 import sonia.scm.mail.api.ScmRecipient;
 import sonia.scm.mail.api.Topic;
 import sonia.scm.mail.api.UserMailConfiguration;
-import sonia.scm.mail.spi.content.MailContent;
 import sonia.scm.mail.spi.content.MailContentRenderer;
+import sonia.scm.mail.spi.content.RenderedMailContent;
 import sonia.scm.user.DisplayUser;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
 class MailBuilderImpl implements MailService.MailBuilder {
@@ -52,6 +58,10 @@ class MailBuilderImpl implements MailService.MailBuilder {
   private final TemplateBuilderImpl templateBuilder;
   private final Object model;
 
+  // the content depends only on the locale of the recipient, so it is rendered once per locale and shared by all
+  // mails of this builder, regardless of whether they are sent or queued
+  private final Map<Locale, RenderedMailContent> contentByLocale = new HashMap<>();
+
   MailBuilderImpl(EnvelopeBuilderImpl envelopeBuilder, SubjectBuilderImpl subjectBuilder, TemplateBuilderImpl templateBuilder, Object model) {
     this.envelopeBuilder = envelopeBuilder;
     this.subjectBuilder = subjectBuilder;
@@ -61,49 +71,169 @@ class MailBuilderImpl implements MailService.MailBuilder {
 
   @Override
   public void send() throws MailSendBatchException {
-    List<Email> emails = new ArrayList<>();
-    for (Recipient recipient : collectRecipients()) {
-      emails.add(createMail(recipient));
+    if (isDuplicate()) {
+      return;
+    }
+    List<Email> mails = List.of();
+    try {
+      MailCreationContext context = envelopeBuilder.getMailCreationContext();
+      mails = createMails();
+      context.getMailService().send(
+        context.getConfiguration(), envelopeBuilder.getPriority(), mails, !context.isCustomConfiguration()
+      );
+    } catch (MailSendBatchException | RuntimeException ex) {
+      releaseIdempotencyKeyIfNothingDelivered(ex, mails.size());
+      throw ex;
     }
-    envelopeBuilder.getMailCreationContext().getMailService().send(
-      envelopeBuilder.getMailCreationContext().getConfiguration(), emails
-    );
   }
 
   @Override
-  public void queueMails() throws MailSendBatchException {
-    for (Recipient recipient : collectUserRecipients()) {
-      envelopeBuilder.getMailCreationContext().getMailService().addMail(
-        recipient.getUserId(),
-        envelopeBuilder.getTopic().getCategory().getName(),
-        envelopeBuilder.getEntityId(),
-        createScmMail(recipient)
+  public CompletableFuture<Void> sendAsync() {
+    if (isDuplicate()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    List<Email> mails;
+    CompletableFuture<Void> future;
+    try {
+      mails = createMails();
+      future = envelopeBuilder.getMailCreationContext().getMailService().sendAsync(
+        envelopeBuilder.getMailCreationContext().getConfiguration(), envelopeBuilder.getPriority(), mails
       );
+    } catch (RuntimeException ex) {
+      envelopeBuilder.unregisterIdempotencyKey();
+      throw ex;
+    }
+    return future.whenComplete((result, failure) -> {
+      if (failure != null) {
+        releaseIdempotencyKeyIfNothingDelivered(failure, mails.size());
+      }
+    });
+  }
+
+  @Override
+  public void queueMails() throws MailSendBatchException {
+    if (isDuplicate()) {
+      return;
+    }
+    boolean queued = false;
+    try {
+      for (Recipient recipient : collectUserRecipients()) {
+        String plainText = renderContent(recipient.getLocale()).getPlainText();
+        envelopeBuilder.getMailCreationContext().getMailService().addMail(
+          recipient.getUserId(),
+          envelopeBuilder.getTopic().getCategory().getName(),
+          envelopeBuilder.getEntityId(),
+          createScmMail(recipient, plainText)
+        );
+        queued = true;
+      }
+    } catch (MailSendBatchException | RuntimeException ex) {
+      if (queued) {
+        LOG.warn("keep idempotency key {}, because mails were already queued or sent for other recipients",
+          envelopeBuilder.getIdempotencyKey());
+      } else {
+        envelopeBuilder.unregisterIdempotencyKey();
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Releases the idempotency key after a failure, so that the mails can be sent again with the same key. The key is
+   * kept if some of the mails were delivered, because sending all of them again would deliver these mails twice.
+   */
+  private void releaseIdempotencyKeyIfNothingDelivered(Throwable failure, int mails) {
+    Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+      ? failure.getCause() : failure;
+    if (cause instanceof MailSendBatchException batchException && batchException.getSendExceptions().size() < mails) {
+      LOG.warn("keep idempotency key {}, because {} of {} mails were delivered", envelopeBuilder.getIdempotencyKey(),
+        mails - batchException.getSendExceptions().size(), mails);
+      return;
+    }
+    envelopeBuilder.unregisterIdempotencyKey();
+  }
+
+  private boolean isDuplicate() {
+    if (envelopeBuilder.registerIdempotencyKey()) {
+      return false;
+    }
+    LOG.debug("drop mails with idempotency key {}, because they were already sent", envelopeBuilder.getIdempotencyKey());
+    return true;
+  }
+
+  private List<Email> createMails() {
+    MailConfiguration configuration = envelopeBuilder.getMailCreationContext().getConfiguration();
+    if (configuration.isCoalesceRecipients()) {
+      return createCoalescedMails(Math.max(1, configuration.getMaxRecipientsPerMail()));
+    }
+
+    List<Email> emails = new ArrayList<>();
+    for (Recipient recipient : collectRecipients()) {
+      Locale locale = recipient.getLocale();
+      emails.add(createMail(recipient, subjectFor(locale), renderContent(locale)));
     }
+    LOG.debug("rendered {} mails in {} locales", emails.size(), contentByLocale.size());
+    return emails;
+  }
+
+  /**
+   * Subject and content depend only on the locale of the recipient. So all recipients with the same locale are
+   * addressed as bcc of a single mail, which is rendered and transferred only once.
+   */
+  private List<Email> createCoalescedMails(int maxRecipients) {
+    Map<Locale, List<Recipient>> recipientsByLocale = collectRecipients().stream()
+      .collect(Collectors.groupingBy(Recipient::getLocale, LinkedHashMap::new, Collectors.toList()));
+
+    List<Email> emails = new ArrayList<>();
+    recipientsByLocale.forEach((locale, recipients) -> {
+      RenderedMailContent mailContent = renderContent(locale);
+      String subject = subjectFor(locale);
+      for (List<Recipient> chunk : Lists.partition(recipients, maxRecipients)) {
+        if (chunk.size() == 1) {
+          emails.add(createMail(chunk.get(0), subject, mailContent));
+        } else {
+          EmailPopulatingBuilder emailBuilder = startMail(subject, mailContent);
+          chunk.forEach(recipient -> emailBuilder.bcc(recipient.getDisplayName(), recipient.getAddress()));
+          emails.add(emailBuilder.buildEmail());
+        }
+      }
+    });
+    LOG.debug("coalesced recipients of {} locales into {} mails", recipientsByLocale.size(), emails.size());
+    return emails;
+  }
 
+  private Email createMail(Recipient recipient, String subject, RenderedMailContent mailContent) {
+    return startMail(subject, mailContent)
+      .to(new org.simplejavamail.api.email.Recipient(
+        recipient.getDisplayName(), recipient.getAddress(), jakarta.mail.Message.RecipientType.TO)
+      )
+      .buildEmail();
   }
 
-  private Email createMail(Recipient recipient) {
-    MailContent mailContent = createMailContent(recipient);
+  /**
+   * Starts a mail with subject prefix and sender already set according to the configuration, so that the mail does
+   * not have to be copied again before it is sent.
+   */
+  private EmailPopulatingBuilder startMail(String subject, RenderedMailContent mailContent) {
+    MailEnvelopePolicy policy = MailEnvelopePolicy.of(envelopeBuilder.getMailCreationContext().getConfiguration());
     String effectiveFromAddress = envelopeBuilder.effectiveFromAddress();
+    boolean hasSender = !Strings.isNullOrEmpty(effectiveFromAddress);
 
     EmailPopulatingBuilder emailBuilder = EmailBuilder.startingBlank();
 
-    if (!Strings.isNullOrEmpty(effectiveFromAddress)) {
+    if (policy.overridesSender(hasSender)) {
+      emailBuilder.from(policy.getFrom());
+    } else if (hasSender) {
       emailBuilder.from(envelopeBuilder.getFromDisplayName(), effectiveFromAddress);
     }
 
     return emailBuilder
-      .to(new org.simplejavamail.api.email.Recipient(
-        recipient.getDisplayName(), recipient.getAddress(), jakarta.mail.Message.RecipientType.TO)
-      )
-      .withSubject(subjectFor(recipient))
+      .withSubject(policy.subject(subject))
       .withHTMLText(mailContent.getHtml())
-      .withPlainText(mailContent.getText())
-      .buildEmail();
+      .withPlainText(mailContent.getText());
   }
 
-  private ScmMail createScmMail(Recipient recipient) {
+  private ScmMail createScmMail(Recipient recipient, String plainText) {
     String effectiveFromAddress = envelopeBuilder.effectiveFromAddress();
 
     ScmMail mail = new ScmMail();
@@ -112,48 +242,36 @@ class MailBuilderImpl implements MailService.MailBuilder {
     mail.setEntityId(envelopeBuilder.getEntityId());
     mail.setFrom(new ScmRecipient(envelopeBuilder.getFromDisplayName(), effectiveFromAddress));
     mail.setTo(new ScmRecipient(recipient.getDisplayName(), recipient.getAddress()));
-    mail.setSubject(subjectFor(recipient));
-    mail.setPlainText(createPlainTextMailContent(recipient).getText());
+    mail.setSubject(subjectFor(recipient.getLocale()));
+    mail.setPlainText(plainText);
 
     return mail;
   }
 
-  private MailContent createMailContent(Recipient recipient) {
-    Stopwatch sw = Stopwatch.createStarted();
-    try {
-      MailContentRenderer mailContentRenderer = envelopeBuilder
-        .getMailCreationContext()
-        .getMailContentRendererFactory()
-        .createMailContentRenderer(
-          templateBuilder.getTemplate(), templateBuilder.getType()
-        );
-
-      return mailContentRenderer.createMailContent(recipient.getLocale(), model);
-    } finally {
-      LOG.trace("mail content rendered in {}", sw.stop());
-    }
+  private RenderedMailContent renderContent(Locale locale) {
+    return contentByLocale.computeIfAbsent(locale, this::createMailContent);
   }
 
-  private MailContent createPlainTextMailContent(Recipient recipient) {
+  private RenderedMailContent createMailContent(Locale locale) {
     Stopwatch sw = Stopwatch.createStarted();
     try {
       MailContentRenderer mailContentRenderer = envelopeBuilder
         .getMailCreationContext()
         .getMailContentRendererFactory()
         .createMailContentRenderer(
-          templateBuilder.getTemplate(), MailTemplateType.TEXT
+          templateBuilder.getTemplate(), templateBuilder.getType()
         );
 
-      return mailContentRenderer.createMailContent(recipient.getLocale(), model);
+      return mailContentRenderer.renderAll(locale, model);
     } finally {
       LOG.trace("mail content rendered in {}", sw.stop());
     }
   }
 
-  private String subjectFor(Recipient recipient) {
-    String localized = subjectBuilder.getLocalized().get(recipient.getLocale());
+  private String subjectFor(Locale locale) {
+    String localized = subjectBuilder.getLocalized().get(locale);
     if (Strings.isNullOrEmpty(localized)) {
-      LOG.trace("could not find subject with locale {}", recipient.getLocale());
+      LOG.trace("could not find subject with locale {}", locale);
       return subjectBuilder.getDefaultSubject();
     }
     return localized;
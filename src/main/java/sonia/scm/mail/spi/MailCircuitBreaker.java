@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import com.google.common.base.Throwables;
+import sonia.scm.mail.api.MailConfiguration;
+import sonia.scm.mail.api.MailRelayStatus;
+import sonia.scm.mail.api.MailRelayStatus.CircuitState;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+
+/**
+ * Circuit breaker for a single smtp relay. After a configurable number of consecutive connection failures the breaker
+ * opens and mails are rejected without waiting for the connect timeout of each of them. After the configured open
+ * duration a single mail is let through as probe. If the probe succeeds the breaker closes again, otherwise it stays
+ * open for another period.
+ */
+class MailCircuitBreaker {
+
+  private static final int SERVICE_NOT_AVAILABLE = 421;
+
+  private final String relay;
+  private final Clock clock;
+
+  private CircuitState state = CircuitState.CLOSED;
+  private int consecutiveFailures;
+  private Instant openedAt;
+
+  MailCircuitBreaker(String relay, Clock clock) {
+    this.relay = relay;
+    this.clock = clock;
+  }
+
+  String getRelay() {
+    return relay;
+  }
+
+  synchronized CircuitState getState() {
+    return state;
+  }
+
+  /**
+   * Returns {@code true} if a mail may be delivered to the relay. Every permitted delivery has to be reported with
+   * {@link #onSuccess()}, {@link #onFailure(MailConfiguration)} or {@link #release()}.
+   */
+  synchronized boolean tryAcquire(MailConfiguration configuration) {
+    if (configuration.getCircuitBreakerThreshold() <= 0 || state == CircuitState.CLOSED) {
+      return true;
+    }
+    if (state == CircuitState.OPEN && !clock.instant().isBefore(openedAt.plusMillis(configuration.getCircuitBreakerOpenMillis()))) {
+      state = CircuitState.HALF_OPEN;
+      return true;
+    }
+    return false;
+  }
+
+  synchronized void onSuccess() {
+    state = CircuitState.CLOSED;
+    consecutiveFailures = 0;
+    openedAt = null;
+  }
+
+  /**
+   * Returns the permit without a verdict, e.g. if the delivery failed for a reason which says nothing about the
+   * relay. If the permit was the probe of a half open breaker, the breaker is open again, so that the next delivery
+   * probes the relay instead.
+   */
+  synchronized void release() {
+    if (state == CircuitState.HALF_OPEN) {
+      state = CircuitState.OPEN;
+    }
+  }
+
+  synchronized void onFailure(MailConfiguration configuration) {
+    consecutiveFailures++;
+    int threshold = configuration.getCircuitBreakerThreshold();
+    if (state == CircuitState.HALF_OPEN || (threshold > 0 && consecutiveFailures >= threshold)) {
+      state = CircuitState.OPEN;
+      openedAt = clock.instant();
+    }
+  }
+
+  synchronized MailRelayStatus getStatus() {
+    return new MailRelayStatus(relay, state, consecutiveFailures, openedAt);
+  }
+
+  /**
+   * Returns {@code true} if the failure indicates that the relay itself is not reachable, in contrast to failures
+   * which concern a single mail like a rejected recipient.
+   */
+  static boolean isRelayFailure(Throwable failure) {
+    for (Throwable cause : Throwables.getCausalChain(failure)) {
+      int returnCode = MailRetryPolicy.returnCode(cause);
+      if (returnCode > 0) {
+        return returnCode == SERVICE_NOT_AVAILABLE;
+      }
+      if (cause instanceof IOException) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
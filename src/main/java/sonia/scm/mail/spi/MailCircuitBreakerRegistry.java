@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import com.google.common.annotations.VisibleForTesting;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import sonia.scm.mail.api.MailRelayStatus;
+
+import java.time.Clock;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the circuit breakers of all smtp relays, mails were sent to.
+ */
+@Singleton
+public class MailCircuitBreakerRegistry {
+
+  private final Clock clock;
+  private final Map<String, MailCircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+  @Inject
+  public MailCircuitBreakerRegistry() {
+    this(Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  MailCircuitBreakerRegistry(Clock clock) {
+    this.clock = clock;
+  }
+
+  MailCircuitBreaker get(String relay) {
+    return circuitBreakers.computeIfAbsent(relay, r -> new MailCircuitBreaker(r, clock));
+  }
+
+  /**
+   * Returns the state of the circuit breakers of all known relays.
+   *
+   * @return state of the circuit breakers
+   */
+  public Collection<MailRelayStatus> getStatus() {
+    return circuitBreakers.values()
+      .stream()
+      .map(MailCircuitBreaker::getStatus)
+      .sorted(Comparator.comparing(MailRelayStatus::getRelay))
+      .toList();
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of mails which are delivered to a single relay at the same time. Delivery threads are cheap if
+ * virtual threads are used, so without a limit a large batch could open more connections than the relay accepts.
+ * If the limit of a relay is changed, deliveries which are still running release their permit to the old limit.
+ */
+class MailConcurrencyLimiter {
+
+  static final Permit UNLIMITED = () -> {};
+
+  private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+
+  /**
+   * Blocks until less than {@code maxConcurrent} mails are delivered to the relay. A value of 0 or less disables the
+   * limit. The returned permit must be closed after the delivery.
+   */
+  Permit acquire(String relay, int maxConcurrent) {
+    if (maxConcurrent <= 0) {
+      limits.remove(relay);
+      return UNLIMITED;
+    }
+
+    Semaphore semaphore = limit(relay, maxConcurrent).semaphore();
+    semaphore.acquireUninterruptibly();
+    return semaphore::release;
+  }
+
+  @VisibleForTesting
+  int availablePermits(String relay) {
+    Limit limit = limits.get(relay);
+    return limit != null ? limit.semaphore().availablePermits() : -1;
+  }
+
+  private Limit limit(String relay, int maxConcurrent) {
+    return limits.compute(relay, (key, current) -> {
+      if (current != null && current.maxConcurrent() == maxConcurrent) {
+        return current;
+      }
+      return new Limit(maxConcurrent, new Semaphore(maxConcurrent, true));
+    });
+  }
+
+  interface Permit extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private record Limit(int maxConcurrent, Semaphore semaphore) {
+  }
+}
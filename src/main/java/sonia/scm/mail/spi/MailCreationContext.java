@@ -18,19 +18,22 @@ package sonia.scm.mail.spi;
 
 import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.Setter;
 import sonia.scm.mail.api.MailConfiguration;
 import sonia.scm.mail.api.MailContext;
-import sonia.scm.mail.api.MailService;
 import sonia.scm.mail.spi.content.MailContentRendererFactory;
 import sonia.scm.user.UserDisplayManager;
 
 class MailCreationContext {
 
   @Getter(value = AccessLevel.PACKAGE)
-  @Setter(value = AccessLevel.PACKAGE)
   private MailConfiguration configuration;
 
+  /**
+   * True if the mails are not created with the global configuration, e.g. for a test mail
+   */
+  @Getter(value = AccessLevel.PACKAGE)
+  private boolean customConfiguration;
+
   @Getter(value = AccessLevel.PACKAGE)
   private final MailContentRendererFactory mailContentRendererFactory;
 
@@ -41,17 +44,27 @@ class MailCreationContext {
   private final UserDisplayManager userDisplayManager;
 
   @Getter(value = AccessLevel.PACKAGE)
-  private final MailService mailService;
+  private final DefaultMailService mailService;
+
+  @Getter(value = AccessLevel.PACKAGE)
+  private final MailIdempotencyIndex idempotencyIndex;
 
   MailCreationContext(MailConfiguration configuration,
                       MailContentRendererFactory mailContentRendererFactory,
                       MailContext mailContext,
                       UserDisplayManager userDisplayManager,
-                      MailService mailService) {
+                      DefaultMailService mailService,
+                      MailIdempotencyIndex idempotencyIndex) {
     this.configuration = configuration;
     this.mailContentRendererFactory = mailContentRendererFactory;
     this.mailContext = mailContext;
     this.userDisplayManager = userDisplayManager;
     this.mailService = mailService;
+    this.idempotencyIndex = idempotencyIndex;
+  }
+
+  void setConfiguration(MailConfiguration configuration) {
+    this.configuration = configuration;
+    this.customConfiguration = true;
   }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.converter.EmailConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.mail.api.MailDeadLetter;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives access to the mails which could not be delivered. The mails can be replayed after the cause of the failure
+ * is fixed, e.g. after a relay outage, or they can be purged.
+ */
+@Singleton
+public class MailDeadLetterQueue {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MailDeadLetterQueue.class);
+
+  private final MailDeadLetterStore store;
+  private final MailOutboxStore outboxStore;
+  private final DefaultMailService mailService;
+
+  @Inject
+  MailDeadLetterQueue(MailDeadLetterStore store, MailOutboxStore outboxStore, DefaultMailService mailService) {
+    this.store = store;
+    this.outboxStore = outboxStore;
+    this.mailService = mailService;
+  }
+
+  /**
+   * Returns all mails, which could not be delivered.
+   *
+   * @return undeliverable mails ordered by the time of their failure
+   */
+  public List<MailDeadLetter> getAll() {
+    return store.getSummaries();
+  }
+
+  /**
+   * Moves the mails with the given ids back to the outbox with their original priority and starts the delivery of the
+   * outbox. A mail is only removed from the dead-letter store after it was written to the outbox, so it is never lost
+   * and never dropped because of a full dispatch queue. If no ids are given, all mails are replayed.
+   *
+   * @param ids ids of the mails to replay
+   *
+   * @return number of replayed mails
+   */
+  public int replay(Collection<String> ids) {
+    int count = 0;
+    for (Map.Entry<String, DeadLetterMail> entry : select(ids).entrySet()) {
+      if (moveToOutbox(entry.getKey(), entry.getValue())) {
+        count++;
+      }
+    }
+    LOG.info("replay {} mails from dead-letter store", count);
+    if (count > 0) {
+      mailService.drainOutbox();
+    }
+    return count;
+  }
+
+  private boolean moveToOutbox(String id, DeadLetterMail mail) {
+    Email email;
+    try {
+      email = EmailConverter.emlToEmail(mail.getEml());
+    } catch (RuntimeException ex) {
+      LOG.warn("Could not read mail {} from dead-letter store, the mail is not replayed", id, ex);
+      return false;
+    }
+    outboxStore.add(email, mail.getPriority());
+    store.remove(id);
+    return true;
+  }
+
+  /**
+   * Removes the mails with the given ids without delivering them. If no ids are given, all mails are removed.
+   *
+   * @param ids ids of the mails to remove
+   *
+   * @return number of removed mails
+   */
+  public int purge(Collection<String> ids) {
+    Map<String, DeadLetterMail> mails = select(ids);
+    LOG.info("purge {} mails from dead-letter store", mails.size());
+    mails.keySet().forEach(store::remove);
+    return mails.size();
+  }
+
+  private Map<String, DeadLetterMail> select(Collection<String> ids) {
+    if (ids == null || ids.isEmpty()) {
+      return new LinkedHashMap<>(store.getAll());
+    }
+    Map<String, DeadLetterMail> mails = new LinkedHashMap<>();
+    ids.forEach(id -> store.get(id).ifPresent(mail -> mails.put(id, mail)));
+    return mails;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import com.google.common.base.Throwables;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.api.email.Recipient;
+import org.simplejavamail.converter.EmailConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.mail.api.MailDeadLetter;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.mail.api.MailSendException;
+import sonia.scm.store.DataStore;
+import sonia.scm.store.DataStoreFactory;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Durable store for mails, which could not be delivered and should not be retried automatically.
+ */
+@Singleton
+class MailDeadLetterStore {
+  private static final Logger LOG = LoggerFactory.getLogger(MailDeadLetterStore.class);
+  private static final String STORE_NAME = "mail-dead-letter";
+
+  private final DataStore<DeadLetterMail> store;
+
+  @Inject
+  MailDeadLetterStore(DataStoreFactory storeFactory) {
+    store = storeFactory.withType(DeadLetterMail.class).withName(STORE_NAME).build();
+  }
+
+  public String add(Email email, MailPriority priority, int attempts, MailSendException failure) {
+    String id = UUID.randomUUID().toString();
+    LOG.trace("Store mail with subject {} in dead-letter store as {}", email.getSubject(), id);
+    store.put(id, new DeadLetterMail(
+      EmailConverter.emailToEML(email),
+      priority,
+      attempts,
+      failure.getRelay(),
+      reason(failure),
+      LocalDateTime.now()
+    ));
+    return id;
+  }
+
+  private String reason(MailSendException failure) {
+    Throwable rootCause = Throwables.getRootCause(failure);
+    return rootCause.getMessage() != null ? rootCause.getMessage() : rootCause.getClass().getName();
+  }
+
+  public Optional<DeadLetterMail> get(String id) {
+    return store.getOptional(id);
+  }
+
+  public void remove(String id) {
+    LOG.trace("Remove mail {} from dead-letter store", id);
+    store.remove(id);
+  }
+
+  public Map<String, DeadLetterMail> getAll() {
+    return store.getAll();
+  }
+
+  /**
+   * Returns a summary of all stored mails, ordered by the time of their failure.
+   */
+  public List<MailDeadLetter> getSummaries() {
+    List<MailDeadLetter> result = new ArrayList<>();
+    store.getAll().forEach((id, mail) -> {
+      try {
+        result.add(summarize(id, mail, EmailConverter.emlToEmail(mail.getEml())));
+      } catch (RuntimeException ex) {
+        LOG.warn("Could not read mail {} from dead-letter store", id, ex);
+      }
+    });
+    result.sort(Comparator.comparing(MailDeadLetter::getFailedAt));
+    return result;
+  }
+
+  private MailDeadLetter summarize(String id, DeadLetterMail mail, Email email) {
+    return new MailDeadLetter(
+      id,
+      email.getSubject(),
+      email.getRecipients().stream().map(Recipient::getAddress).toList(),
+      mail.getPriority(),
+      mail.getAttempts(),
+      mail.getRelay(),
+      mail.getReason(),
+      mail.getFailedAt().atZone(ZoneId.systemDefault()).toInstant()
+    );
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates executors for the delivery of mails. Delivery is blocking socket i/o, so a virtual thread is started for
+ * each task if the jvm supports them (Java 21 and later). The api is called reflectively, because the plugin is
+ * compiled for Java 17. On older jvms a bounded pool of platform threads is used, which either delivers on the calling
+ * thread or queues the task if all threads are busy.
+ */
+final class MailDeliveryExecutors {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MailDeliveryExecutors.class);
+
+  private MailDeliveryExecutors() {
+  }
+
+  static ExecutorService create(String name, int maxPlatformThreads) {
+    ExecutorService executor = createVirtual(name);
+    if (executor != null) {
+      LOG.debug("use virtual threads for {}", name);
+      return executor;
+    }
+    return createPlatform(name, maxPlatformThreads);
+  }
+
+  static ExecutorService createPlatform(String name, int maxThreads) {
+    return new ThreadPoolExecutor(
+      0,
+      maxThreads,
+      60L,
+      TimeUnit.SECONDS,
+      new SynchronousQueue<>(),
+      platformThreadFactory(name),
+      MailDeliveryExecutors::runOnCaller
+    );
+  }
+
+  /**
+   * Runs the task on the calling thread if all threads are busy. Unlike the caller-runs policy of the jdk, the task is
+   * also run if the executor is shut down, so that the future of the task is always completed.
+   */
+  private static void runOnCaller(Runnable task, ThreadPoolExecutor executor) {
+    task.run();
+  }
+
+  /**
+   * Creates an executor, which never runs a task on the calling thread. On older jvms tasks are queued until one of
+   * the platform threads is free. This is required for tasks which are submitted by a scheduler thread, which must not
+   * be blocked by the delivery.
+   */
+  static ExecutorService createQueuing(String name, int maxPlatformThreads) {
+    ExecutorService executor = createVirtual(name);
+    if (executor != null) {
+      LOG.debug("use virtual threads for {}", name);
+      return executor;
+    }
+    return createPlatformQueuing(name, maxPlatformThreads);
+  }
+
+  static ExecutorService createPlatformQueuing(String name, int maxThreads) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+      maxThreads,
+      maxThreads,
+      60L,
+      TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(),
+      platformThreadFactory(name),
+      new ThreadPoolExecutor.AbortPolicy()
+    );
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Creates a scheduler with a single platform thread, which should only hand the scheduled tasks to another executor.
+   */
+  static ScheduledExecutorService createScheduler(String name) {
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, platformThreadFactory(name));
+    scheduler.setRemoveOnCancelPolicy(true);
+    return scheduler;
+  }
+
+  /**
+   * Creates a factory for virtual threads if the jvm supports them, otherwise for daemon platform threads. This is
+   * used for pools which have to keep a fixed number of workers, but whose workers block on smtp i/o.
+   */
+  static ThreadFactory createThreadFactory(String name) {
+    ThreadFactory threadFactory = virtualThreadFactory(name);
+    if (threadFactory != null) {
+      LOG.debug("use virtual threads for {}", name);
+      return threadFactory;
+    }
+    return platformThreadFactory(name);
+  }
+
+  private static ThreadFactory platformThreadFactory(String name) {
+    return new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build();
+  }
+
+  private static ExecutorService createVirtual(String name) {
+    ThreadFactory threadFactory = virtualThreadFactory(name);
+    if (threadFactory == null) {
+      return null;
+    }
+    try {
+      return (ExecutorService) Executors.class
+        .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+        .invoke(null, threadFactory);
+    } catch (ReflectiveOperationException | LinkageError ex) {
+      LOG.debug("virtual thread executor is not available, fall back to platform threads for {}", name);
+      return null;
+    }
+  }
+
+  private static ThreadFactory virtualThreadFactory(String name) {
+    try {
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+      return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException | LinkageError ex) {
+      LOG.debug("virtual threads are not available, fall back to platform threads for {}", name);
+      return null;
+    }
+  }
+}
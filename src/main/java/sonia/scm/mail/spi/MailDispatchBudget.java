@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+/**
+ * Keeps track of the number and the size of the mails, which are queued for asynchronous delivery or are currently
+ * delivered. The limits are passed with every call, so that a changed configuration applies immediately. A value of 0
+ * or less disables a limit. If nothing is queued, mails are always accepted, so that a batch which exceeds the limits
+ * on its own does not wait forever.
+ */
+class MailDispatchBudget {
+
+  private int mails;
+  private long bytes;
+
+  synchronized boolean tryAcquire(int count, long size, int maxMails, long maxBytes) {
+    if (!fits(count, size, maxMails, maxBytes)) {
+      return false;
+    }
+    mails += count;
+    bytes += size;
+    return true;
+  }
+
+  synchronized void acquire(int count, long size, int maxMails, long maxBytes) throws InterruptedException {
+    while (!fits(count, size, maxMails, maxBytes)) {
+      wait();
+    }
+    mails += count;
+    bytes += size;
+  }
+
+  synchronized void release(int count, long size) {
+    mails = Math.max(0, mails - count);
+    bytes = Math.max(0, bytes - size);
+    notifyAll();
+  }
+
+  synchronized int getMails() {
+    return mails;
+  }
+
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  private boolean fits(int count, long size, int maxMails, long maxBytes) {
+    if (mails == 0) {
+      return true;
+    }
+    return (maxMails <= 0 || mails + count <= maxMails) && (maxBytes <= 0 || bytes + size <= maxBytes);
+  }
+}
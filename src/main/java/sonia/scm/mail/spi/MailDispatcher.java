@@ -0,0 +1,484 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi;
+
+import com.google.common.collect.ImmutableList;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.simplejavamail.api.email.Email;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.mail.api.MailConfiguration;
+import sonia.scm.mail.api.MailContext;
+import sonia.scm.mail.api.MailOverflowPolicy;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.mail.api.MailSendBatchException;
+import sonia.scm.mail.api.MailSendException;
+import sonia.scm.schedule.Scheduler;
+import sonia.scm.schedule.Task;
+
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers mails on bounded pools of worker threads, so that the caller does not have to wait for the smtp server.
+ * Each {@link MailPriority} has its own pool, so that critical mails are not queued behind a large amount of bulk
+ * mails. Critical mails have a fixed number of workers, bulk mails get half of the configured workers of normal mails.
+ * Every mail is written to the outbox before it is handed to the pool and is only removed after the smtp server has
+ * accepted it. Mails which are left in the outbox, e.g. because of a restart or an unavailable smtp server, are
+ * delivered again by a periodic drain. Mails which could not be delivered after several attempts are moved to the
+ * dead-letter store.
+ * The number and the size of the mails held in memory are bounded. If the bounds are exceeded, the configured
+ * {@link MailOverflowPolicy} decides whether the caller has to wait, the mails are only kept in the outbox until there
+ * is room again or bulk mails are dropped.
+ * On shutdown the dispatcher waits for the running deliveries until a deadline. Mails which are not delivered by then
+ * remain in the outbox.
+ */
+class MailDispatcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MailDispatcher.class);
+
+  private static final int QUEUE_CAPACITY = 1000;
+  private static final int CRITICAL_POOL_SIZE = 2;
+  private static final int MAX_ATTEMPTS = 10;
+  private static final String DRAIN_CRON_EXPRESSION = "0 0/5 * ? * * *";
+
+  private final MailSender mailSender;
+  private final MailContext context;
+  private final MailOutboxStore outboxStore;
+  private final MailDeadLetterStore deadLetterStore;
+  private final Scheduler scheduler;
+  private final Map<MailPriority, ThreadPoolExecutor> executors = new EnumMap<>(MailPriority.class);
+
+  private final MeterRegistry meterRegistry;
+  private final MailDispatchBudget budget = new MailDispatchBudget();
+  private final AtomicBoolean spilled = new AtomicBoolean();
+  private Task drainTask;
+  private volatile boolean shutdown;
+
+  /**
+   * Guards the outbox and the in-flight marks, so that the drain never sees a mail in the outbox which is already
+   * handed to a worker but not yet marked, or which was just delivered.
+   */
+  private final Object outboxLock = new Object();
+  private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+  MailDispatcher(MailSender mailSender, MailContext context, MailOutboxStore outboxStore,
+                 MailDeadLetterStore deadLetterStore, Scheduler scheduler, MeterRegistry meterRegistry) {
+    this.mailSender = mailSender;
+    this.context = context;
+    this.outboxStore = outboxStore;
+    this.deadLetterStore = deadLetterStore;
+    this.scheduler = scheduler;
+    this.meterRegistry = meterRegistry;
+    for (MailPriority priority : MailPriority.values()) {
+      executors.put(priority, createExecutor(priority));
+    }
+    Gauge.builder("scm.mail.dispatch.queued", budget, MailDispatchBudget::getMails)
+      .description("Mails held in memory for asynchronous delivery")
+      .register(meterRegistry);
+    Gauge.builder("scm.mail.dispatch.queued.bytes", budget, MailDispatchBudget::getBytes)
+      .description("Estimated size of the mails held in memory for asynchronous delivery")
+      .baseUnit("bytes")
+      .register(meterRegistry);
+  }
+
+  /**
+   * Schedules the periodic drain and delivers the mails which were left in the outbox by the last run. This is not
+   * done by the constructor, because the deliveries must not start before the plugin context is initialized.
+   */
+  synchronized void start() {
+    if (shutdown || drainTask != null) {
+      return;
+    }
+    drainTask = scheduler.schedule(DRAIN_CRON_EXPRESSION, this::drain);
+    drain();
+  }
+
+  /**
+   * The workers of a priority are still a pool with a fixed size, because the size is the configured number of
+   * concurrent deliveries and keeps the priorities apart. The workers block on smtp i/o, so they are virtual threads
+   * if the jvm supports them.
+   */
+  private static ThreadPoolExecutor createExecutor(MailPriority priority) {
+    int poolSize = poolSize(priority, MailConfiguration.DEFAULT_ASYNC_POOL_SIZE);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+      poolSize,
+      poolSize,
+      60L,
+      TimeUnit.SECONDS,
+      new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+      MailDeliveryExecutors.createThreadFactory("MailDispatcher-" + priority.name().toLowerCase(Locale.ENGLISH)),
+      new ThreadPoolExecutor.AbortPolicy()
+    );
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static int poolSize(MailPriority priority, int asyncPoolSize) {
+    return switch (priority) {
+      case CRITICAL -> CRITICAL_POOL_SIZE;
+      case NORMAL -> Math.max(1, asyncPoolSize);
+      case BULK -> Math.max(1, asyncPoolSize / 2);
+    };
+  }
+
+  CompletableFuture<Void> dispatch(MailConfiguration configuration, MailPriority priority, Iterable<Email> emails) {
+    adjustPoolSizes();
+
+    List<Email> batch = ImmutableList.copyOf(emails);
+    if (shutdown) {
+      return spill(priority, batch);
+    }
+
+    long size = estimateSize(batch);
+    if (!budget.tryAcquire(batch.size(), size, maxMails(), maxBytes())) {
+      MailOverflowPolicy policy = overflowPolicy();
+      if (policy == MailOverflowPolicy.DROP_BULK && priority == MailPriority.BULK) {
+        return drop(priority, batch);
+      }
+      if (policy != MailOverflowPolicy.BLOCK || !awaitBudget(batch.size(), size)) {
+        return spill(priority, batch);
+      }
+    }
+
+    Map<String, Email> mails = new LinkedHashMap<>();
+    synchronized (outboxLock) {
+      for (Email email : batch) {
+        mails.put(outboxStore.add(email, priority), email);
+      }
+      inFlight.addAll(mails.keySet());
+    }
+
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    execute(configuration, priority, mails, size, future, overflowPolicy());
+    return future;
+  }
+
+  private boolean awaitBudget(int count, long size) {
+    try {
+      LOG.debug("dispatch queue is full, wait until {} mails can be queued", count);
+      budget.acquire(count, size, maxMails(), maxBytes());
+      return true;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Writes the mails only to the outbox. They are delivered by the next drain, which is started as soon as a running
+   * delivery is finished. The returned future is completed, because the mails are stored durably.
+   */
+  private CompletableFuture<Void> spill(MailPriority priority, List<Email> batch) {
+    LOG.debug("dispatch queue is full, spill {} mails with priority {} to outbox", batch.size(), priority);
+    batch.forEach(email -> outboxStore.add(email, priority));
+    spilled.set(true);
+    countSpilled(priority, batch.size());
+    return CompletableFuture.completedFuture(null);
+  }
+
+  private CompletableFuture<Void> drop(MailPriority priority, List<Email> batch) {
+    LOG.warn("dispatch queue is full, drop {} mails with priority {}", batch.size(), priority);
+    countDropped(priority, batch.size());
+    return CompletableFuture.failedFuture(dropped(priority));
+  }
+
+  private void countSpilled(MailPriority priority, int count) {
+    counter("scm.mail.dispatch.spilled", "Mails kept in the outbox, because the dispatch queue was full", priority)
+      .increment(count);
+  }
+
+  private void countDropped(MailPriority priority, int count) {
+    counter("scm.mail.dispatch.rejected", "Mails dropped, because the dispatch queue was full", priority)
+      .increment(count);
+  }
+
+  private static RejectedExecutionException dropped(MailPriority priority) {
+    return new RejectedExecutionException("dispatch queue is full, mails with priority " + priority + " are dropped");
+  }
+
+  private Counter counter(String name, String description, MailPriority priority) {
+    return Counter.builder(name)
+      .description(description)
+      .tag("priority", priority.name())
+      .register(meterRegistry);
+  }
+
+  /**
+   * Hands all mails of the outbox, which are not currently delivered, to the worker pool of their priority. The outbox
+   * is loaded once and the mails are claimed by their id under the lock, so that mails which are already delivered
+   * are never parsed. The claimed mails are parsed outside the lock. Only as many mails are taken as fit into the
+   * dispatch queue, the others are released for the next drain.
+   */
+  void drain() {
+    if (shutdown) {
+      return;
+    }
+    MailConfiguration configuration = context.getConfiguration();
+    if (configuration == null || !configuration.isValid()) {
+      LOG.debug("mail configuration is not valid, mails are kept in outbox");
+      return;
+    }
+
+    Map<MailPriority, Map<String, OutboxMail>> claimed = new EnumMap<>(MailPriority.class);
+    synchronized (outboxLock) {
+      outboxStore.getAllStored().forEach((id, mail) -> {
+        if (inFlight.add(id)) {
+          claimed.computeIfAbsent(mail.getPriority(), priority -> new LinkedHashMap<>()).put(id, mail);
+        }
+      });
+    }
+
+    claimed.forEach((priority, mails) -> {
+      Map<String, Email> pending = new LinkedHashMap<>();
+      long size = 0;
+      Iterator<Map.Entry<String, OutboxMail>> iterator = mails.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, OutboxMail> entry = iterator.next();
+        Email email = outboxStore.read(entry.getKey(), entry.getValue()).orElse(null);
+        if (email == null) {
+          inFlight.remove(entry.getKey());
+          continue;
+        }
+        long mailSize = estimateSize(email);
+        if (!budget.tryAcquire(1, mailSize, maxMails(), maxBytes())) {
+          inFlight.remove(entry.getKey());
+          iterator.forEachRemaining(remaining -> inFlight.remove(remaining.getKey()));
+          spilled.set(true);
+          break;
+        }
+        pending.put(entry.getKey(), email);
+        size += mailSize;
+      }
+      if (!pending.isEmpty()) {
+        LOG.debug("deliver {} mails with priority {} from outbox", pending.size(), priority);
+        execute(configuration, priority, pending, size, new CompletableFuture<>(), MailOverflowPolicy.SPILL_TO_OUTBOX);
+      }
+    });
+  }
+
+  /**
+   * Hands the mails to the worker pool of their priority. If the pool is already shut down, the mails are kept in the
+   * outbox for the next start and the future is completed, because the mails are stored durably. If the queue of the
+   * pool is full, the overflow policy is applied, because the caller must never deliver the mails itself: Bulk mails
+   * are dropped with {@link MailOverflowPolicy#DROP_BULK}, otherwise the mails are kept in the outbox for the next
+   * drain.
+   */
+  private void execute(MailConfiguration configuration, MailPriority priority, Map<String, Email> mails, long size,
+                       CompletableFuture<Void> future, MailOverflowPolicy policy) {
+    try {
+      executors.get(priority).execute(() -> deliverAndRelease(configuration, priority, mails, size, future));
+    } catch (RejectedExecutionException ex) {
+      budget.release(mails.size(), size);
+      if (shutdown) {
+        LOG.debug("dispatcher is shut down, {} mails with priority {} are kept in outbox", mails.size(), priority);
+        inFlight.removeAll(mails.keySet());
+        future.complete(null);
+      } else if (policy == MailOverflowPolicy.DROP_BULK && priority == MailPriority.BULK) {
+        LOG.warn("worker queue is full, drop {} mails with priority {}", mails.size(), priority);
+        mails.keySet().forEach(this::acknowledge);
+        countDropped(priority, mails.size());
+        future.completeExceptionally(dropped(priority));
+      } else {
+        LOG.debug("worker queue is full, {} mails with priority {} are kept in outbox", mails.size(), priority);
+        inFlight.removeAll(mails.keySet());
+        spilled.set(true);
+        countSpilled(priority, mails.size());
+        future.complete(null);
+      }
+    }
+  }
+
+  /**
+   * Delivers the mails and frees their space in the dispatch queue. If mails were spilled to the outbox, they are
+   * drained after a successful delivery. After a failed delivery they are left for the periodic drain, so that an
+   * unavailable relay does not lead to a loop of failing deliveries.
+   */
+  private void deliverAndRelease(MailConfiguration configuration, MailPriority priority, Map<String, Email> mails,
+                                 long size, CompletableFuture<Void> future) {
+    try {
+      deliver(configuration, priority, mails, future);
+    } finally {
+      budget.release(mails.size(), size);
+      if (!shutdown && !future.isCompletedExceptionally() && spilled.compareAndSet(true, false)) {
+        drain();
+      }
+    }
+  }
+
+  private void deliver(MailConfiguration configuration, MailPriority priority, Map<String, Email> mails,
+                       CompletableFuture<Void> future) {
+    if (!configuration.isValid()) {
+      // the sender would skip the mails without failure, so they must not be acknowledged
+      LOG.warn("mail configuration is not valid, {} mails are kept in outbox", mails.size());
+      inFlight.removeAll(mails.keySet());
+      future.completeExceptionally(new IllegalStateException("mail configuration is not valid"));
+      return;
+    }
+    try {
+      mailSender.send(configuration, priority, mails.values());
+      mails.keySet().forEach(this::acknowledge);
+      future.complete(null);
+    } catch (MailSendBatchException ex) {
+      Map<Email, MailSendException> failed = new IdentityHashMap<>();
+      ex.getSendExceptions().forEach(failure -> failed.put(failure.getEmail(), failure));
+      mails.forEach((id, email) -> {
+        MailSendException failure = failed.get(email);
+        if (failure == null) {
+          acknowledge(id);
+        } else if (failure.getCause() instanceof MailRelayUnavailableException) {
+          // the relay was not contacted, so this does not count as attempt
+          inFlight.remove(id);
+        } else {
+          reject(id, priority, failure);
+        }
+      });
+      future.completeExceptionally(ex);
+    } catch (RuntimeException ex) {
+      LOG.warn("unexpected error during asynchronous mail delivery, mails are kept in outbox", ex);
+      inFlight.removeAll(mails.keySet());
+      future.completeExceptionally(ex);
+    }
+  }
+
+  private void acknowledge(String id) {
+    synchronized (outboxLock) {
+      outboxStore.remove(id);
+      inFlight.remove(id);
+    }
+  }
+
+  private void reject(String id, MailPriority priority, MailSendException failure) {
+    int attempts = outboxStore.incrementAttempts(id);
+    if (attempts >= MAX_ATTEMPTS) {
+      String deadLetterId = deadLetterStore.add(failure.getEmail(), priority, attempts, failure);
+      LOG.error("giving up delivery of mail {} after {} attempts, moved to dead-letter store as {}",
+        id, attempts, deadLetterId);
+      acknowledge(id);
+    } else {
+      inFlight.remove(id);
+    }
+  }
+
+  /**
+   * Stops accepting mails for delivery and waits until the running and queued deliveries are finished or the timeout
+   * is reached. Mails which are sent afterward are only written to the outbox. Deliveries which are not finished in
+   * time are interrupted, their mails remain in the outbox and are delivered after the next start.
+   *
+   * @return {@code true} if all deliveries were finished in time
+   */
+  boolean shutdown(long timeoutMillis) {
+    synchronized (this) {
+      shutdown = true;
+      if (drainTask != null) {
+        drainTask.cancel();
+      }
+    }
+    executors.values().forEach(ThreadPoolExecutor::shutdown);
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    try {
+      for (ThreadPoolExecutor executor : executors.values()) {
+        if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+          break;
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    boolean terminated = executors.values().stream().allMatch(ThreadPoolExecutor::isTerminated);
+    if (!terminated) {
+      LOG.warn("asynchronous delivery did not finish within {}ms, {} mails are kept in outbox for the next start",
+        timeoutMillis, inFlight.size());
+      executors.values().forEach(ThreadPoolExecutor::shutdownNow);
+    }
+    return terminated;
+  }
+
+  private int maxMails() {
+    MailConfiguration configuration = context.getConfiguration();
+    return configuration != null ? configuration.getDispatchQueueCapacity() : 0;
+  }
+
+  private long maxBytes() {
+    MailConfiguration configuration = context.getConfiguration();
+    return configuration != null ? configuration.getDispatchQueueMaxBytes() : 0;
+  }
+
+  private MailOverflowPolicy overflowPolicy() {
+    MailConfiguration configuration = context.getConfiguration();
+    if (configuration == null || configuration.getDispatchOverflowPolicy() == null) {
+      return MailOverflowPolicy.SPILL_TO_OUTBOX;
+    }
+    return configuration.getDispatchOverflowPolicy();
+  }
+
+  private static long estimateSize(List<Email> emails) {
+    return emails.stream().mapToLong(MailDispatcher::estimateSize).sum();
+  }
+
+  /**
+   * Estimates the memory used by a mail from its subject and its text parts, which make up most of the notification
+   * mails. Strings use up to two bytes per character.
+   */
+  static long estimateSize(Email email) {
+    long chars = length(email.getSubject()) + length(email.getPlainText()) + length(email.getHTMLText())
+      + length(email.getCalendarText());
+    return chars * 2;
+  }
+
+  private static long length(String value) {
+    return value != null ? value.length() : 0;
+  }
+
+  private synchronized void adjustPoolSizes() {
+    MailConfiguration configuration = context.getConfiguration();
+    int asyncPoolSize = configuration != null ? configuration.getAsyncPoolSize() : 0;
+    executors.forEach((priority, executor) -> adjustPoolSize(priority, executor, poolSize(priority, asyncPoolSize)));
+  }
+
+  private void adjustPoolSize(MailPriority priority, ThreadPoolExecutor executor, int poolSize) {
+    if (poolSize == executor.getMaximumPoolSize()) {
+      return;
+    }
+
+    LOG.debug("change pool size for {} mails from {} to {}", priority, executor.getMaximumPoolSize(), poolSize);
+    if (poolSize > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(poolSize);
+      executor.setCorePoolSize(poolSize);
+    } else {
+      executor.setCorePoolSize(poolSize);
+      executor.setMaximumPoolSize(poolSize);
+    }
+  }
+}
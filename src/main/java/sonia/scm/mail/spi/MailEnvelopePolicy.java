@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import com.google.common.base.Strings;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.api.email.EmailPopulatingBuilder;
+import org.simplejavamail.api.email.Recipient;
+import org.simplejavamail.email.EmailBuilder;
+import sonia.scm.mail.api.MailConfiguration;
+
+import java.util.Objects;
+
+/**
+ * Applies the subject prefix and the sender address of the configuration to a mail. Mails created by the
+ * {@link MailBuilderImpl} are built with the policy already in place, so only mails which are passed directly to the
+ * mail service have to be copied, and those at most once.
+ */
+class MailEnvelopePolicy {
+
+  private final String subjectPrefix;
+  private final String from;
+  private final boolean fromAddressAsSender;
+
+  MailEnvelopePolicy(String subjectPrefix, String from, boolean fromAddressAsSender) {
+    this.subjectPrefix = Strings.emptyToNull(subjectPrefix);
+    this.from = Strings.emptyToNull(from);
+    this.fromAddressAsSender = fromAddressAsSender;
+  }
+
+  static MailEnvelopePolicy of(MailConfiguration configuration) {
+    return new MailEnvelopePolicy(
+      configuration.getSubjectPrefix(), configuration.getFrom(), configuration.getFromAddressAsSender()
+    );
+  }
+
+  String subject(String subject) {
+    if (subjectPrefix == null || subject == null || subject.startsWith(subjectPrefix)) {
+      return subject;
+    }
+    String paddedPrefix = subjectPrefix.endsWith(" ") ? subjectPrefix : subjectPrefix.concat(" ");
+    return paddedPrefix.concat(subject);
+  }
+
+  /**
+   * Returns {@code true} if the configured from address has to be used instead of the given sender.
+   */
+  boolean overridesSender(boolean hasSender) {
+    return from != null && (!hasSender || fromAddressAsSender);
+  }
+
+  String getFrom() {
+    return from;
+  }
+
+  Email apply(Email email) {
+    String subject = subject(email.getSubject());
+    boolean subjectChanged = !Objects.equals(subject, email.getSubject());
+    Recipient sender = email.getFromRecipient();
+    boolean senderChanged = overridesSender(sender != null) && !isConfiguredSender(sender);
+    if (!subjectChanged && !senderChanged) {
+      return email;
+    }
+
+    EmailPopulatingBuilder builder = EmailBuilder.copying(email);
+    if (subjectChanged) {
+      builder.withSubject(subject);
+    }
+    if (senderChanged) {
+      builder.from(from);
+    }
+    return builder.buildEmail();
+  }
+
+  private boolean isConfiguredSender(Recipient sender) {
+    return sender != null && sender.getName() == null && from.equals(sender.getAddress());
+  }
+}
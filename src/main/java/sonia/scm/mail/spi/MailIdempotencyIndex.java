@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers the idempotency keys of recently sent mails, so that a mail for the same occurrence, e.g. of a redelivered
+ * event, can be dropped before it is rendered. The number of keys is bounded; if the bound is reached, the least
+ * recently used keys are evicted.
+ */
+class MailIdempotencyIndex {
+
+  private static final int MAX_KEYS = 10_000;
+
+  private final Clock clock;
+  private final Cache<String, Long> keys = CacheBuilder.newBuilder()
+    .maximumSize(MAX_KEYS)
+    .build();
+
+  MailIdempotencyIndex() {
+    this(Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  MailIdempotencyIndex(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Registers the key and returns {@code true}, if it was not registered within the given time to live. Mails without
+   * key or with a time to live of 0 or less are never considered as duplicates.
+   */
+  boolean register(String key, long ttlMillis) {
+    if (Strings.isNullOrEmpty(key) || ttlMillis <= 0) {
+      return true;
+    }
+
+    long now = clock.millis();
+    AtomicBoolean registered = new AtomicBoolean();
+    keys.asMap().compute(key, (k, registeredAt) -> {
+      if (registeredAt != null && now - registeredAt < ttlMillis) {
+        return registeredAt;
+      }
+      registered.set(true);
+      return now;
+    });
+    return registered.get();
+  }
+
+  /**
+   * Removes the key again, e.g. if the mails could not be sent, so that a retry of the same occurrence is not dropped.
+   */
+  void unregister(String key) {
+    if (!Strings.isNullOrEmpty(key)) {
+      keys.invalidate(key);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.converter.EmailConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.store.DataStore;
+import sonia.scm.store.DataStoreFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Durable store for mails, which are accepted for asynchronous delivery but are not yet delivered.
+ */
+@Singleton
+class MailOutboxStore {
+  private static final Logger LOG = LoggerFactory.getLogger(MailOutboxStore.class);
+  private static final String STORE_NAME = "mail-outbox";
+
+  private final DataStore<OutboxMail> store;
+
+  @Inject
+  MailOutboxStore(DataStoreFactory storeFactory) {
+    store = storeFactory.withType(OutboxMail.class).withName(STORE_NAME).build();
+  }
+
+  public String add(Email email, MailPriority priority) {
+    String id = UUID.randomUUID().toString();
+    LOG.trace("Store mail with subject {} in outbox as {}", email.getSubject(), id);
+    store.put(id, new OutboxMail(EmailConverter.emailToEML(email), priority));
+    return id;
+  }
+
+  public void remove(String id) {
+    LOG.trace("Remove mail {} from outbox", id);
+    store.remove(id);
+  }
+
+  public int incrementAttempts(String id) {
+    return store.getOptional(id)
+      .map(mail -> {
+        mail.setAttempts(mail.getAttempts() + 1);
+        store.put(id, mail);
+        return mail.getAttempts();
+      })
+      .orElse(0);
+  }
+
+  public Map<String, Email> getAll(MailPriority priority) {
+    LOG.trace("Load all mails with priority {} of outbox", priority);
+    Map<String, Email> result = new LinkedHashMap<>();
+    getAllStored().forEach((id, mail) -> {
+      if (mail.getPriority() == priority) {
+        read(id, mail).ifPresent(email -> result.put(id, email));
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Returns a snapshot of all mails of the outbox without parsing them, so that the caller can select the mails by
+   * their id and priority before it parses them with {@link #read(String, OutboxMail)}.
+   */
+  public Map<String, OutboxMail> getAllStored() {
+    return new LinkedHashMap<>(store.getAll());
+  }
+
+  /**
+   * Parses a stored mail. A mail which cannot be parsed is removed from the outbox, because it could never be
+   * delivered.
+   */
+  public Optional<Email> read(String id, OutboxMail mail) {
+    try {
+      return Optional.of(EmailConverter.emlToEmail(mail.getEml()));
+    } catch (RuntimeException ex) {
+      LOG.error("Could not read mail {} from outbox, the mail is removed", id, ex);
+      store.remove(id);
+      return Optional.empty();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.converter.EmailConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.mail.api.MailConfiguration;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Writes mails in the rfc 822 format to a directory, from which a local mail transfer agent picks them up. Each mail
+ * is written to a hidden temporary file first and is then renamed atomically, so that the mail transfer agent never
+ * reads a partially written mail.
+ */
+class MailPickupDirectory implements LocalMailTransport {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MailPickupDirectory.class);
+
+  private static final String EXTENSION = ".eml";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  @Override
+  public String getMethod() {
+    return "PICKUP";
+  }
+
+  @Override
+  public Session open(MailConfiguration configuration) {
+    Path directory = Path.of(configuration.getPickupDirectory());
+    return new Session() {
+      @Override
+      public String getTarget() {
+        return directory.toString();
+      }
+
+      @Override
+      public void send(Email email) throws IOException {
+        Path file = write(directory, email);
+        LOG.trace("wrote mail to {}", file);
+      }
+
+      @Override
+      public void close() {
+        // nothing to release
+      }
+    };
+  }
+
+  Path write(Path directory, Email email) throws IOException {
+    Files.createDirectories(directory);
+
+    String name = UUID.randomUUID() + EXTENSION;
+    Path temporary = directory.resolve("." + name + ".tmp");
+    Path target = directory.resolve(name);
+    try {
+      MimeMessage message = EmailConverter.emailToMimeMessage(email);
+      try (OutputStream output = new BufferedOutputStream(
+        Files.newOutputStream(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), BUFFER_SIZE
+      )) {
+        message.writeTo(output);
+      }
+      Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+      return target;
+    } catch (MessagingException ex) {
+      Files.deleteIfExists(temporary);
+      throw new IOException("failed to serialize mail", ex);
+    } catch (IOException | RuntimeException ex) {
+      Files.deleteIfExists(temporary);
+      throw ex;
+    }
+  }
+}
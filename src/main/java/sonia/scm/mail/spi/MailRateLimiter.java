@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket which paces the delivery to a single smtp relay. The bucket holds up to {@code burst} permits and is
+ * refilled with {@code permitsPerSecond}. If the bucket is empty, the permit is reserved in advance and the caller has
+ * to wait until it becomes available.
+ */
+class MailRateLimiter {
+
+  private static final double NANOS_PER_SECOND = 1_000_000_000d;
+
+  private final LongSupplier ticker;
+
+  private double permits = Double.NaN;
+  private long lastRefill;
+
+  MailRateLimiter(LongSupplier ticker) {
+    this.ticker = ticker;
+  }
+
+  /**
+   * Reserves a permit and returns the time in nanoseconds the caller has to wait before the permit may be used.
+   */
+  synchronized long reserve(int permitsPerSecond, int burst) {
+    long now = ticker.getAsLong();
+    int capacity = Math.max(1, burst);
+    if (Double.isNaN(permits)) {
+      permits = capacity;
+    } else {
+      permits = Math.min(capacity, permits + (now - lastRefill) * permitsPerSecond / NANOS_PER_SECOND);
+    }
+    lastRefill = now;
+
+    permits -= 1;
+    if (permits >= 0) {
+      return 0;
+    }
+    return (long) Math.ceil(-permits * NANOS_PER_SECOND / permitsPerSecond);
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import sonia.scm.mail.api.MailRelay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distributes mails over the configured relays with a weighted round-robin. The returned order starts with the chosen
+ * relay and continues with the remaining relays, which are used for failover. Relays with a weight of 0 are only used
+ * for failover.
+ */
+class MailRelayBalancer {
+
+  private final AtomicLong counter = new AtomicLong();
+
+  List<MailRelay> order(List<MailRelay> relays) {
+    if (relays.size() <= 1) {
+      return relays;
+    }
+
+    int first = choose(relays);
+    List<MailRelay> ordered = new ArrayList<>(relays.size());
+    for (int i = 0; i < relays.size(); i++) {
+      ordered.add(relays.get((first + i) % relays.size()));
+    }
+    return ordered;
+  }
+
+  private int choose(List<MailRelay> relays) {
+    int totalWeight = relays.stream().mapToInt(relay -> Math.max(0, relay.getWeight())).sum();
+    if (totalWeight == 0) {
+      return 0;
+    }
+
+    long slot = Math.floorMod(counter.getAndIncrement(), totalWeight);
+    for (int i = 0; i < relays.size(); i++) {
+      slot -= Math.max(0, relays.get(i).getWeight());
+      if (slot < 0) {
+        return i;
+      }
+    }
+    return 0;
+  }
+}
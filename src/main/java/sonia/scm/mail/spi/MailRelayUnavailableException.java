@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.simplejavamail.MailException;
+
+/**
+ * Thrown if a mail is rejected, because the circuit breaker of the relay is open.
+ */
+class MailRelayUnavailableException extends MailException {
+
+  MailRelayUnavailableException(String relay) {
+    super("circuit breaker for relay " + relay + " is open");
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi;
+
+import com.google.common.base.Throwables;
+import jakarta.mail.MessagingException;
+import sonia.scm.mail.api.MailConfiguration;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed delivery should be retried and how long to wait before the next attempt. Only transient
+ * failures are retried: smtp replies with a 4xx status code (e.g. greylisting) and i/o errors like connection resets.
+ * The delay grows exponentially with every attempt and is randomized by up to 50 percent to avoid retry storms.
+ */
+class MailRetryPolicy {
+
+  private static final ClassValue<Optional<Method>> RETURN_CODE_GETTERS = new ClassValue<>() {
+    @Override
+    protected Optional<Method> computeValue(Class<?> type) {
+      try {
+        Method getter = type.getMethod("getReturnCode");
+        return getter.getReturnType() == int.class ? Optional.of(getter) : Optional.empty();
+      } catch (NoSuchMethodException ex) {
+        return Optional.empty();
+      }
+    }
+  };
+
+  private final int maxAttempts;
+  private final long backoffMillis;
+
+  MailRetryPolicy(int maxAttempts, long backoffMillis) {
+    this.maxAttempts = maxAttempts;
+    this.backoffMillis = backoffMillis;
+  }
+
+  static MailRetryPolicy of(MailConfiguration configuration) {
+    return new MailRetryPolicy(configuration.getRetryMaxAttempts(), configuration.getRetryBackoffMillis());
+  }
+
+  boolean shouldRetry(Throwable failure, int attempt) {
+    return attempt < maxAttempts && isTransient(failure);
+  }
+
+  long delayMillis(int attempt) {
+    long delay = backoffMillis << Math.min(Math.max(attempt - 1, 0), 16);
+    long jitter = ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    return delay - jitter;
+  }
+
+  static boolean isTransient(Throwable failure) {
+    for (Throwable cause : Throwables.getCausalChain(failure)) {
+      int returnCode = returnCode(cause);
+      if (returnCode > 0) {
+        return returnCode >= 400 && returnCode < 500;
+      }
+      if (cause instanceof IOException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the smtp reply code of the failure or -1 if it has none. The smtp exceptions of the jakarta mail providers,
+   * e.g. {@code com.sun.mail.smtp} and {@code org.eclipse.angus.mail.smtp}, have no common type with the reply code.
+   * So the code is read from the {@code getReturnCode} method of any {@link MessagingException}, regardless of the
+   * provider which is found at runtime.
+   */
+  static int returnCode(Throwable cause) {
+    if (!(cause instanceof MessagingException)) {
+      return -1;
+    }
+    Optional<Method> getter = RETURN_CODE_GETTERS.get(cause.getClass());
+    if (getter.isEmpty()) {
+      return -1;
+    }
+    try {
+      return (int) getter.get().invoke(cause);
+    } catch (ReflectiveOperationException ex) {
+      return -1;
+    }
+  }
+}
@@ -18,70 +18,154 @@ package sonia.scm.mail.spi;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.inject.Inject;
 import jakarta.inject.Provider;
 import org.simplejavamail.MailException;
 import org.simplejavamail.api.email.Email;
 import org.simplejavamail.api.email.Recipient;
 import org.simplejavamail.api.mailer.Mailer;
-import org.simplejavamail.email.EmailBuilder;
 import org.simplejavamail.mailer.MailerBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sonia.scm.mail.api.MailConfiguration;
+import sonia.scm.mail.api.MailDomainPolicy;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.mail.api.MailRelay;
 import sonia.scm.mail.api.MailSendBatchException;
 import sonia.scm.mail.api.MailSendException;
+import sonia.scm.mail.api.ScmTransportStrategy;
 import sonia.scm.trace.Span;
 import sonia.scm.trace.Tracer;
 import sonia.scm.util.AssertUtil;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 class MailSender {
 
   private static final Logger LOG = LoggerFactory.getLogger(MailSender.class);
+
+  private static final int CONNECTION_POOL_CORE_SIZE = 0;
+  private static final int CONNECTION_POOL_MAX_SIZE = 4;
+  private static final int CONNECTION_POOL_EXPIRE_AFTER_MILLIS = 30_000;
+  private static final int MAX_CACHED_MAILERS = 8;
+  private static final int MAX_DELIVERY_THREADS = 32;
+  private static final long SSL_CONTEXT_REFRESH_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final String DOMAIN_KEY_PREFIX = "domain:";
+
   private final Tracer tracer;
   private final Provider<SSLContext> sslContext;
+  private final MailCircuitBreakerRegistry circuitBreakers;
+  private final MeterRegistry meterRegistry;
+  private final MailRelayBalancer relayBalancer = new MailRelayBalancer();
+  private final Map<ScmTransportStrategy, LocalMailTransport> localTransports = new EnumMap<>(Map.of(
+    ScmTransportStrategy.PICKUP_DIRECTORY, new MailPickupDirectory(),
+    ScmTransportStrategy.SENDMAIL, new MailSendmailTransport()
+  ));
+  private final Map<String, MailRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+
+  /**
+   * The socket factory is shared by all mailers, so that new connections, e.g. of a mailer for a changed
+   * configuration, can resume tls sessions from the session cache of the ssl context instead of performing a full
+   * handshake.
+   */
+  private final Object socketFactoryLock = new Object();
+  private SSLContext socketFactoryContext;
+  private SSLSocketFactory socketFactory;
+  private long socketFactoryCheckedAt;
+
+  /**
+   * Mailers are expensive, because each of them owns a pool of authenticated smtp connections. We keep them for each
+   * distinct server configuration, so that a changed configuration leads to a new mailer and the old one is closed
+   * after it was not used for a while. A removed mailer is closed only after all running deliveries have released it.
+   */
+  private final Cache<MailerKey, SharedMailer> mailers = CacheBuilder.newBuilder()
+    .maximumSize(MAX_CACHED_MAILERS)
+    .expireAfterAccess(10, TimeUnit.MINUTES)
+    .removalListener(this::shutdownMailer)
+    .build();
+
+  /**
+   * Used to deliver partitions of large batches concurrently. Virtual threads are used
+   * if the jvm supports them, otherwise a partition is delivered on the calling thread if all threads are busy.
+   */
+  private final ExecutorService deliveryExecutor = MailDeliveryExecutors.create("MailSender", MAX_DELIVERY_THREADS);
+
+  /**
+   * Retries are delayed by a dedicated scheduler, which only hands them to the retry executor. The retry executor never
+   * runs a retry on the scheduler thread, so that a busy pool does not block other retries with smtp i/o.
+   */
+  private final ScheduledExecutorService retryScheduler = MailDeliveryExecutors.createScheduler("MailSender-retry-scheduler");
+  private final ExecutorService retryExecutor = MailDeliveryExecutors.createQueuing("MailSender-retry", MAX_DELIVERY_THREADS);
+
+  /**
+   * Retries which wait for their delay, with the failure of their last attempt. They are completed with this failure
+   * on shutdown, so that the deliveries which wait for them are finished and the mails are not lost.
+   */
+  private final Map<CompletableFuture<MailSendException>, MailSendException> pendingRetries = new ConcurrentHashMap<>();
+  private final MailConcurrencyLimiter concurrencyLimiter = new MailConcurrencyLimiter();
 
   @Inject
-  MailSender(Tracer tracer, Provider<SSLContext> sslContext) {
+  MailSender(Tracer tracer, Provider<SSLContext> sslContext, MailCircuitBreakerRegistry circuitBreakers,
+             MeterRegistry meterRegistry) {
     this.tracer = tracer;
     this.sslContext = sslContext;
+    this.circuitBreakers = circuitBreakers;
+    this.meterRegistry = meterRegistry;
   }
 
   public void send(MailConfiguration configuration, Iterable<Email> emails)
+    throws MailSendBatchException {
+    send(configuration, MailPriority.NORMAL, emails);
+  }
+
+  public void send(MailConfiguration configuration, MailPriority priority, Iterable<Email> emails)
     throws MailSendBatchException {
     if (configuration.isValid()) {
-      MailSendBatchException batchEx = null;
-      Mailer mailer = createMailer(configuration);
-
-      for (Email e : emails) {
-        try (Span span = tracer.span("Mail")) {
-          try {
-            span.label("url", configuration.getHost() + ":" + configuration.getPort());
-            span.label("method", "SMTP");
-            sendMail(configuration, mailer, e);
-          } catch (MailException ex) {
-            span.label("exception", ex.getClass().getName());
-            span.label("message", ex.getMessage());
-            span.failed();
-            LOG.warn("could not send mail", ex);
-
-            if (batchEx == null) {
-              batchEx =
-                new MailSendBatchException("some messages could not be send");
-            }
-
-            batchEx.append(new MailSendException("message could not be send", e,
-              ex));
-          }
-        }
+      List<MailSendException> failures;
+      LocalMailTransport localTransport = localTransports.get(configuration.getTransportStrategy());
+      if (localTransport != null) {
+        failures = deliverLocally(configuration, localTransport, ImmutableList.copyOf(emails));
+      } else {
+        Delivery delivery = new Delivery(
+          configuration, priority, relays(configuration), MailRetryPolicy.of(configuration), null
+        );
+        failures = deliver(delivery, ImmutableList.copyOf(emails));
       }
 
-      if (batchEx != null) {
+      if (!failures.isEmpty()) {
+        MailSendBatchException batchEx = new MailSendBatchException("some messages could not be send");
+        failures.forEach(batchEx::append);
         throw batchEx;
       }
 
@@ -90,73 +174,566 @@ class MailSender {
     }
   }
 
-  @VisibleForTesting
-  Mailer createMailer(MailConfiguration configuration) {
-    SSLSocketFactory socketFactory = sslContext.get().getSocketFactory();
-    Properties props = new Properties();
-    props.put("mail.smtp.ssl.socketFactory", socketFactory);
-    props.put("mail.smtps.ssl.socketFactory", socketFactory);
+  /**
+   * Hands the mails to a mail transfer agent on the same machine. All mails of the batch share a single session of
+   * the transport. There is no smtp server involved, so relays, retries and rate limits do not apply.
+   */
+  private List<MailSendException> deliverLocally(MailConfiguration configuration, LocalMailTransport transport,
+                                                 List<Email> emails) {
+    LocalMailTransport.Session session;
+    try {
+      session = transport.open(configuration);
+    } catch (IOException ex) {
+      LOG.warn("could not open {} transport", transport.getMethod(), ex);
+      return emails.stream()
+        .map(email -> new MailSendException("message could not be send", email, ex, transport.getMethod(), 1))
+        .toList();
+    }
 
-    return MailerBuilder
-      .withSMTPServer(
-        configuration.getHost(),
-        configuration.getPort(),
-        Strings.emptyToNull(configuration.getUsername()),
-        Strings.emptyToNull(configuration.getPassword()))
-      .withTransportStrategy(configuration.getTransportStrategy().getTransportStrategy())
-      .withProperties(props)
-      .buildMailer();
+    List<MailSendException> failures = new ArrayList<>();
+    try {
+      for (Email email : emails) {
+        sendLocally(configuration, transport, session, email).ifPresent(failures::add);
+      }
+    } finally {
+      try {
+        session.close();
+      } catch (IOException ex) {
+        LOG.warn("could not close {} transport", transport.getMethod(), ex);
+      }
+    }
+    return failures;
   }
 
-  private void sendMail(MailConfiguration configuration, Mailer mailer, Email email) {
-    AssertUtil.assertIsValid(configuration);
+  private Optional<MailSendException> sendLocally(MailConfiguration configuration, LocalMailTransport transport,
+                                                  LocalMailTransport.Session session, Email email) {
+    try (Span span = tracer.span("Mail")) {
+      span.label("url", session.getTarget());
+      span.label("method", transport.getMethod());
+      try {
+        session.send(MailEnvelopePolicy.of(configuration).apply(email));
+        return Optional.empty();
+      } catch (IOException ex) {
+        span.label("exception", ex.getClass().getName());
+        span.label("message", ex.getMessage());
+        span.failed();
+        LOG.warn("could not hand mail to {}", session.getTarget(), ex);
+        return Optional.of(new MailSendException("message could not be send", email, ex, session.getTarget(), 1));
+      }
+    }
+  }
+
+  private List<MailRelay> relays(MailConfiguration configuration) {
+    List<MailRelay> relays = new ArrayList<>();
+    relays.add(new MailRelay(configuration.getHost(), configuration.getPort(), 1));
+    if (configuration.getRelays() != null) {
+      configuration.getRelays().stream().filter(MailRelay::isValid).forEach(relays::add);
+    }
+    return relays;
+  }
+
+  /**
+   * Delivers the mails to each recipient domain with a {@link MailDomainPolicy} separately from the other mails. The
+   * groups are delivered concurrently, so that a slow domain does not delay the delivery to the other domains.
+   */
+  private List<MailSendException> deliver(Delivery delivery, List<Email> emails) {
+    List<MailDomainPolicy> policies = domainPolicies(delivery.configuration());
+    if (policies.isEmpty() || emails.isEmpty()) {
+      return deliverInParallel(delivery, emails);
+    }
+
+    Map<MailDomainPolicy, List<Email>> emailsByDomain = new LinkedHashMap<>();
+    for (Email email : emails) {
+      emailsByDomain.computeIfAbsent(domainPolicy(policies, email), policy -> new ArrayList<>()).add(email);
+    }
+
+    List<Map.Entry<MailDomainPolicy, List<Email>>> groups = new ArrayList<>(emailsByDomain.entrySet());
+    LOG.debug("deliver {} mails in {} groups of recipient domains", emails.size(), groups.size());
+    List<CompletableFuture<List<MailSendException>>> futures = groups.subList(1, groups.size())
+      .stream()
+      .map(group -> deliverConcurrently(() -> deliverInParallel(delivery.forDomain(group.getKey()), group.getValue())))
+      .toList();
+
+    Map.Entry<MailDomainPolicy, List<Email>> first = groups.get(0);
+    List<MailSendException> failures = new ArrayList<>(
+      deliverInParallel(delivery.forDomain(first.getKey()), first.getValue())
+    );
+    joinAll(futures, failures);
+    return failures;
+  }
+
+  private List<MailDomainPolicy> domainPolicies(MailConfiguration configuration) {
+    if (configuration.getDomainPolicies() == null) {
+      return List.of();
+    }
+    return configuration.getDomainPolicies().stream().filter(MailDomainPolicy::isValid).toList();
+  }
+
+  /**
+   * Returns the first policy, which matches the domains of all recipients of the mail or {@code null} if there is
+   * none.
+   */
+  private MailDomainPolicy domainPolicy(List<MailDomainPolicy> policies, Email email) {
+    List<Recipient> recipients = email.getRecipients();
+    if (recipients.isEmpty()) {
+      return null;
+    }
+    for (MailDomainPolicy policy : policies) {
+      if (recipients.stream().allMatch(recipient -> policy.matches(domainOf(recipient.getAddress())))) {
+        return policy;
+      }
+    }
+    return null;
+  }
+
+  private static String domainOf(String address) {
+    int index = address != null ? address.lastIndexOf('@') : -1;
+    return index >= 0 ? address.substring(index + 1) : null;
+  }
+
+  /**
+   * Splits the batch into one partition per configured connection. The first partition is delivered on the calling
+   * thread, the others are delivered concurrently each with its own connection from the pool of the mailer.
+   */
+  private List<MailSendException> deliverInParallel(Delivery delivery, List<Email> emails) {
+    int parallelism = Math.min(emails.size(), Math.max(1, delivery.configuration().getParallelConnections()));
+    if (parallelism <= 1) {
+      return deliverSequential(delivery, emails);
+    }
+
+    int partitionSize = (emails.size() + parallelism - 1) / parallelism;
+    List<List<Email>> partitions = Lists.partition(emails, partitionSize);
+    LOG.debug("deliver {} mails in {} partitions", emails.size(), partitions.size());
+
+    List<CompletableFuture<List<MailSendException>>> futures = partitions.subList(1, partitions.size())
+      .stream()
+      .map(partition -> deliverConcurrently(() -> deliverSequential(delivery, partition)))
+      .toList();
+
+    List<MailSendException> failures = new ArrayList<>(deliverSequential(delivery, partitions.get(0)));
+    joinAll(futures, failures);
+    return failures;
+  }
+
+  /**
+   * Delivers on the delivery executor or on the calling thread, if the executor is already shut down. This way a batch
+   * which was started before the shutdown is always finished.
+   */
+  private CompletableFuture<List<MailSendException>> deliverConcurrently(Supplier<List<MailSendException>> delivery) {
+    try {
+      return CompletableFuture.supplyAsync(delivery, deliveryExecutor);
+    } catch (RejectedExecutionException ex) {
+      return CompletableFuture.completedFuture(delivery.get());
+    }
+  }
+
+  private void joinAll(List<CompletableFuture<List<MailSendException>>> futures, List<MailSendException> failures) {
+    for (CompletableFuture<List<MailSendException>> future : futures) {
+      try {
+        failures.addAll(future.join());
+      } catch (CompletionException ex) {
+        Throwables.throwIfUnchecked(ex.getCause());
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Delivers the mails one after another. Transient failures are retried in the background after a delay, so that
+   * the other mails of the batch do not have to wait. The method returns after all retries are finished.
+   */
+  private List<MailSendException> deliverSequential(Delivery delivery, List<Email> emails) {
+    List<MailSendException> failures = new ArrayList<>();
+    List<CompletableFuture<MailSendException>> retries = new ArrayList<>();
+
+    for (Email e : emails) {
+      CompletableFuture<MailSendException> result = tryDelivery(delivery, e, 1);
+      if (result.isDone()) {
+        addIfFailed(failures, result.join());
+      } else {
+        retries.add(result);
+      }
+    }
+
+    for (CompletableFuture<MailSendException> retry : retries) {
+      addIfFailed(failures, retry.join());
+    }
+    return failures;
+  }
+
+  private void addIfFailed(List<MailSendException> failures, MailSendException failure) {
+    if (failure != null) {
+      failures.add(failure);
+    }
+  }
+
+  private CompletableFuture<MailSendException> tryDelivery(Delivery delivery, Email email, int attempt) {
+    RelayFailure failure = sendWithFailover(delivery, email, attempt);
+    if (failure == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    MailException ex = failure.exception();
+    MailSendException sendException = new MailSendException(
+      "message could not be send", email, ex, failure.relay().toString(), attempt
+    );
+    MailRetryPolicy retryPolicy = delivery.retryPolicy();
+    if (retryPolicy.shouldRetry(ex, attempt)) {
+      long delay = retryPolicy.delayMillis(attempt);
+      LOG.info("transient failure on attempt {}, retry delivery in {}ms", attempt, delay);
+      return scheduleRetry(delivery, email, attempt + 1, delay, sendException);
+    }
+    return CompletableFuture.completedFuture(sendException);
+  }
+
+  private CompletableFuture<MailSendException> scheduleRetry(Delivery delivery, Email email, int attempt, long delay,
+                                                             MailSendException lastFailure) {
+    CompletableFuture<MailSendException> retry = new CompletableFuture<>();
+    pendingRetries.put(retry, lastFailure);
+    try {
+      retryScheduler.schedule(() -> {
+        if (pendingRetries.remove(retry) == null) {
+          // already completed by the shutdown
+          return;
+        }
+        try {
+          CompletableFuture
+            .supplyAsync(() -> tryDelivery(delivery, email, attempt), retryExecutor)
+            .thenCompose(Function.identity())
+            .whenComplete(complete(retry));
+        } catch (RejectedExecutionException ex) {
+          LOG.warn("could not retry delivery, retry executor is shut down");
+          retry.complete(lastFailure);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ex) {
+      LOG.warn("could not schedule retry of delivery, retry scheduler is shut down");
+      pendingRetries.remove(retry);
+      retry.complete(lastFailure);
+    }
+    return retry;
+  }
 
-    Email emailWithSubjectPrefix = addPrefixToSubject(email, configuration.getSubjectPrefix());
-    Email emailWithValidFrom = checkFrom(emailWithSubjectPrefix, configuration.getFrom(), configuration.getFromAddressAsSender());
+  private static <T> BiConsumer<T, Throwable> complete(CompletableFuture<T> future) {
+    return (result, failure) -> {
+      if (failure != null) {
+        future.completeExceptionally(failure);
+      } else {
+        future.complete(result);
+      }
+    };
+  }
+
+  /**
+   * Delivers the mail to the relay chosen by the balancer. If the relay is not reachable, the other relays are tried
+   * one after another. Returns {@code null} if the mail was delivered or the failure of the relay which should be
+   * reported.
+   */
+  private RelayFailure sendWithFailover(Delivery delivery, Email email, int attempt) {
+    RelayFailure lastFailure = null;
+    for (MailRelay relay : relayBalancer.order(delivery.relays())) {
+      try {
+        sendWithSpan(delivery, relay, email, attempt);
+        return null;
+      } catch (MailException ex) {
+        RelayFailure failure = new RelayFailure(relay, ex);
+        if (!(ex instanceof MailRelayUnavailableException) && !MailCircuitBreaker.isRelayFailure(ex)) {
+          return failure;
+        }
+        if (lastFailure == null || lastFailure.exception() instanceof MailRelayUnavailableException) {
+          lastFailure = failure;
+        }
+        LOG.debug("relay {} is not available", relay);
+      }
+    }
+    return lastFailure;
+  }
+
+  private void sendWithSpan(Delivery delivery, MailRelay relay, Email email, int attempt) {
+    MailCircuitBreaker circuitBreaker = circuitBreakers.get(relay.toString());
+    try (Span span = tracer.span("Mail")) {
+      try {
+        span.label("url", circuitBreaker.getRelay());
+        span.label("method", "SMTP");
+        if (delivery.priority() != MailPriority.NORMAL) {
+          span.label("priority", delivery.priority().name());
+        }
+        if (attempt > 1) {
+          span.label("attempt", String.valueOf(attempt));
+        }
+        if (delivery.domain() != null) {
+          span.label("domain", delivery.domain().getDomain());
+        }
+        sendThroughCircuitBreaker(delivery, relay, circuitBreaker, email, span);
+      } catch (MailException ex) {
+        span.label("exception", ex.getClass().getName());
+        span.label("message", ex.getMessage());
+        span.failed();
+        if (ex instanceof MailRelayUnavailableException) {
+          LOG.debug("could not send mail: {}", ex.getMessage());
+        } else {
+          LOG.warn("could not send mail", ex);
+        }
+        throw ex;
+      }
+    }
+  }
+
+  private void sendThroughCircuitBreaker(Delivery delivery, MailRelay relay,
+                                         MailCircuitBreaker circuitBreaker, Email email, Span span) {
+    MailConfiguration configuration = delivery.configuration();
+    boolean permitted = circuitBreaker.tryAcquire(configuration);
+    span.label("circuit", circuitBreaker.getState().name());
+    if (!permitted) {
+      throw new MailRelayUnavailableException(circuitBreaker.getRelay());
+    }
+
+    boolean sent = false;
+    boolean relayFailure = false;
+    try (MailConcurrencyLimiter.Permit domainPermit = acquireDomainPermit(delivery);
+         MailConcurrencyLimiter.Permit relayPermit = concurrencyLimiter.acquire(
+           relay.toString(), configuration.getMaxConcurrentDeliveriesPerRelay()
+         )) {
+      awaitDomainRateLimit(delivery);
+      awaitRateLimit(delivery, relay);
+      try (SharedMailer.Lease mailer = leaseMailer(delivery, relay)) {
+        sendMail(configuration, mailer.getMailer(), email);
+        sent = true;
+      }
+    } catch (MailException ex) {
+      relayFailure = MailCircuitBreaker.isRelayFailure(ex);
+      throw ex;
+    } finally {
+      if (sent) {
+        circuitBreaker.onSuccess();
+      } else if (relayFailure) {
+        circuitBreaker.onFailure(configuration);
+      } else {
+        // e.g. a rejected recipient or an interrupted rate limit, which says nothing about the relay
+        circuitBreaker.release();
+      }
+    }
+  }
+
+  /**
+   * Blocks until less than the configured number of mails are delivered to the recipient domain. The permit of the
+   * domain is acquired before the permit of the relay, so that mails to a slow domain do not occupy the relay.
+   */
+  private MailConcurrencyLimiter.Permit acquireDomainPermit(Delivery delivery) {
+    MailDomainPolicy domain = delivery.domain();
+    if (domain == null) {
+      return MailConcurrencyLimiter.UNLIMITED;
+    }
+    return concurrencyLimiter.acquire(DOMAIN_KEY_PREFIX + domain.getDomain(), domain.getMaxConcurrentDeliveries());
+  }
+
+  private void awaitDomainRateLimit(Delivery delivery) {
+    MailDomainPolicy domain = delivery.domain();
+    if (domain == null || domain.getRateLimitPerSecond() <= 0) {
+      return;
+    }
+    awaitRateLimit(
+      delivery,
+      DOMAIN_KEY_PREFIX + domain.getDomain(),
+      domain.getRateLimitPerSecond(),
+      Timer.builder("scm.mail.domain.ratelimit.wait")
+        .description("Time spent waiting for the rate limit of a recipient domain")
+        .tag("domain", domain.getDomain())
+    );
+  }
+
+  private void awaitRateLimit(Delivery delivery, MailRelay relay) {
+    int permitsPerSecond = delivery.configuration().getRateLimitPerSecond();
+    if (permitsPerSecond <= 0) {
+      return;
+    }
+    awaitRateLimit(
+      delivery,
+      relay.toString(),
+      permitsPerSecond,
+      Timer.builder("scm.mail.ratelimit.wait")
+        .description("Time spent waiting for the rate limit of a smtp relay")
+        .tag("relay", relay.toString())
+    );
+  }
 
-    if (mailer.validate(emailWithValidFrom)) {
-      if (LOG.isDebugEnabled()) {
-        LOG.trace("send email to {} from {}",
-          getRecipientsString(emailWithValidFrom.getRecipients()),
-          emailWithValidFrom.getFromRecipient().getAddress());
+  /**
+   * Blocks until the rate limit permits the delivery of another mail. The time spent waiting is recorded as metric,
+   * so that a too strict limit can be detected. Critical mails take a permit, but do not wait for it.
+   */
+  private void awaitRateLimit(Delivery delivery, String key, int permitsPerSecond, Timer.Builder timer) {
+    MailRateLimiter rateLimiter = rateLimiters.computeIfAbsent(key, k -> new MailRateLimiter(System::nanoTime));
+    long reservedNanos = rateLimiter.reserve(permitsPerSecond, delivery.configuration().getRateLimitBurst());
+    long waitNanos = delivery.priority() == MailPriority.CRITICAL ? 0 : reservedNanos;
+    timer.register(meterRegistry).record(waitNanos, TimeUnit.NANOSECONDS);
+
+    if (waitNanos > 0) {
+      LOG.trace("wait {}ms for rate limit of {}", TimeUnit.NANOSECONDS.toMillis(waitNanos), key);
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
       }
+    }
+  }
 
-      mailer.sendMail(emailWithValidFrom);
+  /**
+   * Critical mails use a mailer with their own connection pool, so that they do not have to wait for a connection
+   * which is used by a large batch of other mails.
+   */
+  private SharedMailer.Lease leaseMailer(Delivery delivery, MailRelay relay) {
+    MailConfiguration configuration = delivery.configuration();
+    MailerKey key = MailerKey.of(configuration, relay, delivery.priority() == MailPriority.CRITICAL);
+    refreshSocketFactory();
+    while (true) {
+      SharedMailer.Lease lease = getMailer(key, configuration, relay).lease();
+      if (lease != null) {
+        return lease;
+      }
+      // the mailer was removed from the cache concurrently, so the next call returns a new one
+      LOG.trace("mailer for {} was retired, request new one", key);
     }
   }
 
-  private Email addPrefixToSubject(Email email, String prefix) {
-    if (Strings.isNullOrEmpty(prefix)) {
-      LOG.trace("no prefix defined");
-      return email;
+  private SharedMailer getMailer(MailerKey key, MailConfiguration configuration, MailRelay relay) {
+    try {
+      return mailers.get(key, () -> new SharedMailer(key, createMailer(configuration, relay)));
+    } catch (ExecutionException | UncheckedExecutionException ex) {
+      Throwables.throwIfUnchecked(ex.getCause());
+      throw new IllegalStateException("failed to create mailer", ex.getCause());
     }
+  }
 
-    if (email.getSubject() == null || email.getSubject().startsWith(prefix)) {
-      return email;
+  /**
+   * Closes the connection pools of all mailers, e.g. on shutdown, as soon as their running deliveries are finished.
+   * Mails which are sent afterward use new mailers.
+   */
+  void closeMailers() {
+    mailers.invalidateAll();
+    mailers.cleanUp();
+  }
+
+  /**
+   * Stops scheduling retries. Retries which still wait for their delay are not attempted anymore, they fail with the
+   * failure of their last attempt instead. This way the deliveries which wait for them finish right away and their
+   * mails are kept in the outbox or moved to the dead-letter store.
+   */
+  void cancelRetries() {
+    retryScheduler.shutdownNow();
+    for (CompletableFuture<MailSendException> retry : pendingRetries.keySet()) {
+      MailSendException lastFailure = pendingRetries.remove(retry);
+      if (lastFailure != null) {
+        retry.complete(lastFailure);
+      }
     }
+  }
+
+  /**
+   * Cancels the pending retries and waits until the running deliveries are finished or the timeout is reached. Then
+   * the executors, the local transports and the mailers are closed.
+   *
+   * @return {@code true} if all deliveries were finished in time
+   */
+  boolean shutdown(long timeoutMillis) {
+    cancelRetries();
+    retryExecutor.shutdown();
+    deliveryExecutor.shutdown();
 
-    String paddedPrefix = prefix;
-    if (!paddedPrefix.endsWith(" ")) {
-      paddedPrefix = paddedPrefix.concat(" ");
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    boolean terminated = false;
+    try {
+      terminated = retryExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+        && deliveryExecutor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    if (!terminated) {
+      LOG.warn("mail deliveries did not finish within {}ms, they are interrupted", timeoutMillis);
+      retryExecutor.shutdownNow();
+      deliveryExecutor.shutdownNow();
     }
 
-    return EmailBuilder.copying(email).withSubject(paddedPrefix.concat(email.getSubject())).buildEmail();
+    localTransports.values().forEach(LocalMailTransport::shutdown);
+    closeMailers();
+    return terminated;
   }
 
-  private Email checkFrom(Email email, String fromAddress, boolean fromAddressAsSender) {
+  private void shutdownMailer(RemovalNotification<MailerKey, SharedMailer> notification) {
+    LOG.debug("retire mailer for {}", notification.getKey());
+    notification.getValue().retire();
+  }
 
-    if (email.getFromRecipient() != null && !fromAddressAsSender) {
-      LOG.trace("use recipient for {} sending", email.getFromRecipient().getAddress());
-      return email;
+  /**
+   * Requests the ssl context periodically again. If it has changed, e.g. because of a changed trust store, all mailers
+   * are recreated, so that their connections use the new socket factory.
+   */
+  private void refreshSocketFactory() {
+    synchronized (socketFactoryLock) {
+      long now = System.currentTimeMillis();
+      if (socketFactory == null || now - socketFactoryCheckedAt < SSL_CONTEXT_REFRESH_MILLIS) {
+        return;
+      }
+      socketFactoryCheckedAt = now;
+      SSLContext current = sslContext.get();
+      if (current == socketFactoryContext) {
+        return;
+      }
+      useSocketFactoryOf(current);
     }
+    LOG.debug("ssl context has changed, recreate mailers");
+    mailers.invalidateAll();
+  }
+
+  private SSLSocketFactory getSocketFactory() {
+    synchronized (socketFactoryLock) {
+      if (socketFactory == null) {
+        socketFactoryCheckedAt = System.currentTimeMillis();
+        useSocketFactoryOf(sslContext.get());
+      }
+      return socketFactory;
+    }
+  }
+
+  private void useSocketFactoryOf(SSLContext context) {
+    socketFactoryContext = context;
+    socketFactory = context.getSocketFactory();
+  }
+
+  @VisibleForTesting
+  Mailer createMailer(MailConfiguration configuration, MailRelay relay) {
+    SSLSocketFactory socketFactory = getSocketFactory();
+    Properties props = new Properties();
+    props.put("mail.smtp.ssl.socketFactory", socketFactory);
+    props.put("mail.smtps.ssl.socketFactory", socketFactory);
+
+    return MailerBuilder
+      .withSMTPServer(
+        relay.getHost(),
+        relay.getPort(),
+        Strings.emptyToNull(configuration.getUsername()),
+        Strings.emptyToNull(configuration.getPassword()))
+      .withTransportStrategy(configuration.getTransportStrategy().getTransportStrategy())
+      .withProperties(props)
+      .withClusterKey(UUID.randomUUID())
+      .withConnectionPoolCoreSize(CONNECTION_POOL_CORE_SIZE)
+      .withConnectionPoolMaxSize(Math.max(CONNECTION_POOL_MAX_SIZE, configuration.getParallelConnections()))
+      .withConnectionPoolExpireAfterMillis(CONNECTION_POOL_EXPIRE_AFTER_MILLIS)
+      .buildMailer();
+  }
 
-    if (Strings.isNullOrEmpty(fromAddress)) {
-      LOG.trace("no from recipient found and default one is not set");
-      return email;
+  private void sendMail(MailConfiguration configuration, Mailer mailer, Email email) {
+    AssertUtil.assertIsValid(configuration);
+
+    Email finalEmail = MailEnvelopePolicy.of(configuration).apply(email);
+
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("send email to {} from {}",
+        getRecipientsString(finalEmail.getRecipients()),
+        finalEmail.getFromRecipient().getAddress());
     }
 
-    LOG.trace("no from recipient found setting default one: {}", fromAddress);
-    return EmailBuilder.copying(email).from(fromAddress).buildEmail();
+    // the mailer validates the mail on its own, before it is sent
+    mailer.sendMail(finalEmail);
   }
 
   private String getRecipientsString(Iterable<org.simplejavamail.api.email.Recipient> recipients) {
@@ -173,4 +750,46 @@ class MailSender {
 
     return content.toString();
   }
+
+  private record Delivery(MailConfiguration configuration, MailPriority priority, List<MailRelay> relays,
+                          MailRetryPolicy retryPolicy, MailDomainPolicy domain) {
+
+    /**
+     * Returns the delivery for mails to the given recipient domain, which uses the dedicated relay of the domain if
+     * there is one.
+     */
+    Delivery forDomain(MailDomainPolicy policy) {
+      if (policy == null) {
+        return this;
+      }
+      MailRelay domainRelay = policy.createRelay();
+      return new Delivery(
+        configuration, priority, domainRelay != null ? List.of(domainRelay) : relays, retryPolicy, policy
+      );
+    }
+  }
+
+  private record RelayFailure(MailRelay relay, MailException exception) {
+  }
+
+  private record MailerKey(String host, int port, String username, String password,
+                           ScmTransportStrategy transportStrategy, int parallelConnections, boolean dedicated) {
+
+    static MailerKey of(MailConfiguration configuration, MailRelay relay, boolean dedicated) {
+      return new MailerKey(
+        relay.getHost(),
+        relay.getPort(),
+        configuration.getUsername(),
+        configuration.getPassword(),
+        configuration.getTransportStrategy(),
+        configuration.getParallelConnections(),
+        dedicated
+      );
+    }
+
+    @Override
+    public String toString() {
+      return host + ":" + port;
+    }
+  }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.mail.api.MailConfiguration;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands mails to the local sendmail binary. A single {@code sendmail -bs} process is started for each batch, which
+ * receives all mails of the batch over its standard input in smtp transactions. The binary can only be changed with
+ * the system property {@value #BINARY_PROPERTY} and never by the mail configuration, because everyone who is able to
+ * change the configuration would otherwise be able to execute arbitrary commands on the server.
+ */
+class MailSendmailTransport implements LocalMailTransport {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MailSendmailTransport.class);
+
+  static final String BINARY_PROPERTY = "scm.mail.sendmail";
+  private static final String DEFAULT_BINARY = "/usr/sbin/sendmail";
+
+  private static final Duration READ_TIMEOUT = Duration.ofMinutes(2);
+  private static final long TERMINATION_TIMEOUT_SECONDS = 30;
+
+  /**
+   * Aborts sessions whose mail transfer agent does not reply in time. The thread is only started, if sendmail is used.
+   */
+  private ScheduledExecutorService watchdog;
+
+  @Override
+  public String getMethod() {
+    return "SENDMAIL";
+  }
+
+  @Override
+  public Session open(MailConfiguration configuration) throws IOException {
+    List<String> command = List.of(System.getProperty(BINARY_PROPERTY, DEFAULT_BINARY), "-bs");
+    String target = String.join(" ", command);
+    LOG.debug("start {}", target);
+
+    Process process = new ProcessBuilder(command)
+      .redirectError(ProcessBuilder.Redirect.DISCARD)
+      .start();
+    try {
+      return new MailSmtpPipe(
+        target, process.getInputStream(), process.getOutputStream(), READ_TIMEOUT, watchdog(),
+        process::destroyForcibly, () -> terminate(process)
+      );
+    } catch (IOException | RuntimeException ex) {
+      process.destroyForcibly();
+      throw ex;
+    }
+  }
+
+  private synchronized ScheduledExecutorService watchdog() {
+    if (watchdog == null) {
+      watchdog = MailDeliveryExecutors.createScheduler("MailSendmailWatchdog");
+    }
+    return watchdog;
+  }
+
+  @Override
+  public synchronized void shutdown() {
+    if (watchdog != null) {
+      watchdog.shutdownNow();
+      watchdog = null;
+    }
+  }
+
+  private void terminate(Process process) {
+    try {
+      process.getOutputStream().close();
+    } catch (IOException ex) {
+      LOG.debug("failed to close standard input of sendmail", ex);
+    }
+    try {
+      if (!process.waitFor(TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.warn("sendmail did not terminate in time, the process is killed");
+        process.destroyForcibly();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      process.destroyForcibly();
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import jakarta.inject.Inject;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import sonia.scm.plugin.Extension;
+
+/**
+ * Starts the delivery of the mails left in the outbox once the plugin context is initialized and stops the mail
+ * service gracefully, before the server shuts down or restarts.
+ */
+@Extension
+public class MailServiceLifecycleListener implements ServletContextListener {
+
+  private final DefaultMailService mailService;
+
+  @Inject
+  MailServiceLifecycleListener(DefaultMailService mailService) {
+    this.mailService = mailService;
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    mailService.start();
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    mailService.shutdown();
+  }
+}
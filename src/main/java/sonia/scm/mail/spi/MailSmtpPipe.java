@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import com.sun.mail.smtp.SMTPOutputStream;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.api.email.Recipient;
+import org.simplejavamail.converter.EmailConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Speaks smtp with a local mail transfer agent over a pair of streams, e.g. the standard input and output of
+ * {@code sendmail -bs}. All mails of a batch are sent in separate transactions over the same streams.
+ * <p>
+ * If the mail transfer agent does not reply in time or the streams fail, the state of the smtp session is unknown.
+ * The session is aborted in this case and all further mails of the batch fail without being sent.
+ */
+class MailSmtpPipe implements LocalMailTransport.Session {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MailSmtpPipe.class);
+
+  private static final String[] IGNORED_HEADERS = {"Bcc", "Content-Length"};
+  private static final String CRLF = "\r\n";
+
+  private final String target;
+  private final BufferedReader input;
+  private final OutputStream output;
+  private final Duration readTimeout;
+  private final ScheduledExecutorService watchdog;
+  private final Runnable abort;
+  private final Closeable onClose;
+
+  private volatile boolean timedOut;
+  private boolean aborted;
+
+  MailSmtpPipe(String target, InputStream input, OutputStream output, Duration readTimeout,
+               ScheduledExecutorService watchdog, Runnable abort, Closeable onClose) throws IOException {
+    this.target = target;
+    this.input = new BufferedReader(new InputStreamReader(input, StandardCharsets.US_ASCII));
+    this.output = new BufferedOutputStream(output);
+    this.readTimeout = readTimeout;
+    this.watchdog = watchdog;
+    this.abort = abort;
+    this.onClose = onClose;
+
+    try {
+      expect(220);
+      command("EHLO localhost", 250);
+    } catch (IOException ex) {
+      abort();
+      throw ex;
+    }
+  }
+
+  @Override
+  public String getTarget() {
+    return target;
+  }
+
+  @Override
+  public void send(Email email) throws IOException {
+    if (aborted) {
+      throw new IOException("session with mail transfer agent " + target + " was aborted after a previous failure");
+    }
+
+    String from = checkAddress(email.getFromRecipient().getAddress());
+    List<String> recipients = new ArrayList<>();
+    for (Recipient recipient : email.getRecipients()) {
+      recipients.add(checkAddress(recipient.getAddress()));
+    }
+
+    try {
+      command("MAIL FROM:<" + from + ">", 250);
+      for (String recipient : recipients) {
+        command("RCPT TO:<" + recipient + ">", 250, 251);
+      }
+      command("DATA", 354);
+      writeData(EmailConverter.emailToMimeMessage(email));
+      expect(250);
+    } catch (RejectedException ex) {
+      // the mail transfer agent is still able to accept further mails
+      try {
+        command("RSET", 250);
+      } catch (IOException resetFailure) {
+        ex.addSuppressed(resetFailure);
+        abort();
+      }
+      throw ex;
+    } catch (IOException ex) {
+      abort();
+      throw ex;
+    }
+  }
+
+  /**
+   * Line breaks in an address would terminate the command and allow to inject further smtp commands.
+   */
+  private String checkAddress(String address) throws IOException {
+    if (address == null || address.indexOf('\r') >= 0 || address.indexOf('\n') >= 0) {
+      throw new IOException("invalid mail address: " + address);
+    }
+    return address;
+  }
+
+  private void writeData(MimeMessage message) throws IOException {
+    SMTPOutputStream data = new SMTPOutputStream(output);
+    try {
+      message.writeTo(data, IGNORED_HEADERS);
+    } catch (MessagingException ex) {
+      throw new IOException("failed to serialize mail", ex);
+    }
+    data.ensureAtBOL();
+    write(".");
+  }
+
+  private void command(String command, int... expected) throws IOException {
+    LOG.trace("send command {} to {}", command, target);
+    write(command);
+    expect(expected);
+  }
+
+  private void write(String line) throws IOException {
+    output.write((line + CRLF).getBytes(StandardCharsets.US_ASCII));
+    output.flush();
+  }
+
+  private void expect(int... expected) throws IOException {
+    String line;
+    do {
+      line = readLine();
+      if (line == null) {
+        throw new EOFException("mail transfer agent " + target + " closed the connection");
+      }
+    } while (line.length() > 3 && line.charAt(3) == '-');
+
+    int code = parseCode(line);
+    if (Arrays.stream(expected).noneMatch(c -> c == code)) {
+      throw new RejectedException(line);
+    }
+  }
+
+  private String readLine() throws IOException {
+    ScheduledFuture<?> deadline = watchdog.schedule(this::timeout, readTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    try {
+      String line = input.readLine();
+      checkTimeout();
+      return line;
+    } catch (IOException ex) {
+      checkTimeout();
+      throw ex;
+    } finally {
+      deadline.cancel(false);
+    }
+  }
+
+  private void timeout() {
+    LOG.warn("mail transfer agent {} did not reply within {}, the session is aborted", target, readTimeout);
+    timedOut = true;
+    abort.run();
+  }
+
+  private void checkTimeout() throws InterruptedIOException {
+    if (timedOut) {
+      throw new InterruptedIOException("mail transfer agent " + target + " did not reply within " + readTimeout);
+    }
+  }
+
+  private void abort() {
+    if (!aborted) {
+      aborted = true;
+      abort.run();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (!aborted) {
+        command("QUIT", 221);
+      }
+    } finally {
+      onClose.close();
+    }
+  }
+
+  /**
+   * The mail transfer agent has rejected a command with a valid reply.
+   */
+  private static class RejectedException extends IOException {
+    RejectedException(String reply) {
+      super("mail transfer agent replied with: " + reply);
+    }
+  }
+}
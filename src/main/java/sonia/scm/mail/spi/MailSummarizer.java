@@ -59,8 +59,8 @@ class MailSummarizer {
   private static final Map<Locale, ResourceBundle> SUBJECT_BUNDLES = Maps
     .asMap(new HashSet<>(Arrays.asList(ENGLISH, GERMAN)), locale -> getBundle("sonia.scm.mail.emailnotification.Subjects", locale));
 
-  private static final String MAIL_SUMMARY_TEMPLATE_PATH = "sonia/scm/mail/emailnotification/mail_summary.mustache";
-  private static final String SINGLE_QUEUED_TEMPLATE_PATH = "sonia/scm/mail/emailnotification/single_queued_mail.mustache";
+  static final String MAIL_SUMMARY_TEMPLATE_PATH = "sonia/scm/mail/emailnotification/mail_summary.mustache";
+  static final String SINGLE_QUEUED_TEMPLATE_PATH = "sonia/scm/mail/emailnotification/single_queued_mail.mustache";
   private static final Logger LOG = LoggerFactory.getLogger(MailSummarizer.class);
 
   @Getter(value = AccessLevel.PACKAGE)
@@ -68,6 +68,7 @@ class MailSummarizer {
   private final Map<String, MailSummaryQueue> summaryQueuesByUserId;
 
   private final Map<String, Task> sendMailTasksByUserId = new HashMap<>();
+  private boolean shutdown;
 
   private final MailSummaryQueueStore summaryQueueStore;
   private final MailContext mailContext;
@@ -137,7 +138,7 @@ class MailSummarizer {
       summaryQueuesByUserId.put(userId, userQueue);
     }
 
-    if (!sendMailTasksByUserId.containsKey(userId)) {
+    if (!shutdown && !sendMailTasksByUserId.containsKey(userId)) {
       this.scheduleSendMailTask(userId, userConfig.getSummaryFrequency().getCronExpression());
     }
 
@@ -280,6 +281,17 @@ class MailSummarizer {
     }
   }
 
+  /**
+   * Cancels all scheduled summary mails. A summary mail which is currently sent is finished first. Mails which are
+   * queued afterward are still stored and are summarized after the next start.
+   */
+  synchronized void shutdown() {
+    shutdown = true;
+    LOG.debug("cancel {} summary mail tasks", sendMailTasksByUserId.size());
+    sendMailTasksByUserId.values().forEach(Task::cancel);
+    sendMailTasksByUserId.clear();
+  }
+
   @Subscribe
   public synchronized void onUserDeleted(UserEvent event) {
     if (event.getEventType() != HandlerEventType.DELETE) {
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi;
+
+import sonia.scm.mail.api.MailTemplate;
+import sonia.scm.mail.api.MailTemplateProvider;
+import sonia.scm.mail.api.MailTemplateType;
+import sonia.scm.plugin.Extension;
+
+import java.util.Collection;
+import java.util.List;
+
+import static sonia.scm.mail.spi.MailSummarizer.MAIL_SUMMARY_TEMPLATE_PATH;
+import static sonia.scm.mail.spi.MailSummarizer.SINGLE_QUEUED_TEMPLATE_PATH;
+
+@Extension
+public class MailSummaryTemplates implements MailTemplateProvider {
+
+  @Override
+  public Collection<MailTemplate> templates() {
+    return List.of(
+      new MailTemplate(MAIL_SUMMARY_TEMPLATE_PATH, MailTemplateType.MARKDOWN_HTML),
+      new MailTemplate(SINGLE_QUEUED_TEMPLATE_PATH, MailTemplateType.MARKDOWN_HTML)
+    );
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi;
+
+import com.google.common.base.Stopwatch;
+import jakarta.inject.Inject;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sonia.scm.mail.api.MailTemplate;
+import sonia.scm.mail.api.MailTemplateProvider;
+import sonia.scm.mail.spi.content.MailContentRendererFactory;
+import sonia.scm.mail.spi.content.RenderedMailContent;
+import sonia.scm.plugin.Extension;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Resolves and renders all templates of the {@link MailTemplateProvider} extensions once during startup. This way
+ * the template engine, the markdown parser and the template cache are warm before the first mail is sent.
+ */
+@Extension
+public class MailTemplateWarmUp implements ServletContextListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MailTemplateWarmUp.class);
+
+  private final MailContentRendererFactory rendererFactory;
+  private final Set<MailTemplateProvider> templateProviders;
+
+  @Inject
+  MailTemplateWarmUp(MailContentRendererFactory rendererFactory, Set<MailTemplateProvider> templateProviders) {
+    this.rendererFactory = rendererFactory;
+    this.templateProviders = templateProviders;
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    warmUp();
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    // nothing to do
+  }
+
+  void warmUp() {
+    Stopwatch sw = Stopwatch.createStarted();
+    int rendered = 0;
+    for (MailTemplateProvider provider : templateProviders) {
+      for (MailTemplate template : provider.templates()) {
+        for (Locale locale : template.getLocales()) {
+          if (warmUp(template, locale)) {
+            rendered++;
+          }
+        }
+      }
+    }
+    LOG.debug("warmed up {} mail templates in {}", rendered, sw.stop());
+  }
+
+  private boolean warmUp(MailTemplate template, Locale locale) {
+    try {
+      RenderedMailContent content = rendererFactory
+        .createMailContentRenderer(template.getPath(), template.getType())
+        .renderAll(locale, Collections.emptyMap());
+      // request all formats, so that the markdown parser and the layout are initialized, too
+      content.getText();
+      content.getHtml();
+      return true;
+    } catch (Exception ex) {
+      LOG.warn("failed to warm up mail template {} for locale {}", template.getPath(), locale, ex);
+      return false;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi;
+
+import jakarta.xml.bind.annotation.XmlAccessType;
+import jakarta.xml.bind.annotation.XmlAccessorType;
+import jakarta.xml.bind.annotation.XmlRootElement;
+import jakarta.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.mail.internal.LocalDateTimeAdapter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Mail which is waiting in the outbox for its delivery. The mail is stored in the eml format.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@XmlRootElement(name = "outboxMail")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class OutboxMail {
+
+  private String eml;
+  private int attempts;
+  private MailPriority priority;
+
+  @XmlJavaTypeAdapter(LocalDateTimeAdapter.class)
+  private LocalDateTime createdAt = LocalDateTime.now();
+
+  OutboxMail(String eml, MailPriority priority) {
+    this(eml, 0, priority, LocalDateTime.now());
+  }
+
+  /**
+   * Returns the priority of the mail. Mails which were stored before priorities were introduced have the priority
+   * {@link MailPriority#NORMAL}.
+   */
+  public MailPriority getPriority() {
+    return priority != null ? priority : MailPriority.NORMAL;
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.simplejavamail.api.mailer.Mailer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A mailer which is used by concurrent deliveries. If the mailer is removed from the cache, e.g. because the ssl
+ * context has changed or it has expired, its connection pool is closed only after the last running delivery has
+ * released it. So a delivery never loses its connection, because another thread has replaced the mailer.
+ */
+class SharedMailer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SharedMailer.class);
+
+  private final Object name;
+  private final Mailer mailer;
+
+  private int leases;
+  private boolean retired;
+  private boolean closed;
+
+  SharedMailer(Object name, Mailer mailer) {
+    this.name = name;
+    this.mailer = mailer;
+  }
+
+  /**
+   * Returns a lease of the mailer, which must be closed after the delivery, or {@code null} if the mailer is already
+   * retired and must not be used anymore.
+   */
+  synchronized Lease lease() {
+    if (retired) {
+      return null;
+    }
+    leases++;
+    return new Lease() {
+      private boolean released;
+
+      @Override
+      public Mailer getMailer() {
+        return mailer;
+      }
+
+      @Override
+      public void close() {
+        synchronized (SharedMailer.this) {
+          if (!released) {
+            released = true;
+            leases--;
+            closeIfUnused();
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Marks the mailer as retired. The connection pool is closed immediately, if no delivery uses the mailer, otherwise
+   * after the last lease was closed.
+   */
+  synchronized void retire() {
+    retired = true;
+    closeIfUnused();
+  }
+
+  synchronized boolean isClosed() {
+    return closed;
+  }
+
+  private void closeIfUnused() {
+    if (retired && leases == 0 && !closed) {
+      closed = true;
+      LOG.debug("shutdown connection pool of mailer for {}", name);
+      mailer.shutdownConnectionPool();
+    }
+  }
+
+  interface Lease extends AutoCloseable {
+
+    Mailer getMailer();
+
+    @Override
+    void close();
+  }
+}
@@ -16,26 +16,26 @@
 
 package sonia.scm.mail.spi.content;
 
+import com.google.common.base.Suppliers;
 import org.commonmark.node.Node;
 import org.commonmark.parser.Parser;
-import sonia.scm.template.TemplateEngineFactory;
 
 import java.util.Locale;
+import java.util.function.Supplier;
 
 abstract class AbstractMarkdownContentRenderer extends AbstractTemplateContentRenderer {
 
   private static final Parser MARKDOWN_PARSER = Parser.builder().build();
 
-  AbstractMarkdownContentRenderer(TemplateEngineFactory templateEngineFactory) {
-    super(templateEngineFactory);
+  AbstractMarkdownContentRenderer(MailTemplateCache templateCache) {
+    super(templateCache);
   }
 
   @Override
-  public MailContent render(Context context) {
-    String markdown = renderAsString(context);
-    Node node = MARKDOWN_PARSER.parse(markdown);
-    return render(node, context.getPreferredLocale());
+  RenderedMailContent render(String markdown, Locale locale) {
+    Supplier<Node> node = Suppliers.memoize(() -> MARKDOWN_PARSER.parse(markdown));
+    return render(markdown, node, locale);
   }
 
-  abstract MailContent render(Node node, Locale locale);
+  abstract RenderedMailContent render(String markdown, Supplier<Node> node, Locale locale);
 }
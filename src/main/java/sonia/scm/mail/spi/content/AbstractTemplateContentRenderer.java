@@ -17,8 +17,6 @@
 package sonia.scm.mail.spi.content;
 
 import sonia.scm.template.Template;
-import sonia.scm.template.TemplateEngine;
-import sonia.scm.template.TemplateEngineFactory;
 
 import java.io.IOException;
 import java.io.StringWriter;
@@ -26,12 +24,24 @@ import java.util.Locale;
 
 abstract class AbstractTemplateContentRenderer implements ContentRenderer {
 
-  private final TemplateEngineFactory templateEngineFactory;
+  private final MailTemplateCache templateCache;
 
-  AbstractTemplateContentRenderer(TemplateEngineFactory templateEngineFactory) {
-    this.templateEngineFactory = templateEngineFactory;
+  AbstractTemplateContentRenderer(MailTemplateCache templateCache) {
+    this.templateCache = templateCache;
   }
 
+  @Override
+  public MailContent render(Context context) {
+    return renderAll(context).toMailContent();
+  }
+
+  @Override
+  public RenderedMailContent renderAll(Context context) {
+    return render(renderAsString(context), context.getPreferredLocale());
+  }
+
+  abstract RenderedMailContent render(String source, Locale locale);
+
   String renderAsString(Context context) {
     Template template = readTemplate(context);
     return renderTemplate(template, context.getTemplateModel());
@@ -51,15 +61,6 @@ abstract class AbstractTemplateContentRenderer implements ContentRenderer {
   }
 
   Template readTemplate(String templatePath, Locale preferredLocale) {
-    TemplateEngine engine = templateEngineFactory.getEngineByExtension(templatePath);
-    if (engine == null) {
-      throw new MailContentException("could not find template engine for " + templatePath);
-    }
-
-    try {
-      return engine.getTemplate(templatePath, preferredLocale);
-    } catch (IOException ex) {
-      throw new MailContentException("failed to read template " + templatePath, ex);
-    }
+    return templateCache.get(templatePath, preferredLocale);
   }
 }
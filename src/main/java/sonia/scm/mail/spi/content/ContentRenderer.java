@@ -22,6 +22,8 @@ interface ContentRenderer {
 
   MailContent render(Context context);
 
+  RenderedMailContent renderAll(Context context);
+
   class Context {
     private final String templatePath;
     private final Locale preferredLocale;
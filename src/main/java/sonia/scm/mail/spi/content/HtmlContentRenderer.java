@@ -17,17 +17,18 @@
 package sonia.scm.mail.spi.content;
 
 import jakarta.inject.Inject;
-import sonia.scm.template.TemplateEngineFactory;
+
+import java.util.Locale;
 
 class HtmlContentRenderer extends AbstractTemplateContentRenderer {
 
   @Inject
-  HtmlContentRenderer(TemplateEngineFactory templateEngineFactory) {
-    super(templateEngineFactory);
+  HtmlContentRenderer(MailTemplateCache templateCache) {
+    super(templateCache);
   }
 
   @Override
-  public MailContent render(Context context) {
-    return MailContent.html(renderAsString(context));
+  RenderedMailContent render(String source, Locale locale) {
+    return new RenderedMailContent(source, () -> null, () -> source);
   }
 }
@@ -31,10 +31,10 @@ import org.commonmark.renderer.text.CoreTextContentNodeRenderer;
 import org.commonmark.renderer.text.TextContentNodeRendererContext;
 import sonia.scm.config.ScmConfiguration;
 import sonia.scm.template.Template;
-import sonia.scm.template.TemplateEngineFactory;
 
 import java.util.Locale;
 import java.util.Set;
+import java.util.function.Supplier;
 
 class HtmlMarkdownContentRenderer extends AbstractMarkdownContentRenderer {
 
@@ -51,18 +51,18 @@ class HtmlMarkdownContentRenderer extends AbstractMarkdownContentRenderer {
   private final Template layoutTemplate;
 
   @Inject
-  HtmlMarkdownContentRenderer(TemplateEngineFactory templateEngineFactory, TextMarkdownContentRenderer textRenderer, ScmConfiguration configuration) {
-    super(templateEngineFactory);
+  HtmlMarkdownContentRenderer(MailTemplateCache templateCache, TextMarkdownContentRenderer textRenderer, ScmConfiguration configuration) {
+    super(templateCache);
     this.textRenderer = textRenderer;
     this.configuration = configuration;
     this.layoutTemplate = readTemplate(TEMPLATE_PATH, Locale.ENGLISH);
   }
 
   @Override
-  protected MailContent render(Node node, Locale locale) {
-    String text = textRenderer.renderAsString(node);
-    String html = renderHtml(node, locale);
-    return MailContent.textAndHtml(text, html);
+  RenderedMailContent render(String markdown, Supplier<Node> node, Locale locale) {
+    return new RenderedMailContent(
+      markdown, () -> textRenderer.renderAsString(node.get()), () -> renderHtml(node.get(), locale)
+    );
   }
 
   private String renderHtml(Node node, Locale locale) {
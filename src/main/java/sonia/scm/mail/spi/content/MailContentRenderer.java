@@ -32,4 +32,12 @@ public class MailContentRenderer {
     return contentRenderer.render(new ContentRenderer.Context(templatePath, preferredLocale, templateModel));
   }
 
+  /**
+   * Evaluates the template only once and returns all representations of it. Text and html are rendered lazily on
+   * first access.
+   */
+  public RenderedMailContent renderAll(Locale preferredLocale, Object templateModel) {
+    return contentRenderer.renderAll(new ContentRenderer.Context(templatePath, preferredLocale, templateModel));
+  }
+
 }
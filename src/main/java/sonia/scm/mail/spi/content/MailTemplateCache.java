@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi.content;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import sonia.scm.template.Template;
+import sonia.scm.template.TemplateEngine;
+import sonia.scm.template.TemplateEngineFactory;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Caches resolved templates by path and locale, so that the template engine and the locale specific variant of a
+ * template are looked up only once. The number of cached templates is bounded; if the bound is reached, the least
+ * recently used templates are evicted. The templates are read from the classpath of the plugins, which changes only
+ * with a restart, so cached templates never have to be invalidated.
+ */
+@Singleton
+public class MailTemplateCache {
+
+  private static final int MAX_TEMPLATES = 500;
+
+  private final TemplateEngineFactory templateEngineFactory;
+  private final Cache<TemplateKey, Template> templates = CacheBuilder.newBuilder()
+    .maximumSize(MAX_TEMPLATES)
+    .build();
+
+  private final Counter hits;
+  private final Counter misses;
+
+  @Inject
+  MailTemplateCache(TemplateEngineFactory templateEngineFactory, MeterRegistry meterRegistry) {
+    this.templateEngineFactory = templateEngineFactory;
+    this.hits = Counter.builder("scm.mail.template.cache")
+      .description("Lookups of mail templates")
+      .tag("result", "hit")
+      .register(meterRegistry);
+    this.misses = Counter.builder("scm.mail.template.cache")
+      .description("Lookups of mail templates")
+      .tag("result", "miss")
+      .register(meterRegistry);
+    Gauge.builder("scm.mail.template.cache.size", templates, Cache::size)
+      .description("Number of cached mail templates")
+      .register(meterRegistry);
+  }
+
+  Template get(String templatePath, Locale locale) {
+    TemplateKey key = new TemplateKey(templatePath, locale);
+    Template template = templates.getIfPresent(key);
+    if (template != null) {
+      hits.increment();
+      return template;
+    }
+
+    misses.increment();
+    template = resolve(templatePath, locale);
+    if (template != null) {
+      templates.put(key, template);
+    }
+    return template;
+  }
+
+  private Template resolve(String templatePath, Locale locale) {
+    TemplateEngine engine = templateEngineFactory.getEngineByExtension(templatePath);
+    if (engine == null) {
+      throw new MailContentException("could not find template engine for " + templatePath);
+    }
+
+    try {
+      return engine.getTemplate(templatePath, locale);
+    } catch (IOException ex) {
+      throw new MailContentException("failed to read template " + templatePath, ex);
+    }
+  }
+
+  @VisibleForTesting
+  long size() {
+    return templates.size();
+  }
+
+  private record TemplateKey(String path, Locale locale) {
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi.content;
+
+import com.google.common.base.Suppliers;
+
+import java.util.function.Supplier;
+
+/**
+ * All representations of a template which was evaluated once. The plain text is the raw output of the template, text
+ * and html are derived from it on first access, so formats which are never requested are never rendered.
+ */
+public class RenderedMailContent {
+
+  private final String plainText;
+  private final Supplier<String> text;
+  private final Supplier<String> html;
+
+  public RenderedMailContent(String plainText, Supplier<String> text, Supplier<String> html) {
+    this.plainText = plainText;
+    this.text = Suppliers.memoize(text::get);
+    this.html = Suppliers.memoize(html::get);
+  }
+
+  public String getPlainText() {
+    return plainText;
+  }
+
+  public String getText() {
+    return text.get();
+  }
+
+  public String getHtml() {
+    return html.get();
+  }
+
+  public MailContent toMailContent() {
+    return MailContent.textAndHtml(getText(), getHtml());
+  }
+}
@@ -17,17 +17,18 @@
 package sonia.scm.mail.spi.content;
 
 import jakarta.inject.Inject;
-import sonia.scm.template.TemplateEngineFactory;
+
+import java.util.Locale;
 
 class TextContentRenderer extends AbstractTemplateContentRenderer {
 
   @Inject
-  TextContentRenderer(TemplateEngineFactory templateEngineFactory) {
-    super(templateEngineFactory);
+  TextContentRenderer(MailTemplateCache templateCache) {
+    super(templateCache);
   }
 
   @Override
-  public MailContent render(Context context) {
-    return MailContent.text(renderAsString(context));
+  RenderedMailContent render(String source, Locale locale) {
+    return new RenderedMailContent(source, () -> source, () -> null);
   }
 }
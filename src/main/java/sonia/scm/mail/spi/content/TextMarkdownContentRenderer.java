@@ -25,10 +25,10 @@ import org.commonmark.renderer.Renderer;
 import org.commonmark.renderer.text.CoreTextContentNodeRenderer;
 import org.commonmark.renderer.text.TextContentNodeRendererContext;
 import org.commonmark.renderer.text.TextContentRenderer;
-import sonia.scm.template.TemplateEngineFactory;
 
 import java.util.Locale;
 import java.util.Set;
+import java.util.function.Supplier;
 
 class TextMarkdownContentRenderer extends AbstractMarkdownContentRenderer {
 
@@ -37,8 +37,8 @@ class TextMarkdownContentRenderer extends AbstractMarkdownContentRenderer {
     .build();
 
   @Inject
-  TextMarkdownContentRenderer(TemplateEngineFactory templateEngineFactory) {
-    super(templateEngineFactory);
+  TextMarkdownContentRenderer(MailTemplateCache templateCache) {
+    super(templateCache);
   }
 
   String renderAsString(Node node) {
@@ -46,8 +46,8 @@ class TextMarkdownContentRenderer extends AbstractMarkdownContentRenderer {
   }
 
   @Override
-  protected MailContent render(Node node, Locale locale) {
-    return MailContent.text(renderAsString(node));
+  RenderedMailContent render(String markdown, Supplier<Node> node, Locale locale) {
+    return new RenderedMailContent(markdown, () -> renderAsString(node.get()), () -> null);
   }
 
   private static class ImageNodeRenderer implements NodeRenderer {
@@ -38,6 +38,20 @@ export type UserMailConfiguration = {
   _links: Links;
 };
 
+export type MailRelay = {
+  host: string;
+  port: number;
+  weight: number;
+};
+
+export type MailDomainPolicy = {
+  domain: string;
+  relayHost?: string;
+  relayPort: number;
+  maxConcurrentDeliveries: number;
+  rateLimitPerSecond: number;
+};
+
 export type MailConfiguration = {
   host: string;
   port: number;
@@ -47,5 +61,24 @@ export type MailConfiguration = {
   subjectPrefix: string;
   transportStrategy: string;
   language: string;
+  relays?: MailRelay[];
+  domainPolicies?: MailDomainPolicy[];
+  asyncPoolSize: number;
+  dispatchQueueCapacity: number;
+  dispatchQueueMaxBytes: number;
+  dispatchOverflowPolicy: string;
+  shutdownTimeoutMillis: number;
+  parallelConnections: number;
+  retryMaxAttempts: number;
+  retryBackoffMillis: number;
+  circuitBreakerThreshold: number;
+  circuitBreakerOpenMillis: number;
+  rateLimitPerSecond: number;
+  rateLimitBurst: number;
+  maxConcurrentDeliveriesPerRelay: number;
+  coalesceRecipients: boolean;
+  maxRecipientsPerMail: number;
+  idempotencyTtlMillis: number;
+  pickupDirectory?: string;
   _links: Links;
 };
@@ -15,10 +15,10 @@
  */
 
 import React from "react";
-import { Checkbox, DropDown, InputField, validation as validator } from "@scm-manager/ui-components";
+import { Button, Checkbox, DropDown, InputField, validation as validator } from "@scm-manager/ui-components";
 import { withTranslation, WithTranslation } from "react-i18next";
 import MailConfigurationTest from "./MailConfigurationTest";
-import { MailConfiguration } from "./MailConfiguration";
+import { MailConfiguration, MailDomainPolicy, MailRelay } from "./MailConfiguration";
 
 type Props = WithTranslation & {
   initialConfiguration: MailConfiguration;
@@ -41,11 +41,17 @@ class MailConfigurationForm extends React.Component<Props, State> {
   }
 
   isStateValid = () => {
-    const { host, from, port, transportStrategy } = this.state;
-    return !!host && !!from && port > 0 && transportStrategy !== "" && validator.isMailValid(this.state["from"]);
+    const { host, from, port, transportStrategy, pickupDirectory } = this.state;
+    let transportValid = !!host && port > 0;
+    if (transportStrategy === "PICKUP_DIRECTORY") {
+      transportValid = !!pickupDirectory;
+    } else if (transportStrategy === "SENDMAIL") {
+      transportValid = true;
+    }
+    return transportValid && !!from && transportStrategy !== "" && validator.isMailValid(this.state["from"]);
   };
 
-  configChangeHandler = (value: string | boolean, name: string) => {
+  configChangeHandler = (value: string | boolean | MailRelay[] | MailDomainPolicy[], name: string) => {
     this.setState(
       {
         [name]: value
@@ -131,7 +137,7 @@ class MailConfigurationForm extends React.Component<Props, State> {
           <label className="label">{t("scm-mail-plugin.form.transportStrategy")}</label>
           <div className="control">
             <DropDown
-              options={["SMTP", "SMTP_TLS", "SMTPS"]}
+              options={["SMTP", "SMTP_TLS", "SMTPS", "PICKUP_DIRECTORY", "SENDMAIL"]}
               optionSelected={this.handleDropDownChange}
               preselectedOption={this.state.transportStrategy}
               disabled={readOnly}
@@ -142,6 +148,33 @@ class MailConfigurationForm extends React.Component<Props, State> {
     );
   };
 
+  renderOverflowPolicyDropDown = () => {
+    const { readOnly, t } = this.props;
+    const policies = ["BLOCK", "SPILL_TO_OUTBOX", "DROP_BULK"];
+    return (
+      <div className="column is-half">
+        <div className="field">
+          <label className="label">{t("scm-mail-plugin.form.dispatchOverflowPolicy")}</label>
+          <div className="control">
+            <DropDown
+              options={policies.map(policy => t("scm-mail-plugin.overflowPolicy." + policy))}
+              optionValues={policies}
+              preselectedOption={this.state.dispatchOverflowPolicy}
+              optionSelected={selection => {
+                this.setState(prevState => ({
+                  ...prevState,
+                  dispatchOverflowPolicy: selection
+                }));
+                this.configChangeHandler(selection, "dispatchOverflowPolicy");
+              }}
+              disabled={readOnly}
+            />
+          </div>
+        </div>
+      </div>
+    );
+  };
+
   renderLanguageDropDown = () => {
     const { readOnly, t } = this.props;
     return (
@@ -190,6 +223,134 @@ class MailConfigurationForm extends React.Component<Props, State> {
     );
   };
 
+  renderCheckboxForCoalescing = () => {
+    const { t } = this.props;
+    return (
+      <div className="column is-half">
+        <div className="field">
+          <label className="label">{t("scm-mail-plugin.form.coalesceRecipients")}</label>
+          <div className="control">
+            <Checkbox
+              label={t("scm-mail-plugin.form.coalesceRecipientsCheck")}
+              name="coalesceRecipients"
+              checked={this.state.coalesceRecipients}
+              onChange={(value: boolean, name: string) => {
+                this.configChangeHandler(value, name);
+              }}
+            />
+          </div>
+        </div>
+      </div>
+    );
+  };
+
+  relayChangeHandler = (index: number, name: keyof MailRelay, value: string) => {
+    const relays = [...(this.state.relays || [])];
+    relays[index] = { ...relays[index], [name]: value };
+    this.configChangeHandler(relays, "relays");
+  };
+
+  addRelay = () => {
+    const relays = [...(this.state.relays || []), { host: "", port: 25, weight: 1 }];
+    this.configChangeHandler(relays, "relays");
+  };
+
+  removeRelay = (index: number) => {
+    const relays = (this.state.relays || []).filter((relay, i) => i !== index);
+    this.configChangeHandler(relays, "relays");
+  };
+
+  renderRelays = () => {
+    const { t } = this.props;
+    const relays = this.state.relays || [];
+    return (
+      <div className="column is-full">
+        <div className="field">
+          <label className="label">{t("scm-mail-plugin.form.relays")}</label>
+          <p className="help">{t("scm-mail-plugin.form.relaysHelpText")}</p>
+        </div>
+        {relays.map((relay, index) => (
+          <div className="columns" key={index}>
+            {(["host", "port", "weight"] as (keyof MailRelay)[]).map(name => (
+              <div className="column" key={name}>
+                <InputField
+                  name={name}
+                  label={t("scm-mail-plugin.form.relay." + name)}
+                  value={relay[name]}
+                  onChange={(value: string) => this.relayChangeHandler(index, name, value)}
+                />
+              </div>
+            ))}
+            <div className="column is-narrow is-flex is-align-items-flex-end">
+              <Button label={t("scm-mail-plugin.form.removeRelay")} action={() => this.removeRelay(index)} />
+            </div>
+          </div>
+        ))}
+        <Button label={t("scm-mail-plugin.form.addRelay")} action={this.addRelay} />
+      </div>
+    );
+  };
+
+  domainPolicyChangeHandler = (index: number, name: keyof MailDomainPolicy, value: string) => {
+    const domainPolicies = [...(this.state.domainPolicies || [])];
+    domainPolicies[index] = { ...domainPolicies[index], [name]: value };
+    this.configChangeHandler(domainPolicies, "domainPolicies");
+  };
+
+  addDomainPolicy = () => {
+    const domainPolicies = [
+      ...(this.state.domainPolicies || []),
+      { domain: "", relayHost: "", relayPort: 25, maxConcurrentDeliveries: 0, rateLimitPerSecond: 0 }
+    ];
+    this.configChangeHandler(domainPolicies, "domainPolicies");
+  };
+
+  removeDomainPolicy = (index: number) => {
+    const domainPolicies = (this.state.domainPolicies || []).filter((policy, i) => i !== index);
+    this.configChangeHandler(domainPolicies, "domainPolicies");
+  };
+
+  renderDomainPolicies = () => {
+    const { t } = this.props;
+    const domainPolicies = this.state.domainPolicies || [];
+    const names: (keyof MailDomainPolicy)[] = [
+      "domain",
+      "relayHost",
+      "relayPort",
+      "maxConcurrentDeliveries",
+      "rateLimitPerSecond"
+    ];
+    return (
+      <div className="column is-full">
+        <div className="field">
+          <label className="label">{t("scm-mail-plugin.form.domainPolicies")}</label>
+          <p className="help">{t("scm-mail-plugin.form.domainPoliciesHelpText")}</p>
+        </div>
+        {domainPolicies.map((policy, index) => (
+          <div className="columns" key={index}>
+            {names.map(name => (
+              <div className="column" key={name}>
+                <InputField
+                  name={name}
+                  label={t("scm-mail-plugin.form.domainPolicy." + name)}
+                  value={policy[name]}
+                  onChange={(value: string) => this.domainPolicyChangeHandler(index, name, value)}
+                />
+              </div>
+            ))}
+            <div className="column is-narrow is-flex is-align-items-flex-end">
+              <Button
+                label={t("scm-mail-plugin.form.removeDomainPolicy")}
+                action={() => this.removeDomainPolicy(index)}
+              />
+            </div>
+          </div>
+        ))}
+        <Button label={t("scm-mail-plugin.form.addDomainPolicy")} action={this.addDomainPolicy} />
+      </div>
+    );
+  };
+
   render() {
     const fields = ["host", "port"].map(name => {
       return this.renderInputField(name);
@@ -201,7 +362,26 @@ class MailConfigurationForm extends React.Component<Props, State> {
     fields.push(this.renderPasswordInpuField());
     fields.push(this.renderLanguageDropDown());
     fields.push(this.renderTransportStrategyDropDown());
+    fields.push(this.renderInputField("pickupDirectory"));
     fields.push(this.renderCheckboxForDefaultSender());
+    fields.push(this.renderRelays());
+    fields.push(this.renderInputField("asyncPoolSize"));
+    fields.push(this.renderInputField("dispatchQueueCapacity"));
+    fields.push(this.renderInputField("dispatchQueueMaxBytes"));
+    fields.push(this.renderOverflowPolicyDropDown());
+    fields.push(this.renderInputField("shutdownTimeoutMillis"));
+    fields.push(this.renderInputField("parallelConnections"));
+    fields.push(this.renderInputField("retryMaxAttempts"));
+    fields.push(this.renderInputField("retryBackoffMillis"));
+    fields.push(this.renderInputField("circuitBreakerThreshold"));
+    fields.push(this.renderInputField("circuitBreakerOpenMillis"));
+    fields.push(this.renderInputField("rateLimitPerSecond"));
+    fields.push(this.renderInputField("rateLimitBurst"));
+    fields.push(this.renderInputField("maxConcurrentDeliveriesPerRelay"));
+    fields.push(this.renderDomainPolicies());
+    fields.push(this.renderCheckboxForCoalescing());
+    fields.push(this.renderInputField("maxRecipientsPerMail"));
+    fields.push(this.renderInputField("idempotencyTtlMillis"));
 
     return (
       <>
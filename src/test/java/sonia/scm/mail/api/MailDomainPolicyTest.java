@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.api;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailDomainPolicyTest {
+
+  @ParameterizedTest
+  @CsvSource(value = {
+    "hitchhiker.com,true",
+    "HITCHHIKER.com,true",
+    "mail.hitchhiker.com,true",
+    "nothitchhiker.com,false",
+    "hitchhiker.org,false"
+  })
+  void shouldMatchDomainAndSubdomains(String recipientDomain, boolean expected) {
+    MailDomainPolicy policy = new MailDomainPolicy("hitchhiker.com", null, 0, 0, 0);
+
+    assertThat(policy.matches(recipientDomain)).isEqualTo(expected);
+  }
+
+  @Test
+  void shouldNotMatchWithoutDomain() {
+    assertThat(new MailDomainPolicy().matches("hitchhiker.com")).isFalse();
+  }
+
+  @Test
+  void shouldCreateRelay() {
+    MailDomainPolicy policy = new MailDomainPolicy("hitchhiker.com", "eddie", 2525, 0, 0);
+
+    assertThat(policy.createRelay()).hasToString("eddie:2525");
+  }
+
+  @Test
+  void shouldNotCreateRelayWithoutHost() {
+    MailDomainPolicy policy = new MailDomainPolicy("hitchhiker.com", null, 0, 0, 0);
+
+    assertThat(policy.createRelay()).isNull();
+  }
+}
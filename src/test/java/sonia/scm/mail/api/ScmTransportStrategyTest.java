@@ -17,6 +17,7 @@
 package sonia.scm.mail.api;
 
 
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 import org.simplejavamail.api.mailer.config.TransportStrategy;
@@ -31,4 +32,10 @@ class ScmTransportStrategyTest {
     ScmTransportStrategy strategy = ScmTransportStrategy.valueOf(scmEnumName);
     assertThat(strategy.getTransportStrategy()).isEqualTo(TransportStrategy.valueOf(dependencyEnumName));
   }
+
+  @Test
+  void shouldNotMapLocalTransportsToSmtp() {
+    assertThat(ScmTransportStrategy.PICKUP_DIRECTORY.getTransportStrategy()).isNull();
+    assertThat(ScmTransportStrategy.SENDMAIL.getTransportStrategy()).isNull();
+  }
 }
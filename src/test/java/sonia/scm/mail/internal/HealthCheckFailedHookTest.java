@@ -24,6 +24,7 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import sonia.scm.config.ScmConfiguration;
+import sonia.scm.mail.api.MailPriority;
 import sonia.scm.mail.api.MailSendBatchException;
 import sonia.scm.mail.api.MailService;
 import sonia.scm.mail.api.MailTemplateType;
@@ -83,6 +84,8 @@ public class HealthCheckFailedHookTest {
     healthCheckFailedHook.handle(healthCheckEvent);
 
     verify(mailService).emailTemplateBuilder();
+    verify(envelopeBuilder).withPriority(MailPriority.CRITICAL);
+    verify(envelopeBuilder).withIdempotencyKey("health-check-failed/1/1");
   }
 
   @Test
@@ -33,16 +33,27 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import sonia.scm.mail.api.Category;
 import sonia.scm.mail.api.MailConfiguration;
 import sonia.scm.mail.api.MailContext;
+import sonia.scm.mail.api.MailDeadLetter;
+import sonia.scm.mail.api.MailDomainPolicy;
+import sonia.scm.mail.api.MailOverflowPolicy;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.mail.api.MailRelay;
+import sonia.scm.mail.api.MailRelayStatus;
 import sonia.scm.mail.api.MailService;
 import sonia.scm.mail.api.ScmTransportStrategy;
 import sonia.scm.mail.api.SummaryFrequency;
 import sonia.scm.mail.api.Topic;
 import sonia.scm.mail.api.UserMailConfiguration;
+import sonia.scm.mail.spi.MailCircuitBreakerRegistry;
+import sonia.scm.mail.spi.MailDeadLetterQueue;
 import sonia.scm.user.User;
 import sonia.scm.web.RestDispatcher;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
 
 import static java.util.Collections.singleton;
 import static java.util.Optional.of;
@@ -64,6 +75,10 @@ class MailConfigurationResourceTest {
   MailService mailService;
   @Mock
   MailContext context;
+  @Mock
+  MailCircuitBreakerRegistry circuitBreakers;
+  @Mock
+  MailDeadLetterQueue deadLetterQueue;
 
   RestDispatcher dispatcher = new RestDispatcher();
 
@@ -74,7 +89,9 @@ class MailConfigurationResourceTest {
   @BeforeEach
   void setupResource() {
     MailConfigurationMapperImpl mapper = new MailConfigurationMapperImpl();
-    MailConfigurationResource resource = new MailConfigurationResource(mailService, context, mapper);
+    MailConfigurationResource resource = new MailConfigurationResource(
+      mailService, context, mapper, circuitBreakers, deadLetterQueue
+    );
     dispatcher.addSingletonResource(resource);
   }
 
@@ -107,6 +124,57 @@ class MailConfigurationResourceTest {
         .contains("\"topics\":[{\"category\":{\"name\":\"hitchhiker\"},\"name\":\"towel\"}]");
     }
 
+    @Test
+    void shouldGetRelayStatus() throws URISyntaxException, UnsupportedEncodingException {
+      when(circuitBreakers.getStatus())
+        .thenReturn(singleton(new MailRelayStatus("hog.org:25", MailRelayStatus.CircuitState.CLOSED, 2, null)));
+
+      dispatcher.invoke(create("GET", "/v2/plugins/mail/relays"), response);
+
+      assertThat(response.getStatus()).isEqualTo(200);
+      assertThat(response.getContentAsString())
+        .contains("\"_links\":{\"self\":{\"href\":\"/v2/plugins/mail/relays\"}}")
+        .contains("\"relay\":\"hog.org:25\"")
+        .contains("\"state\":\"CLOSED\"")
+        .contains("\"consecutiveFailures\":2");
+    }
+
+    @Test
+    void shouldGetDeadLetters() throws URISyntaxException, UnsupportedEncodingException {
+      when(deadLetterQueue.getAll()).thenReturn(List.of(new MailDeadLetter(
+        "42", "Don't panic", List.of("dent@hitchhiker.com"), MailPriority.BULK, 10, "hog.org:25",
+        "Connection refused", Instant.now()
+      )));
+
+      dispatcher.invoke(create("GET", "/v2/plugins/mail/dead-letters"), response);
+
+      assertThat(response.getStatus()).isEqualTo(200);
+      assertThat(response.getContentAsString())
+        .contains("\"_links\":{\"self\":{\"href\":\"/v2/plugins/mail/dead-letters\"}}")
+        .contains("\"id\":\"42\"")
+        .contains("\"recipients\":[\"dent@hitchhiker.com\"]")
+        .contains("\"priority\":\"BULK\"")
+        .contains("\"attempts\":10")
+        .contains("\"relay\":\"hog.org:25\"")
+        .contains("\"reason\":\"Connection refused\"");
+    }
+
+    @Test
+    void shouldReplayGivenDeadLetters() throws URISyntaxException {
+      dispatcher.invoke(create("POST", "/v2/plugins/mail/dead-letters/replay?id=21&id=42"), response);
+
+      assertThat(response.getStatus()).isEqualTo(204);
+      verify(deadLetterQueue).replay(List.of("21", "42"));
+    }
+
+    @Test
+    void shouldPurgeAllDeadLetters() throws URISyntaxException {
+      dispatcher.invoke(create("DELETE", "/v2/plugins/mail/dead-letters"), response);
+
+      assertThat(response.getStatus()).isEqualTo(204);
+      verify(deadLetterQueue).purge(Collections.emptyList());
+    }
+
     @Test
     void shouldReturnConfigurationForUser() throws URISyntaxException, UnsupportedEncodingException {
       UserMailConfiguration userMailConfiguration = new UserMailConfiguration();
@@ -245,6 +313,70 @@ class MailConfigurationResourceTest {
         }
       ));
     }
+    @Test
+    void shouldKeepStoredSettingsIfMissingInRequest() throws URISyntaxException {
+      MailConfiguration stored = new MailConfiguration("old/", 25, ScmTransportStrategy.SMTP, "old", "old", "hitchhike", "old");
+      stored.setAsyncPoolSize(8);
+      stored.setRetryMaxAttempts(5);
+      stored.setIdempotencyTtlMillis(42_000);
+      when(context.getConfiguration()).thenReturn(stored);
+
+      dispatcher.invoke(
+        create("PUT", "/v2/plugins/mail/config")
+          .contentType("application/json")
+          .content(("{" +
+            "\"host\":\"http://hog,org/\"," +
+            "\"port\":25," +
+            "\"password\":\"__DUMMY__\"," +
+            "\"from\":\"marvin@hog.org\"," +
+            "\"retryMaxAttempts\":2" +
+            "}").getBytes()),
+        response);
+
+      assertThat(response.getStatus()).isEqualTo(204);
+
+      verify(context).store(argThat(
+        configuration -> {
+          assertThat(configuration.getAsyncPoolSize()).isEqualTo(8);
+          assertThat(configuration.getRetryMaxAttempts()).isEqualTo(2);
+          assertThat(configuration.getIdempotencyTtlMillis()).isEqualTo(42_000);
+          return true;
+        }
+      ));
+    }
+
+    @Test
+    void shouldKeepStoredRelaysAndPoliciesIfMissingInRequest() throws URISyntaxException {
+      MailConfiguration stored = new MailConfiguration("old/", 25, ScmTransportStrategy.SMTP, "old", "old", "hitchhike", "old");
+      stored.setDispatchOverflowPolicy(MailOverflowPolicy.DROP_BULK);
+      stored.setRelays(List.of(new MailRelay("relay.hog.org", 587, 2)));
+      stored.setDomainPolicies(List.of(new MailDomainPolicy("hog.org", "relay.hog.org", 587, 4, 10)));
+      stored.setPickupDirectory("/var/spool/mail");
+      when(context.getConfiguration()).thenReturn(stored);
+
+      dispatcher.invoke(
+        create("PUT", "/v2/plugins/mail/config")
+          .contentType("application/json")
+          .content(("{" +
+            "\"host\":\"http://hog,org/\"," +
+            "\"port\":25," +
+            "\"password\":\"__DUMMY__\"," +
+            "\"from\":\"marvin@hog.org\"" +
+            "}").getBytes()),
+        response);
+
+      assertThat(response.getStatus()).isEqualTo(204);
+
+      verify(context).store(argThat(
+        configuration -> {
+          assertThat(configuration.getDispatchOverflowPolicy()).isEqualTo(MailOverflowPolicy.DROP_BULK);
+          assertThat(configuration.getRelays()).containsExactly(new MailRelay("relay.hog.org", 587, 2));
+          assertThat(configuration.getDomainPolicies()).extracting(MailDomainPolicy::getDomain).containsExactly("hog.org");
+          assertThat(configuration.getPickupDirectory()).isEqualTo("/var/spool/mail");
+          return true;
+        }
+      ));
+    }
   }
 
   @Nested
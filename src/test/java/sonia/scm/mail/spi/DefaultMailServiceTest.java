@@ -17,10 +17,15 @@
 package sonia.scm.mail.spi;
 
 import com.google.common.collect.ImmutableSet;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import jakarta.inject.Provider;
+import jakarta.mail.Message;
 import org.apache.shiro.subject.SimplePrincipalCollection;
 import org.apache.shiro.subject.Subject;
 import org.apache.shiro.util.ThreadContext;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -28,13 +33,18 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.simplejavamail.MailException;
 import org.simplejavamail.api.email.Email;
 import org.simplejavamail.api.email.Recipient;
 import org.simplejavamail.api.mailer.Mailer;
+import org.simplejavamail.email.EmailBuilder;
 import sonia.scm.mail.api.Category;
 import sonia.scm.mail.api.MailConfiguration;
 import sonia.scm.mail.api.MailContext;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.mail.api.MailRelay;
 import sonia.scm.mail.api.MailSendBatchException;
+import sonia.scm.mail.api.MailSendException;
 import sonia.scm.mail.api.MailService;
 import sonia.scm.mail.api.MailTemplateType;
 import sonia.scm.mail.api.ScmRecipient;
@@ -44,7 +54,9 @@ import sonia.scm.mail.api.UserMailConfiguration;
 import sonia.scm.mail.spi.content.MailContent;
 import sonia.scm.mail.spi.content.MailContentRenderer;
 import sonia.scm.mail.spi.content.MailContentRendererFactory;
+import sonia.scm.mail.spi.content.RenderedMailContent;
 import sonia.scm.schedule.Scheduler;
+import sonia.scm.schedule.Task;
 import sonia.scm.trace.Span;
 import sonia.scm.trace.Tracer;
 import sonia.scm.user.DisplayUser;
@@ -62,15 +74,23 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static java.util.Optional.of;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -98,6 +118,12 @@ class DefaultMailServiceTest {
   @Mock
   private MailSummaryQueueStore summaryQueueStore;
 
+  @Mock
+  private MailOutboxStore outboxStore;
+
+  @Mock
+  private MailDeadLetterStore deadLetterStore;
+
   @Mock
   private Scheduler scheduler;
 
@@ -109,6 +135,10 @@ class DefaultMailServiceTest {
   @Mock
   private Mailer mailer;
 
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private final List<DefaultMailService> services = new ArrayList<>();
+
   private MailService mailService;
 
   @Captor
@@ -119,10 +149,17 @@ class DefaultMailServiceTest {
 
   @BeforeEach
   void setUpMocks() {
-    this.mailService = new TestingMailService();
+    this.mailService = createService(new TestingMailSender());
     lenient().when(context.getConfiguration()).thenReturn(configuration);
     lenient().when(mailer.sendMail(emailCaptor.capture())).thenReturn(CompletableFuture.completedFuture(null));
     lenient().when(tracer.span("Mail")).thenReturn(span);
+    lenient().when(outboxStore.add(any(Email.class), any(MailPriority.class))).thenAnswer(ic -> UUID.randomUUID().toString());
+    lenient().when(scheduler.schedule(anyString(), any(Runnable.class))).thenAnswer(ic -> mock(Task.class));
+  }
+
+  @AfterEach
+  void shutdownServices() {
+    services.forEach(DefaultMailService::shutdown);
   }
 
   @Test
@@ -145,6 +182,212 @@ class DefaultMailServiceTest {
     assertThat(email.getPlainText()).isEqualTo("Don't Panic");
   }
 
+  @Test
+  void shouldRenderContentOncePerLocale() throws MailSendBatchException {
+    configureMailer();
+    mockContentRenderer(Locale.ENGLISH, "my-template", "model", "Don't Panic");
+    mockContentRenderer(Locale.GERMAN, "my-template", "model", "Keine Panik");
+
+    mailService.emailTemplateBuilder()
+      .toAddress(Locale.ENGLISH, "Tricia McMillan", "tricia.mcmillan@hitchhiker.com")
+      .toAddress(Locale.ENGLISH, "Arthur Dent", "arthur.dent@hitchhiker.com")
+      .toAddress(Locale.GERMAN, "Zaphod Beeblebrox", "zaphod.beeblebrox@hitchhiker.com")
+      .withSubject("Hello World")
+      .withTemplate("my-template", MailTemplateType.TEXT)
+      .andModel("model")
+      .send();
+
+    assertThat(emailCaptor.getAllValues())
+      .extracting(Email::getPlainText)
+      .containsExactlyInAnyOrder("Don't Panic", "Don't Panic", "Keine Panik");
+    verify(mailContentRenderer).renderAll(Locale.ENGLISH, "model");
+    verify(mailContentRenderer).renderAll(Locale.GERMAN, "model");
+  }
+
+  @Test
+  void shouldDropMailsWithSameIdempotencyKey() throws MailSendBatchException {
+    configureMailer();
+    when(configuration.getIdempotencyTtlMillis()).thenReturn(60_000L);
+    mockContentRenderer(Locale.ENGLISH, "my-template", "model", "Don't Panic");
+
+    for (int i = 0; i < 2; i++) {
+      mailService.emailTemplateBuilder()
+        .toAddress(Locale.ENGLISH, "Tricia McMillan", "tricia.mcmillan@hitchhiker.com")
+        .withIdempotencyKey("event-42")
+        .withSubject("Hello World")
+        .withTemplate("my-template", MailTemplateType.TEXT)
+        .andModel("model")
+        .send();
+    }
+
+    verify(mailer).sendMail(any(Email.class));
+    verify(mailContentRenderer).renderAll(Locale.ENGLISH, "model");
+  }
+
+  @Test
+  void shouldNotDropRetryWithSameIdempotencyKeyAfterFailure() throws MailSendBatchException {
+    configureMailer();
+    when(configuration.getIdempotencyTtlMillis()).thenReturn(60_000L);
+    when(mailer.sendMail(any(Email.class)))
+      .thenThrow(new MailerException("no such user"))
+      .thenReturn(CompletableFuture.completedFuture(null));
+    mockContentRenderer(Locale.ENGLISH, "my-template", "model", "Don't Panic");
+
+    assertThatThrownBy(() -> sendWithIdempotencyKey("event-42").send())
+      .isInstanceOf(MailSendBatchException.class);
+    sendWithIdempotencyKey("event-42").send();
+
+    verify(mailer, times(2)).sendMail(any(Email.class));
+  }
+
+  @Test
+  void shouldNotDropRetryWithSameIdempotencyKeyAfterAsynchronousFailure() {
+    configureMailer();
+    when(configuration.getIdempotencyTtlMillis()).thenReturn(60_000L);
+    when(mailer.sendMail(any(Email.class)))
+      .thenThrow(new MailerException("relay is down"))
+      .thenReturn(CompletableFuture.completedFuture(null));
+    mockContentRenderer(Locale.ENGLISH, "my-template", "model", "Don't Panic");
+
+    CompletableFuture<Void> failed = sendWithIdempotencyKey("event-42").sendAsync();
+    assertThatThrownBy(failed::join).isInstanceOf(CompletionException.class);
+    sendWithIdempotencyKey("event-42").sendAsync().join();
+
+    verify(mailer, times(2)).sendMail(any(Email.class));
+  }
+
+  @Test
+  void shouldDropRetryWithSameIdempotencyKeyAfterPartialFailure() throws MailSendBatchException {
+    configureMailer();
+    when(configuration.getIdempotencyTtlMillis()).thenReturn(60_000L);
+    when(mailer.sendMail(any(Email.class)))
+      .thenReturn(CompletableFuture.completedFuture(null))
+      .thenThrow(new MailerException("no such user"));
+    mockContentRenderer(Locale.ENGLISH, "my-template", "model", "Don't Panic");
+
+    assertThatThrownBy(() -> mailService.emailTemplateBuilder()
+      .toAddress(Locale.ENGLISH, "Tricia McMillan", "tricia.mcmillan@hitchhiker.com")
+      .toAddress(Locale.ENGLISH, "Arthur Dent", "arthur.dent@hitchhiker.com")
+      .withIdempotencyKey("event-42")
+      .withSubject("Hello World")
+      .withTemplate("my-template", MailTemplateType.TEXT)
+      .andModel("model")
+      .send()
+    ).isInstanceOfSatisfying(MailSendBatchException.class, ex -> assertThat(ex.getSendExceptions()).hasSize(1));
+    sendWithIdempotencyKey("event-42").send();
+
+    verify(mailer, times(2)).sendMail(any(Email.class));
+  }
+
+  private MailService.MailBuilder sendWithIdempotencyKey(String key) {
+    return mailService.emailTemplateBuilder()
+      .toAddress(Locale.ENGLISH, "Tricia McMillan", "tricia.mcmillan@hitchhiker.com")
+      .withIdempotencyKey(key)
+      .withSubject("Hello World")
+      .withTemplate("my-template", MailTemplateType.TEXT)
+      .andModel("model");
+  }
+
+  @Test
+  void shouldSendEmailAsynchronously() {
+    configureMailer();
+    mockContentRenderer(Locale.ENGLISH, "my-template", "model", "Don't Panic");
+
+    mailService.emailTemplateBuilder()
+      .toAddress(Locale.ENGLISH, "Tricia McMillan", "tricia.mcmillan@hitchhiker.com")
+      .withSubject("Hello World")
+      .withTemplate("my-template", MailTemplateType.TEXT)
+      .andModel("model")
+      .sendAsync()
+      .join();
+
+    Email email = emailCaptor.getValue();
+
+    assertRecipient(email, "Tricia McMillan", "tricia.mcmillan@hitchhiker.com");
+    assertThat(email.getPlainText()).isEqualTo("Don't Panic");
+    verify(outboxStore).add(email, MailPriority.NORMAL);
+    verify(outboxStore).remove(anyString());
+  }
+
+  @Test
+  void shouldSendCriticalMailsInTheirOwnLane() {
+    configureMailer();
+    mockContentRenderer(Locale.ENGLISH, "my-template", "model", "Don't Panic");
+
+    mailService.emailTemplateBuilder()
+      .toAddress(Locale.ENGLISH, "Tricia McMillan", "tricia.mcmillan@hitchhiker.com")
+      .withPriority(MailPriority.CRITICAL)
+      .withSubject("Hello World")
+      .withTemplate("my-template", MailTemplateType.TEXT)
+      .andModel("model")
+      .sendAsync()
+      .join();
+
+    verify(outboxStore).add(any(Email.class), eq(MailPriority.CRITICAL));
+    verify(span).label("priority", "CRITICAL");
+  }
+
+  @Test
+  void shouldMoveFailedMailsOfDirectSendToDeadLetterStore() {
+    configureMailer();
+    when(mailer.sendMail(any(Email.class))).thenThrow(new MailerException("no such user"));
+    Email email = createEmail("dent@hitchhiker.com");
+
+    assertThatThrownBy(() -> mailService.send(email)).isInstanceOf(MailSendBatchException.class);
+
+    verify(deadLetterStore).add(
+      eq(email), eq(MailPriority.NORMAL), eq(1), argThat(failure -> failure.getRelay() != null)
+    );
+  }
+
+  @Test
+  void shouldNotMoveFailedMailsWithCustomConfigurationToDeadLetterStore() {
+    MailConfiguration custom = mock(MailConfiguration.class);
+    when(custom.isValid()).thenReturn(Boolean.TRUE);
+    when(mailer.sendMail(any(Email.class))).thenThrow(new MailerException("no such user"));
+
+    assertThatThrownBy(() -> mailService.send(custom, createEmail("dent@hitchhiker.com")))
+      .isInstanceOf(MailSendBatchException.class);
+
+    verifyNoInteractions(deadLetterStore);
+  }
+
+  @Test
+  void shouldNotMoveFailedMailsOfBuilderWithCustomConfigurationToDeadLetterStore() {
+    MailConfiguration custom = mock(MailConfiguration.class);
+    when(custom.isValid()).thenReturn(Boolean.TRUE);
+    when(mailer.sendMail(any(Email.class))).thenThrow(new MailerException("no such user"));
+    mockContentRenderer(Locale.ENGLISH, "my-template", "model", "Don't Panic");
+
+    assertThatThrownBy(() -> mailService.emailTemplateBuilder()
+      .withConfiguration(custom)
+      .toAddress(Locale.ENGLISH, "Tricia McMillan", "tricia.mcmillan@hitchhiker.com")
+      .withSubject("Hello World")
+      .withTemplate("my-template", MailTemplateType.TEXT)
+      .andModel("model")
+      .send()
+    ).isInstanceOf(MailSendBatchException.class);
+
+    verifyNoInteractions(deadLetterStore);
+  }
+
+  @Test
+  void shouldMoveFailedMailsOfBuilderToDeadLetterStore() {
+    configureMailer();
+    when(mailer.sendMail(any(Email.class))).thenThrow(new MailerException("no such user"));
+    mockContentRenderer(Locale.ENGLISH, "my-template", "model", "Don't Panic");
+
+    assertThatThrownBy(() -> mailService.emailTemplateBuilder()
+      .toAddress(Locale.ENGLISH, "Tricia McMillan", "tricia.mcmillan@hitchhiker.com")
+      .withSubject("Hello World")
+      .withTemplate("my-template", MailTemplateType.TEXT)
+      .andModel("model")
+      .send()
+    ).isInstanceOf(MailSendBatchException.class);
+
+    verify(deadLetterStore).add(any(Email.class), eq(MailPriority.NORMAL), eq(1), any(MailSendException.class));
+  }
+
   @Test
   void shouldTraceCall() throws MailSendBatchException {
     configureMailer();
@@ -225,7 +468,6 @@ class DefaultMailServiceTest {
     when(config.getFrom()).thenReturn("test@test.de");
     when(config.isValid()).thenReturn(Boolean.TRUE);
     when(config.getLanguage()).thenReturn("de");
-    when(mailer.validate(any(Email.class))).thenReturn(Boolean.TRUE);
 
     mailService.emailTemplateBuilder()
       .withConfiguration(config)
@@ -388,14 +630,13 @@ class DefaultMailServiceTest {
     SSLSocketFactory socketFactory = mock(SSLSocketFactory.class);
     when(sslContext.getSocketFactory()).thenReturn(socketFactory);
 
-    DefaultMailService service = new DefaultMailService(
-      context, userDisplayManager, mailContentRendererFactory, new MailSender(tracer, sslContextProvider), summaryQueueStore, scheduler
-    );
+    DefaultMailService service = createService(new MailSender(tracer, sslContextProvider, new MailCircuitBreakerRegistry(), meterRegistry));
 
     Mailer mailer = service
       .getMailSender()
       .createMailer(
-        new MailConfiguration("host", 443, ScmTransportStrategy.SMTPS, "trillian", "Testmail")
+        new MailConfiguration("host", 443, ScmTransportStrategy.SMTPS, "trillian", "Testmail"),
+        new MailRelay("host", 443, 1)
       );
 
     Properties props = mailer.getSession().getProperties();
@@ -404,6 +645,38 @@ class DefaultMailServiceTest {
       .containsEntry("mail.smtps.ssl.socketFactory", socketFactory);
   }
 
+  @Test
+  void shouldCoalesceRecipientsWithSameLocale() throws MailSendBatchException {
+    configureMailer();
+    when(configuration.isCoalesceRecipients()).thenReturn(true);
+    when(configuration.getMaxRecipientsPerMail()).thenReturn(2);
+    mockContentRenderer(Locale.ENGLISH, "my-template", "model", "Don't Panic");
+    mockContentRenderer(Locale.GERMAN, "my-template", "model", "Keine Panik");
+
+    mailService.emailTemplateBuilder()
+      .toAddress(Locale.ENGLISH, "Tricia McMillan", "tricia.mcmillan@hitchhiker.com")
+      .toAddress(Locale.ENGLISH, "Arthur Dent", "arthur.dent@hitchhiker.com")
+      .toAddress(Locale.ENGLISH, "Ford Prefect", "ford.prefect@hitchhiker.com")
+      .toAddress(Locale.GERMAN, "Zaphod Beeblebrox", "zaphod.beeblebrox@hitchhiker.com")
+      .withSubject("Hello World")
+      .withTemplate("my-template", MailTemplateType.TEXT)
+      .andModel("model")
+      .send();
+
+    List<Email> emails = emailCaptor.getAllValues();
+    assertThat(emails).hasSize(3);
+    assertThat(emails)
+      .extracting(email -> email.getRecipients().size())
+      .containsExactlyInAnyOrder(2, 1, 1);
+    assertThat(emails.stream().filter(email -> email.getRecipients().size() == 2).findFirst())
+      .hasValueSatisfying(email -> assertThat(email.getRecipients())
+        .extracting(Recipient::getType)
+        .containsOnly(Message.RecipientType.BCC)
+      );
+    verify(mailContentRenderer).renderAll(Locale.ENGLISH, "model");
+    verify(mailContentRenderer).renderAll(Locale.GERMAN, "model");
+  }
+
   @Test
   void shouldBuildEmailsForRecipients() throws MailSendBatchException {
     mockContentRenderer(Locale.ENGLISH, "my-template", "model", "TEST CONTENT");
@@ -419,9 +692,7 @@ class DefaultMailServiceTest {
     User adams = UserTestData.createAdams();
     mockUserWithConfiguration(adams, Locale.ENGLISH);
 
-    DefaultMailService service = new DefaultMailService(
-      context, userDisplayManager, mailContentRendererFactory, new MailSender(tracer, sslContextProvider), summaryQueueStore, scheduler
-    );
+    DefaultMailService service = createService(new MailSender(tracer, sslContextProvider, new MailCircuitBreakerRegistry(), meterRegistry));
     MailService.EnvelopeBuilder envelopeBuilder = service.emailTemplateBuilder();
     List.of(trillian, dent, adams).forEach(user -> envelopeBuilder.toUser(user.getId()));
     envelopeBuilder
@@ -435,6 +706,7 @@ class DefaultMailServiceTest {
     assertThat(service.getMailSummarizer().getSummaryQueuesByUserId().keySet()).isEqualTo(
       Set.of(dent.getId(), adams.getId())
     );
+    verify(mailContentRenderer).renderAll(Locale.ENGLISH, "model");
   }
 
   @Test
@@ -459,9 +731,7 @@ class DefaultMailServiceTest {
     when(context.getUserConfiguration(trillian.getId())).thenReturn(Optional.of(userMailConfiguration));
 
     MailSender mailSender = mock(MailSender.class);
-    DefaultMailService service = new DefaultMailService(
-      context, userDisplayManager, mailContentRendererFactory, mailSender, summaryQueueStore, scheduler
-    );
+    DefaultMailService service = createService(mailSender);
     MailService.EnvelopeBuilder envelopeBuilder = service.emailTemplateBuilder();
     envelopeBuilder
       .from(from)
@@ -474,7 +744,7 @@ class DefaultMailServiceTest {
       .queueMails();
 
     assertThat(service.getMailSummarizer().getSummaryQueuesByUserId()).hasSize(0);
-    verify(mailSender).send(any(MailConfiguration.class), multipleEmailsCaptor.capture());
+    verify(mailSender).send(any(MailConfiguration.class), eq(MailPriority.NORMAL), multipleEmailsCaptor.capture());
     List<Email> capturedEmails = new ArrayList<>();
     multipleEmailsCaptor.getValue().forEach(capturedEmails::add);
 
@@ -483,6 +753,15 @@ class DefaultMailServiceTest {
     assertThat(capturedEmails.get(0).getFromRecipient().getAddress()).isEqualTo(from.getAddress());
   }
   
+  private Email createEmail(String to) {
+    return EmailBuilder.startingBlank()
+      .from("deep.thought@hitchhiker.com")
+      .to(to)
+      .withSubject("The Answer")
+      .withPlainText("42")
+      .buildEmail();
+  }
+
   private void mockUser(User user) {
     lenient().when(userDisplayManager.get(user.getId())).thenReturn(of(DisplayUser.from(user)));
   }
@@ -512,30 +791,41 @@ class DefaultMailServiceTest {
   private void mockContentRenderer(Locale locale, String template, Object model, MailTemplateType type, MailContent content) {
     lenient().when(mailContentRendererFactory.createMailContentRenderer(template, type)).thenReturn(mailContentRenderer);
     lenient().when(mailContentRenderer.createMailContent(locale, model)).thenReturn(content);
+    lenient().when(mailContentRenderer.renderAll(locale, model)).thenReturn(
+      new RenderedMailContent(content.getText(), content::getText, content::getHtml)
+    );
   }
 
   private void configureMailer() {
     when(configuration.isValid()).thenReturn(Boolean.TRUE);
-    when(mailer.validate(any(Email.class))).thenReturn(Boolean.TRUE);
   }
 
-  public class TestingMailService extends DefaultMailService {
-
-    private TestingMailService() {
-      super(context, userDisplayManager, mailContentRendererFactory, new TestingMailSender(), summaryQueueStore, scheduler);
-    }
-
+  private DefaultMailService createService(MailSender mailSender) {
+    DefaultMailService service = new DefaultMailService(
+      context, userDisplayManager, mailContentRendererFactory, mailSender, summaryQueueStore, outboxStore, deadLetterStore, scheduler, meterRegistry
+    );
+    services.add(service);
+    return service;
   }
 
   public class TestingMailSender extends MailSender {
     public TestingMailSender() {
-      super(tracer, sslContextProvider);
+      super(tracer, sslContextProvider, new MailCircuitBreakerRegistry(), meterRegistry);
     }
 
     @Override
-    Mailer createMailer(MailConfiguration configuration) {
+    Mailer createMailer(MailConfiguration configuration, MailRelay relay) {
       return mailer;
     }
   }
 
+  private static class MailerException extends MailException {
+    MailerException(String message) {
+      super(message);
+    }
+
+    MailerException(String message, Exception cause) {
+      super(message, cause);
+    }
+  }
 }
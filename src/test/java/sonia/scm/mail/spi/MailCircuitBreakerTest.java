@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+import jakarta.mail.MessagingException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sonia.scm.mail.api.MailConfiguration;
+import sonia.scm.mail.api.MailRelayStatus;
+import sonia.scm.mail.api.MailRelayStatus.CircuitState;
+
+import java.net.ConnectException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailCircuitBreakerTest {
+
+  private Instant now = Instant.parse("2024-01-01T12:00:00Z");
+
+  private final MailConfiguration configuration = new MailConfiguration();
+
+  private MailCircuitBreaker circuitBreaker;
+
+  @BeforeEach
+  void setUpCircuitBreaker() {
+    configuration.setCircuitBreakerThreshold(2);
+    configuration.setCircuitBreakerOpenMillis(1000);
+    circuitBreaker = new MailCircuitBreaker("hitchhiker.com:25", new Clock() {
+      @Override
+      public ZoneOffset getZone() {
+        return ZoneOffset.UTC;
+      }
+
+      @Override
+      public Clock withZone(ZoneId zone) {
+        return this;
+      }
+
+      @Override
+      public Instant instant() {
+        return now;
+      }
+    });
+  }
+
+  @Test
+  void shouldStayClosedBelowThreshold() {
+    fail();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitState.CLOSED);
+    assertThat(circuitBreaker.tryAcquire(configuration)).isTrue();
+  }
+
+  @Test
+  void shouldOpenAfterThreshold() {
+    fail();
+    fail();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitState.OPEN);
+    assertThat(circuitBreaker.tryAcquire(configuration)).isFalse();
+
+    MailRelayStatus status = circuitBreaker.getStatus();
+    assertThat(status.getRelay()).isEqualTo("hitchhiker.com:25");
+    assertThat(status.getConsecutiveFailures()).isEqualTo(2);
+    assertThat(status.getOpenedAt()).isEqualTo(now);
+  }
+
+  @Test
+  void shouldResetFailuresOnSuccess() {
+    fail();
+    circuitBreaker.tryAcquire(configuration);
+    circuitBreaker.onSuccess();
+    fail();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitState.CLOSED);
+  }
+
+  @Test
+  void shouldLetSingleProbeThroughAfterOpenDuration() {
+    fail();
+    fail();
+    now = now.plusMillis(1000);
+
+    assertThat(circuitBreaker.tryAcquire(configuration)).isTrue();
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitState.HALF_OPEN);
+    assertThat(circuitBreaker.tryAcquire(configuration)).isFalse();
+  }
+
+  @Test
+  void shouldCloseAfterSuccessfulProbe() {
+    fail();
+    fail();
+    now = now.plusMillis(1000);
+    circuitBreaker.tryAcquire(configuration);
+
+    circuitBreaker.onSuccess();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitState.CLOSED);
+    assertThat(circuitBreaker.getStatus().getOpenedAt()).isNull();
+  }
+
+  @Test
+  void shouldReopenAfterFailedProbe() {
+    fail();
+    fail();
+    now = now.plusMillis(1000);
+    circuitBreaker.tryAcquire(configuration);
+
+    circuitBreaker.onFailure(configuration);
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitState.OPEN);
+    assertThat(circuitBreaker.getStatus().getOpenedAt()).isEqualTo(now);
+    assertThat(circuitBreaker.tryAcquire(configuration)).isFalse();
+  }
+
+  @Test
+  void shouldLetNextProbeThroughAfterReleasedProbe() {
+    fail();
+    fail();
+    now = now.plusMillis(1000);
+    circuitBreaker.tryAcquire(configuration);
+
+    circuitBreaker.release();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitState.OPEN);
+    assertThat(circuitBreaker.tryAcquire(configuration)).isTrue();
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitState.HALF_OPEN);
+  }
+
+  @Test
+  void shouldNotOpenIfDisabled() {
+    configuration.setCircuitBreakerThreshold(0);
+
+    fail();
+    fail();
+    fail();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitState.CLOSED);
+    assertThat(circuitBreaker.tryAcquire(configuration)).isTrue();
+  }
+
+  @Test
+  void shouldDetectRelayFailures() {
+    MessagingException connectFailure = new MessagingException("could not connect", new ConnectException("refused"));
+
+    assertThat(MailCircuitBreaker.isRelayFailure(new RuntimeException(connectFailure))).isTrue();
+    assertThat(MailCircuitBreaker.isRelayFailure(smtpFailure(421))).isTrue();
+    assertThat(MailCircuitBreaker.isRelayFailure(smtpFailure(550))).isFalse();
+    assertThat(MailCircuitBreaker.isRelayFailure(new IllegalStateException("don't panic"))).isFalse();
+  }
+
+  @Test
+  void shouldDetectRelayFailuresOfAnySmtpProvider() {
+    RuntimeException unavailable = new RuntimeException(new MailRetryPolicyTest.ProviderSendFailedException(421));
+    RuntimeException rejected = new RuntimeException(new MailRetryPolicyTest.ProviderSendFailedException(550));
+
+    assertThat(MailCircuitBreaker.isRelayFailure(unavailable)).isTrue();
+    assertThat(MailCircuitBreaker.isRelayFailure(rejected)).isFalse();
+  }
+
+  private void fail() {
+    circuitBreaker.tryAcquire(configuration);
+    circuitBreaker.onFailure(configuration);
+  }
+
+  private RuntimeException smtpFailure(int returnCode) {
+    return new RuntimeException(
+      new SMTPSendFailedException("DATA", returnCode, returnCode + " failure", null, null, null, null)
+    );
+  }
+}
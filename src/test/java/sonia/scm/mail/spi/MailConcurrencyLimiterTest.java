@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailConcurrencyLimiterTest {
+
+  private final MailConcurrencyLimiter limiter = new MailConcurrencyLimiter();
+
+  @Test
+  void shouldTakePermitUntilClosed() {
+    MailConcurrencyLimiter.Permit first = limiter.acquire("smtp:25", 2);
+    MailConcurrencyLimiter.Permit second = limiter.acquire("smtp:25", 2);
+
+    assertThat(limiter.availablePermits("smtp:25")).isZero();
+
+    first.close();
+    assertThat(limiter.availablePermits("smtp:25")).isEqualTo(1);
+
+    second.close();
+    assertThat(limiter.availablePermits("smtp:25")).isEqualTo(2);
+  }
+
+  @Test
+  void shouldLimitEachRelaySeparately() {
+    limiter.acquire("smtp:25", 1);
+
+    limiter.acquire("backup:25", 1);
+
+    assertThat(limiter.availablePermits("backup:25")).isZero();
+  }
+
+  @Test
+  void shouldNotLimitWithoutMaximum() {
+    limiter.acquire("smtp:25", 0).close();
+
+    assertThat(limiter.availablePermits("smtp:25")).isEqualTo(-1);
+  }
+
+  @Test
+  void shouldApplyChangedMaximum() {
+    limiter.acquire("smtp:25", 1);
+
+    limiter.acquire("smtp:25", 3);
+
+    assertThat(limiter.availablePermits("smtp:25")).isEqualTo(2);
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.simplejavamail.MailException;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.email.EmailBuilder;
+import sonia.scm.mail.api.MailDeadLetter;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.mail.api.MailSendException;
+import sonia.scm.store.InMemoryByteDataStoreFactory;
+
+import java.net.ConnectException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+@ExtendWith(MockitoExtension.class)
+class MailDeadLetterQueueTest {
+
+  @Mock
+  private DefaultMailService mailService;
+
+  private MailDeadLetterStore store;
+  private MailOutboxStore outboxStore;
+  private MailDeadLetterQueue queue;
+
+  @BeforeEach
+  void setUpQueue() {
+    store = new MailDeadLetterStore(new InMemoryByteDataStoreFactory());
+    outboxStore = new MailOutboxStore(new InMemoryByteDataStoreFactory());
+    queue = new MailDeadLetterQueue(store, outboxStore, mailService);
+  }
+
+  @Test
+  void shouldReturnFailedMails() {
+    store.add(createMail("trainer.blue@mail.com"), MailPriority.BULK, 10, failure("hog.org:25"));
+
+    List<MailDeadLetter> deadLetters = queue.getAll();
+
+    assertThat(deadLetters).hasSize(1);
+    MailDeadLetter deadLetter = deadLetters.get(0);
+    assertThat(deadLetter.getSubject()).isEqualTo("Pokemon Champion");
+    assertThat(deadLetter.getRecipients()).containsExactly("trainer.blue@mail.com");
+    assertThat(deadLetter.getPriority()).isEqualTo(MailPriority.BULK);
+    assertThat(deadLetter.getAttempts()).isEqualTo(10);
+    assertThat(deadLetter.getRelay()).isEqualTo("hog.org:25");
+    assertThat(deadLetter.getReason()).isEqualTo("Connection refused");
+    assertThat(deadLetter.getFailedAt()).isNotNull();
+  }
+
+  @Test
+  void shouldReplayGivenMailsWithTheirPriority() {
+    store.add(createMail("trainer.blue@mail.com"), MailPriority.CRITICAL, 1, failure("hog.org:25"));
+    String id = store.add(createMail("trainer.green@mail.com"), MailPriority.NORMAL, 1, failure("hog.org:25"));
+
+    int replayed = queue.replay(List.of(id));
+
+    assertThat(replayed).isEqualTo(1);
+    verify(mailService).drainOutbox();
+    assertThat(outboxStore.getAll(MailPriority.NORMAL).values())
+      .extracting(email -> email.getRecipients().get(0).getAddress())
+      .containsExactly("trainer.green@mail.com");
+    assertThat(outboxStore.getAll(MailPriority.CRITICAL)).isEmpty();
+    assertThat(queue.getAll())
+      .extracting(MailDeadLetter::getPriority)
+      .containsExactly(MailPriority.CRITICAL);
+  }
+
+  @Test
+  void shouldPurgeAllMails() {
+    store.add(createMail("trainer.blue@mail.com"), MailPriority.NORMAL, 1, failure("hog.org:25"));
+    store.add(createMail("trainer.green@mail.com"), MailPriority.NORMAL, 1, failure("hog.org:25"));
+
+    int purged = queue.purge(Collections.emptyList());
+
+    assertThat(purged).isEqualTo(2);
+    assertThat(queue.getAll()).isEmpty();
+    verifyNoInteractions(mailService);
+  }
+
+  private MailSendException failure(String relay) {
+    Email email = createMail("trainer.blue@mail.com");
+    return new MailSendException(
+      "message could not be send", email, new RelayException(new ConnectException("Connection refused")), relay, 1
+    );
+  }
+
+  private Email createMail(String to) {
+    return EmailBuilder.startingBlank()
+      .from("Trainer Red", "trainer.red@mail.com")
+      .to(to)
+      .withSubject("Pokemon Champion")
+      .withPlainText("Today")
+      .buildEmail();
+  }
+
+  private static class RelayException extends MailException {
+    RelayException(Exception cause) {
+      super("could not connect", cause);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailDeliveryExecutorsTest {
+
+  @Test
+  void shouldRunTasksOnNamedThreads() {
+    ExecutorService executor = MailDeliveryExecutors.create("MailTest", 2);
+    try {
+      String threadName = CompletableFuture.supplyAsync(() -> Thread.currentThread().getName(), executor).join();
+
+      assertThat(threadName).startsWith("MailTest-");
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void shouldCreateNamedDaemonThreads() {
+    Thread thread = MailDeliveryExecutors.createThreadFactory("MailTest").newThread(() -> {});
+
+    assertThat(thread.getName()).startsWith("MailTest-");
+    assertThat(thread.isDaemon()).isTrue();
+  }
+
+  @Test
+  void shouldRunOnCallerIfPlatformThreadsAreBusy() {
+    ExecutorService executor = MailDeliveryExecutors.createPlatform("MailTest", 1);
+    try {
+      CompletableFuture<Void> blocker = new CompletableFuture<>();
+      executor.execute(blocker::join);
+
+      Thread caller = Thread.currentThread();
+      Thread[] runner = new Thread[1];
+      executor.execute(() -> runner[0] = Thread.currentThread());
+
+      assertThat(runner[0]).isSameAs(caller);
+      blocker.complete(null);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void shouldRunOnCallerIfPlatformExecutorIsShutDown() {
+    ExecutorService executor = MailDeliveryExecutors.createPlatform("MailTest", 1);
+    executor.shutdown();
+
+    CompletableFuture<Thread> runner = CompletableFuture.supplyAsync(Thread::currentThread, executor);
+
+    assertThat(runner).isCompletedWithValue(Thread.currentThread());
+  }
+
+  @Test
+  void shouldQueueTasksIfPlatformThreadsAreBusy() {
+    ExecutorService executor = MailDeliveryExecutors.createPlatformQueuing("MailTest", 1);
+    try {
+      CompletableFuture<Void> blocker = new CompletableFuture<>();
+      executor.execute(blocker::join);
+
+      Thread caller = Thread.currentThread();
+      CompletableFuture<Thread> runner = CompletableFuture.supplyAsync(Thread::currentThread, executor);
+
+      assertThat(runner).isNotDone();
+      blocker.complete(null);
+      assertThat(runner.join()).isNotSameAs(caller);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void shouldRunScheduledTasksOnNamedThread() throws Exception {
+    ScheduledExecutorService scheduler = MailDeliveryExecutors.createScheduler("MailTest-scheduler");
+    try {
+      String threadName = scheduler.schedule(() -> Thread.currentThread().getName(), 1, TimeUnit.MILLISECONDS).get();
+
+      assertThat(threadName).startsWith("MailTest-scheduler-");
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+}
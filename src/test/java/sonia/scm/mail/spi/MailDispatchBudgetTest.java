@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailDispatchBudgetTest {
+
+  private final MailDispatchBudget budget = new MailDispatchBudget();
+
+  @Test
+  void shouldRejectIfCountIsExceeded() {
+    assertThat(budget.tryAcquire(2, 10, 3, 0)).isTrue();
+
+    assertThat(budget.tryAcquire(2, 10, 3, 0)).isFalse();
+    assertThat(budget.getMails()).isEqualTo(2);
+  }
+
+  @Test
+  void shouldRejectIfBytesAreExceeded() {
+    assertThat(budget.tryAcquire(1, 600, 0, 1000)).isTrue();
+
+    assertThat(budget.tryAcquire(1, 600, 0, 1000)).isFalse();
+    assertThat(budget.getBytes()).isEqualTo(600);
+  }
+
+  @Test
+  void shouldAcceptAgainAfterRelease() {
+    budget.tryAcquire(1, 600, 1, 1000);
+
+    budget.release(1, 600);
+
+    assertThat(budget.tryAcquire(1, 600, 1, 1000)).isTrue();
+  }
+
+  @Test
+  void shouldAcceptLargeBatchIfNothingIsQueued() {
+    assertThat(budget.tryAcquire(5, 5000, 1, 1000)).isTrue();
+  }
+
+  @Test
+  void shouldNotLimitWithoutMaximum() {
+    for (int i = 0; i < 100; i++) {
+      assertThat(budget.tryAcquire(1, 1000, 0, 0)).isTrue();
+    }
+  }
+
+  @Test
+  void shouldWaitUntilReleased() throws InterruptedException {
+    budget.tryAcquire(1, 10, 1, 0);
+    Thread releasing = new Thread(() -> budget.release(1, 10));
+    releasing.start();
+
+    budget.acquire(1, 10, 1, 0);
+
+    assertThat(budget.getMails()).isEqualTo(1);
+    releasing.join();
+  }
+}
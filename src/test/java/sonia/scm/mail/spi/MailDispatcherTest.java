@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.email.EmailBuilder;
+import sonia.scm.mail.api.MailConfiguration;
+import sonia.scm.mail.api.MailContext;
+import sonia.scm.mail.api.MailOverflowPolicy;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.mail.api.MailSendBatchException;
+import sonia.scm.mail.api.MailSendException;
+import sonia.scm.schedule.Scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class MailDispatcherTest {
+
+  private static final int WORKER_QUEUE_CAPACITY = 1000;
+
+  @Mock
+  private MailSender mailSender;
+
+  @Mock
+  private MailContext context;
+
+  @Mock
+  private MailConfiguration configuration;
+
+  @Mock
+  private MailOutboxStore outboxStore;
+
+  @Mock
+  private MailDeadLetterStore deadLetterStore;
+
+  @Mock
+  private Scheduler scheduler;
+
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private final List<MailDispatcher> dispatchers = new ArrayList<>();
+
+  @BeforeEach
+  void setUpMocks() {
+    lenient().when(context.getConfiguration()).thenReturn(configuration);
+    lenient().when(configuration.isValid()).thenReturn(Boolean.TRUE);
+    lenient().when(outboxStore.add(any(Email.class), any(MailPriority.class))).thenAnswer(ic -> UUID.randomUUID().toString());
+  }
+
+  @AfterEach
+  void shutdownDispatchers() {
+    dispatchers.forEach(dispatcher -> dispatcher.shutdown(0));
+  }
+
+  @Test
+  void shouldDeliverMailsAsynchronously() throws MailSendBatchException {
+    Email email = createEmail("dent@hitchhiker.com");
+
+    createDispatcher().dispatch(configuration, MailPriority.NORMAL, List.of(email)).join();
+
+    verify(mailSender).send(eq(configuration), eq(MailPriority.NORMAL), any());
+    verify(outboxStore).add(email, MailPriority.NORMAL);
+    verify(outboxStore).remove(anyString());
+  }
+
+  @Test
+  void shouldDeliverCriticalMailsInTheirOwnLane() throws MailSendBatchException {
+    List<String> threads = new ArrayList<>();
+    doAnswer(ic -> threads.add(Thread.currentThread().getName()))
+      .when(mailSender).send(eq(configuration), eq(MailPriority.CRITICAL), any());
+
+    createDispatcher().dispatch(configuration, MailPriority.CRITICAL, List.of(createEmail("dent@hitchhiker.com"))).join();
+
+    verify(outboxStore).add(any(Email.class), eq(MailPriority.CRITICAL));
+    assertThat(threads).singleElement().asString().startsWith("MailDispatcher-critical-");
+  }
+
+  @Test
+  void shouldKeepMailsInOutboxIfConfigurationIsInvalid() throws MailSendBatchException {
+    when(configuration.isValid()).thenReturn(Boolean.FALSE);
+
+    CompletableFuture<Void> future = createDispatcher()
+      .dispatch(configuration, MailPriority.NORMAL, List.of(createEmail("dent@hitchhiker.com")));
+
+    assertThatThrownBy(future::join).hasCauseInstanceOf(IllegalStateException.class);
+    verify(outboxStore).add(any(Email.class), eq(MailPriority.NORMAL));
+    verify(outboxStore, never()).remove(anyString());
+    verify(mailSender, never()).send(any(), any(), any());
+  }
+
+  @Test
+  void shouldCompleteExceptionallyIfDeliveryFails() throws MailSendBatchException {
+    Email email = createEmail("dent@hitchhiker.com");
+    doThrow(failure(email)).when(mailSender).send(eq(configuration), eq(MailPriority.NORMAL), any());
+
+    CompletableFuture<Void> future = createDispatcher().dispatch(configuration, MailPriority.NORMAL, List.of(email));
+
+    assertThatThrownBy(future::join)
+      .isInstanceOf(CompletionException.class)
+      .hasCauseInstanceOf(MailSendBatchException.class);
+    verify(outboxStore).incrementAttempts(anyString());
+    verify(outboxStore, never()).remove(anyString());
+  }
+
+  @Test
+  void shouldMoveMailToDeadLetterStoreAfterLastAttempt() throws MailSendBatchException {
+    Email email = createEmail("dent@hitchhiker.com");
+    doThrow(failure(email)).when(mailSender).send(eq(configuration), eq(MailPriority.BULK), any());
+    when(outboxStore.incrementAttempts(anyString())).thenReturn(10);
+
+    CompletableFuture<Void> future = createDispatcher().dispatch(configuration, MailPriority.BULK, List.of(email));
+
+    assertThatThrownBy(future::join).isInstanceOf(CompletionException.class);
+    verify(deadLetterStore).add(eq(email), eq(MailPriority.BULK), eq(10), any(MailSendException.class));
+    verify(outboxStore).remove(anyString());
+  }
+
+  @Test
+  void shouldSpillMailsToOutboxIfDispatchQueueIsFull() throws MailSendBatchException {
+    when(configuration.getDispatchQueueCapacity()).thenReturn(1);
+    CountDownLatch release = blockDelivery();
+    MailDispatcher dispatcher = createDispatcher();
+
+    try {
+      CompletableFuture<Void> first = dispatcher.dispatch(
+        configuration, MailPriority.NORMAL, List.of(createEmail("dent@hitchhiker.com"))
+      );
+      CompletableFuture<Void> second = dispatcher.dispatch(
+        configuration, MailPriority.NORMAL, List.of(createEmail("trillian@hitchhiker.com"))
+      );
+
+      assertThat(second).isCompleted();
+      assertThat(first).isNotDone();
+      verify(outboxStore, times(2)).add(any(Email.class), eq(MailPriority.NORMAL));
+      assertThat(meterRegistry.counter("scm.mail.dispatch.spilled", "priority", "NORMAL").count()).isEqualTo(1);
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  void shouldDropBulkMailsIfDispatchQueueIsFull() throws MailSendBatchException {
+    when(configuration.getDispatchQueueCapacity()).thenReturn(1);
+    when(configuration.getDispatchOverflowPolicy()).thenReturn(MailOverflowPolicy.DROP_BULK);
+    CountDownLatch release = blockDelivery();
+    MailDispatcher dispatcher = createDispatcher();
+
+    try {
+      dispatcher.dispatch(configuration, MailPriority.BULK, List.of(createEmail("dent@hitchhiker.com")));
+      CompletableFuture<Void> dropped = dispatcher.dispatch(
+        configuration, MailPriority.BULK, List.of(createEmail("trillian@hitchhiker.com"))
+      );
+
+      assertThatThrownBy(dropped::join).hasCauseInstanceOf(RejectedExecutionException.class);
+      verify(outboxStore).add(any(Email.class), eq(MailPriority.BULK));
+      assertThat(meterRegistry.counter("scm.mail.dispatch.rejected", "priority", "BULK").count()).isEqualTo(1);
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  void shouldSpillMailsToOutboxIfWorkerQueueIsFull() throws MailSendBatchException {
+    List<Thread> deliveringThreads = new CopyOnWriteArrayList<>();
+    CountDownLatch release = blockDelivery(deliveringThreads);
+    MailDispatcher dispatcher = createDispatcher();
+
+    try {
+      fillWorkerQueue(dispatcher, MailPriority.NORMAL);
+
+      CompletableFuture<Void> future = dispatcher.dispatch(
+        configuration, MailPriority.NORMAL, List.of(createEmail("trillian@hitchhiker.com"))
+      );
+
+      assertThat(future).isCompleted();
+      verify(mailSender, timeout(5000)).send(any(), any(), any());
+      assertThat(deliveringThreads).doesNotContain(Thread.currentThread());
+      verify(outboxStore, never()).remove(anyString());
+      assertThat(meterRegistry.counter("scm.mail.dispatch.spilled", "priority", "NORMAL").count()).isEqualTo(1);
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  void shouldDropBulkMailsIfWorkerQueueIsFull() throws MailSendBatchException {
+    when(configuration.getDispatchOverflowPolicy()).thenReturn(MailOverflowPolicy.DROP_BULK);
+    List<Thread> deliveringThreads = new CopyOnWriteArrayList<>();
+    CountDownLatch release = blockDelivery(deliveringThreads);
+    MailDispatcher dispatcher = createDispatcher();
+
+    try {
+      fillWorkerQueue(dispatcher, MailPriority.BULK);
+      when(outboxStore.add(any(Email.class), any(MailPriority.class))).thenReturn("42");
+
+      CompletableFuture<Void> future = dispatcher.dispatch(
+        configuration, MailPriority.BULK, List.of(createEmail("trillian@hitchhiker.com"))
+      );
+
+      assertThatThrownBy(future::join).hasCauseInstanceOf(RejectedExecutionException.class);
+      verify(mailSender, timeout(5000)).send(any(), any(), any());
+      assertThat(deliveringThreads).doesNotContain(Thread.currentThread());
+      verify(outboxStore).remove("42");
+      assertThat(meterRegistry.counter("scm.mail.dispatch.rejected", "priority", "BULK").count()).isEqualTo(1);
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  void shouldOnlyStoreMailsInOutboxAfterShutdown() throws MailSendBatchException {
+    MailDispatcher dispatcher = createDispatcher();
+    dispatcher.shutdown(0);
+
+    CompletableFuture<Void> future = dispatcher.dispatch(
+      configuration, MailPriority.NORMAL, List.of(createEmail("dent@hitchhiker.com"))
+    );
+
+    assertThat(future).isCompleted();
+    verify(outboxStore).add(any(Email.class), eq(MailPriority.NORMAL));
+    verify(mailSender, never()).send(any(), any(), any());
+  }
+
+  @Test
+  void shouldCompleteFutureIfDispatchRacesWithShutdown() throws MailSendBatchException {
+    MailDispatcher dispatcher = createDispatcher();
+    when(outboxStore.add(any(Email.class), any(MailPriority.class))).thenAnswer(ic -> {
+      dispatcher.shutdown(0);
+      return "42";
+    });
+
+    CompletableFuture<Void> future = dispatcher.dispatch(
+      configuration, MailPriority.NORMAL, List.of(createEmail("dent@hitchhiker.com"))
+    );
+
+    assertThat(future).isCompleted();
+    verify(mailSender, never()).send(any(), any(), any());
+    verify(outboxStore, never()).remove(anyString());
+  }
+
+  @Test
+  void shouldWaitForRunningDeliveryOnShutdown() throws MailSendBatchException {
+    CountDownLatch release = blockDelivery();
+    MailDispatcher dispatcher = createDispatcher();
+
+    CompletableFuture<Void> future = dispatcher.dispatch(
+      configuration, MailPriority.NORMAL, List.of(createEmail("dent@hitchhiker.com"))
+    );
+    release.countDown();
+
+    assertThat(dispatcher.shutdown(5000)).isTrue();
+    assertThat(future).isCompleted();
+    verify(outboxStore).remove(anyString());
+  }
+
+  @Test
+  void shouldDeliverMailsLeftInOutbox() throws MailSendBatchException {
+    Email email = createEmail("dent@hitchhiker.com");
+    OutboxMail stored = new OutboxMail("eml", MailPriority.BULK);
+    when(outboxStore.getAllStored()).thenReturn(Map.of("42", stored));
+    when(outboxStore.read("42", stored)).thenReturn(Optional.of(email));
+
+    createDispatcher().start();
+
+    verify(outboxStore, timeout(5000)).remove("42");
+    verify(mailSender).send(eq(configuration), eq(MailPriority.BULK), any());
+    verify(scheduler).schedule(anyString(), any(Runnable.class));
+  }
+
+  @Test
+  void shouldNotTouchOutboxBeforeStart() {
+    createDispatcher();
+
+    verifyNoInteractions(outboxStore, mailSender, scheduler);
+  }
+
+  @Test
+  void shouldNotParseMailsWhichAreAlreadyDelivered() throws MailSendBatchException {
+    when(outboxStore.add(any(Email.class), any(MailPriority.class))).thenReturn("42");
+    CountDownLatch release = blockDelivery();
+    MailDispatcher dispatcher = createDispatcher();
+
+    try {
+      dispatcher.dispatch(configuration, MailPriority.NORMAL, List.of(createEmail("dent@hitchhiker.com")));
+      when(outboxStore.getAllStored()).thenReturn(Map.of("42", new OutboxMail("eml", MailPriority.NORMAL)));
+
+      dispatcher.drain();
+
+      verify(outboxStore, never()).read(anyString(), any());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  private MailDispatcher createDispatcher() {
+    MailDispatcher dispatcher = new MailDispatcher(
+      mailSender, context, outboxStore, deadLetterStore, scheduler, meterRegistry
+    );
+    dispatchers.add(dispatcher);
+    return dispatcher;
+  }
+
+  private CountDownLatch blockDelivery() throws MailSendBatchException {
+    return blockDelivery(new CopyOnWriteArrayList<>());
+  }
+
+  private CountDownLatch blockDelivery(List<Thread> deliveringThreads) throws MailSendBatchException {
+    CountDownLatch release = new CountDownLatch(1);
+    doAnswer(ic -> {
+      deliveringThreads.add(Thread.currentThread());
+      release.await();
+      return null;
+    }).when(mailSender).send(any(), any(), any());
+    return release;
+  }
+
+  /**
+   * Occupies the single worker of the priority and fills its queue. The worker blocks until the delivery is released.
+   */
+  private void fillWorkerQueue(MailDispatcher dispatcher, MailPriority priority) {
+    for (int i = 0; i <= WORKER_QUEUE_CAPACITY; i++) {
+      dispatcher.dispatch(configuration, priority, List.of(createEmail("dent@hitchhiker.com")));
+    }
+  }
+
+  private MailSendBatchException failure(Email email) {
+    MailSendBatchException ex = new MailSendBatchException("some messages could not be send");
+    ex.append(new MailSendException("message could not be send", email, new IllegalStateException("relay is down")));
+    return ex;
+  }
+
+  private Email createEmail(String to) {
+    return EmailBuilder.startingBlank()
+      .from("deep.thought@hitchhiker.com")
+      .to(to)
+      .withSubject("The Answer")
+      .withPlainText("42")
+      .buildEmail();
+  }
+}
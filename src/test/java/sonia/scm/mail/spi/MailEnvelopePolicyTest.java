@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.Test;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.email.EmailBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailEnvelopePolicyTest {
+
+  @Test
+  void shouldPrefixSubject() {
+    MailEnvelopePolicy policy = new MailEnvelopePolicy("[SCM]", null, false);
+
+    assertThat(policy.subject("Hello")).isEqualTo("[SCM] Hello");
+  }
+
+  @Test
+  void shouldNotPrefixSubjectTwice() {
+    MailEnvelopePolicy policy = new MailEnvelopePolicy("[SCM] ", null, false);
+
+    assertThat(policy.subject("[SCM] Hello")).isEqualTo("[SCM] Hello");
+  }
+
+  @Test
+  void shouldReturnSameMailIfNothingChanges() {
+    MailEnvelopePolicy policy = new MailEnvelopePolicy("[SCM]", "scm@hitchhiker.com", false);
+    Email email = EmailBuilder.startingBlank()
+      .from("Arthur Dent", "dent@hitchhiker.com")
+      .to("trillian@hitchhiker.com")
+      .withSubject("[SCM] Hello")
+      .buildEmail();
+
+    assertThat(policy.apply(email)).isSameAs(email);
+  }
+
+  @Test
+  void shouldApplySubjectAndSenderInOneCopy() {
+    MailEnvelopePolicy policy = new MailEnvelopePolicy("[SCM]", "scm@hitchhiker.com", true);
+    Email email = EmailBuilder.startingBlank()
+      .from("Arthur Dent", "dent@hitchhiker.com")
+      .to("trillian@hitchhiker.com")
+      .withSubject("Hello")
+      .buildEmail();
+
+    Email applied = policy.apply(email);
+
+    assertThat(applied.getSubject()).isEqualTo("[SCM] Hello");
+    assertThat(applied.getFromRecipient().getName()).isNull();
+    assertThat(applied.getFromRecipient().getAddress()).isEqualTo("scm@hitchhiker.com");
+    assertThat(policy.apply(applied)).isSameAs(applied);
+  }
+
+  @Test
+  void shouldUseConfiguredSenderIfMailHasNone() {
+    MailEnvelopePolicy policy = new MailEnvelopePolicy(null, "scm@hitchhiker.com", false);
+    Email email = EmailBuilder.startingBlank()
+      .to("trillian@hitchhiker.com")
+      .withSubject("Hello")
+      .buildEmail();
+
+    assertThat(policy.apply(email).getFromRecipient().getAddress()).isEqualTo("scm@hitchhiker.com");
+  }
+
+  @Test
+  void shouldKeepSenderWithoutConfiguredFrom() {
+    MailEnvelopePolicy policy = new MailEnvelopePolicy(null, "", true);
+
+    assertThat(policy.overridesSender(true)).isFalse();
+    assertThat(policy.overridesSender(false)).isFalse();
+  }
+}
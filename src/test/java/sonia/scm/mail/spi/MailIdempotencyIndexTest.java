@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailIdempotencyIndexTest {
+
+  private Instant now = Instant.parse("2024-01-01T12:00:00Z");
+
+  private final MailIdempotencyIndex index = new MailIdempotencyIndex(new Clock() {
+    @Override
+    public ZoneOffset getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  });
+
+  @Test
+  void shouldRejectKeyWithinTimeToLive() {
+    assertThat(index.register("event-42", 1000)).isTrue();
+
+    now = now.plusMillis(999);
+
+    assertThat(index.register("event-42", 1000)).isFalse();
+    assertThat(index.register("event-21", 1000)).isTrue();
+  }
+
+  @Test
+  void shouldAcceptKeyAgainAfterTimeToLive() {
+    index.register("event-42", 1000);
+
+    now = now.plusMillis(1000);
+
+    assertThat(index.register("event-42", 1000)).isTrue();
+    assertThat(index.register("event-42", 1000)).isFalse();
+  }
+
+  @Test
+  void shouldAcceptKeyAgainAfterUnregister() {
+    index.register("event-42", 1000);
+
+    index.unregister("event-42");
+
+    assertThat(index.register("event-42", 1000)).isTrue();
+    assertThat(index.register("event-42", 1000)).isFalse();
+  }
+
+  @Test
+  void shouldAcceptMailsWithoutKey() {
+    assertThat(index.register(null, 1000)).isTrue();
+    assertThat(index.register(null, 1000)).isTrue();
+  }
+
+  @Test
+  void shouldAcceptEveryKeyIfDisabled() {
+    assertThat(index.register("event-42", 0)).isTrue();
+    assertThat(index.register("event-42", 0)).isTrue();
+  }
+}
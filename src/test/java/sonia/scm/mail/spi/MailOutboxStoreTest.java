@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.email.EmailBuilder;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.store.InMemoryByteDataStoreFactory;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailOutboxStoreTest {
+
+  private final InMemoryByteDataStoreFactory inMemoryByteDataStoreFactory = new InMemoryByteDataStoreFactory();
+
+  private MailOutboxStore outboxStore;
+
+  @BeforeEach
+  void setUpStore() {
+    outboxStore = new MailOutboxStore(inMemoryByteDataStoreFactory);
+  }
+
+  @Test
+  void shouldStoreMail() {
+    String id = outboxStore.add(createMail(), MailPriority.NORMAL);
+
+    Map<String, Email> mails = outboxStore.getAll(MailPriority.NORMAL);
+
+    assertThat(mails).containsOnlyKeys(id);
+    Email mail = mails.get(id);
+    assertThat(mail.getSubject()).isEqualTo("Pokemon Champion");
+    assertThat(mail.getPlainText()).contains("Today");
+    assertThat(mail.getRecipients().get(0).getAddress()).isEqualTo("trainer.blue@mail.com");
+  }
+
+  @Test
+  void shouldRemoveMail() {
+    String id = outboxStore.add(createMail(), MailPriority.NORMAL);
+
+    outboxStore.remove(id);
+
+    assertThat(outboxStore.getAll(MailPriority.NORMAL)).isEmpty();
+  }
+
+  @Test
+  void shouldIncrementAttempts() {
+    String id = outboxStore.add(createMail(), MailPriority.NORMAL);
+
+    assertThat(outboxStore.incrementAttempts(id)).isEqualTo(1);
+    assertThat(outboxStore.incrementAttempts(id)).isEqualTo(2);
+  }
+
+  @Test
+  void shouldReturnMailsOfPriority() {
+    String critical = outboxStore.add(createMail(), MailPriority.CRITICAL);
+    String bulk = outboxStore.add(createMail(), MailPriority.BULK);
+
+    assertThat(outboxStore.getAll(MailPriority.CRITICAL)).containsOnlyKeys(critical);
+    assertThat(outboxStore.getAll(MailPriority.BULK)).containsOnlyKeys(bulk);
+    assertThat(outboxStore.getAll(MailPriority.NORMAL)).isEmpty();
+  }
+
+  private Email createMail() {
+    return EmailBuilder.startingBlank()
+      .from("Trainer Red", "trainer.red@mail.com")
+      .to("Trainer Blue", "trainer.blue@mail.com")
+      .withSubject("Pokemon Champion")
+      .withPlainText("Today")
+      .buildEmail();
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.converter.EmailConverter;
+import org.simplejavamail.email.EmailBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailPickupDirectoryTest {
+
+  private final MailPickupDirectory pickupDirectory = new MailPickupDirectory();
+
+  @Test
+  void shouldWriteMailAsEml(@TempDir Path directory) throws IOException {
+    Path file = pickupDirectory.write(directory, createMail());
+
+    assertThat(file.getParent()).isEqualTo(directory);
+    assertThat(file.getFileName().toString()).endsWith(".eml");
+    Email mail = EmailConverter.emlToEmail(Files.readString(file, StandardCharsets.UTF_8));
+    assertThat(mail.getSubject()).isEqualTo("Pokemon Champion");
+    assertThat(mail.getPlainText()).contains("Today");
+    assertThat(mail.getRecipients().get(0).getAddress()).isEqualTo("trainer.blue@mail.com");
+  }
+
+  @Test
+  void shouldNotLeaveTemporaryFiles(@TempDir Path directory) throws IOException {
+    pickupDirectory.write(directory, createMail());
+    pickupDirectory.write(directory, createMail());
+
+    try (Stream<Path> files = Files.list(directory)) {
+      assertThat(files).hasSize(2).allMatch(file -> file.getFileName().toString().endsWith(".eml"));
+    }
+  }
+
+  @Test
+  void shouldCreateMissingDirectory(@TempDir Path directory) throws IOException {
+    Path spool = directory.resolve("spool").resolve("pickup");
+
+    Path file = pickupDirectory.write(spool, createMail());
+
+    assertThat(file).exists();
+  }
+
+  private Email createMail() {
+    return EmailBuilder.startingBlank()
+      .from("Trainer Red", "trainer.red@mail.com")
+      .to("Trainer Blue", "trainer.blue@mail.com")
+      .withSubject("Pokemon Champion")
+      .withPlainText("Today")
+      .buildEmail();
+  }
+}
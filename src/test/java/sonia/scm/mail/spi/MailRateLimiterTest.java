@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailRateLimiterTest {
+
+  private long now = 0;
+
+  private final MailRateLimiter rateLimiter = new MailRateLimiter(() -> now);
+
+  @Test
+  void shouldPermitBurstWithoutWaiting() {
+    for (int i = 0; i < 5; i++) {
+      assertThat(rateLimiter.reserve(10, 5)).isZero();
+    }
+  }
+
+  @Test
+  void shouldPaceAfterBurst() {
+    rateLimiter.reserve(10, 1);
+
+    assertThat(rateLimiter.reserve(10, 1)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    assertThat(rateLimiter.reserve(10, 1)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+  }
+
+  @Test
+  void shouldRefillOverTime() {
+    rateLimiter.reserve(10, 2);
+    rateLimiter.reserve(10, 2);
+
+    now += TimeUnit.MILLISECONDS.toNanos(100);
+
+    assertThat(rateLimiter.reserve(10, 2)).isZero();
+    assertThat(rateLimiter.reserve(10, 2)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+  }
+
+  @Test
+  void shouldNotExceedBurstCapacity() {
+    rateLimiter.reserve(10, 2);
+
+    now += TimeUnit.SECONDS.toNanos(10);
+
+    assertThat(rateLimiter.reserve(10, 2)).isZero();
+    assertThat(rateLimiter.reserve(10, 2)).isZero();
+    assertThat(rateLimiter.reserve(10, 2)).isPositive();
+  }
+}
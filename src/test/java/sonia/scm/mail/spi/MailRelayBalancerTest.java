@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.Test;
+import sonia.scm.mail.api.MailRelay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MailRelayBalancerTest {
+
+  private final MailRelayBalancer balancer = new MailRelayBalancer();
+
+  private final MailRelay heartOfGold = new MailRelay("heart-of-gold", 25, 2);
+  private final MailRelay vogon = new MailRelay("vogon", 25, 1);
+  private final MailRelay magrathea = new MailRelay("magrathea", 25, 0);
+
+  @Test
+  void shouldReturnSingleRelay() {
+    assertThat(balancer.order(List.of(vogon))).containsExactly(vogon);
+  }
+
+  @Test
+  void shouldDistributeByWeight() {
+    List<MailRelay> relays = List.of(heartOfGold, vogon, magrathea);
+
+    List<MailRelay> chosen = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      chosen.add(balancer.order(relays).get(0));
+    }
+
+    assertThat(chosen).containsExactly(heartOfGold, heartOfGold, vogon, heartOfGold, heartOfGold, vogon);
+  }
+
+  @Test
+  void shouldAppendRemainingRelaysForFailover() {
+    List<MailRelay> relays = List.of(heartOfGold, vogon, magrathea);
+    balancer.order(relays);
+    balancer.order(relays);
+
+    assertThat(balancer.order(relays)).containsExactly(vogon, magrathea, heartOfGold);
+  }
+
+  @Test
+  void shouldUseFirstRelayIfAllAreForFailoverOnly() {
+    MailRelay milliways = new MailRelay("milliways", 25, 0);
+
+    assertThat(balancer.order(List.of(magrathea, milliways))).containsExactly(magrathea, milliways);
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi;
+
+import com.google.common.base.Throwables;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MailRetryPolicyTest {
+
+  private final MailRetryPolicy policy = new MailRetryPolicy(3, 100);
+
+  @Test
+  void shouldRetryGreylisting() {
+    assertThat(policy.shouldRetry(smtpFailure(450), 1)).isTrue();
+  }
+
+  @Test
+  void shouldNotRetryPermanentFailure() {
+    assertThat(policy.shouldRetry(smtpFailure(550), 1)).isFalse();
+  }
+
+  @Test
+  void shouldRetryConnectionProblems() {
+    MessagingException failure = new MessagingException("could not connect", new SocketTimeoutException("timeout"));
+
+    assertThat(policy.shouldRetry(new RuntimeException(failure), 1)).isTrue();
+  }
+
+  @Test
+  void shouldNotRetryUnknownFailures() {
+    assertThat(policy.shouldRetry(new IllegalStateException("don't panic"), 1)).isFalse();
+  }
+
+  @Test
+  void shouldStopAfterMaxAttempts() {
+    assertThat(policy.shouldRetry(smtpFailure(421), 2)).isTrue();
+    assertThat(policy.shouldRetry(smtpFailure(421), 3)).isFalse();
+  }
+
+  @Test
+  void shouldReadReturnCodeOfAnySmtpProvider() {
+    assertThat(MailRetryPolicy.returnCode(new ProviderSendFailedException(452))).isEqualTo(452);
+    assertThat(policy.shouldRetry(new RuntimeException(new ProviderSendFailedException(452)), 1)).isTrue();
+    assertThat(policy.shouldRetry(new RuntimeException(new ProviderSendFailedException(554)), 1)).isFalse();
+  }
+
+  @Test
+  void shouldReadReturnCodeOfFailureRaisedByTransport() throws IOException, MessagingException {
+    try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      CompletableFuture<Void> smtpServer = CompletableFuture.runAsync(
+        () -> replyToMailFrom(server, "450 4.7.1 greylisted, try again later")
+      );
+      MimeMessage message = createMessage(server);
+
+      assertThatThrownBy(() -> Transport.send(message))
+        .isInstanceOfSatisfying(MessagingException.class, failure -> {
+          assertThat(Throwables.getCausalChain(failure))
+            .extracting(MailRetryPolicy::returnCode)
+            .contains(450);
+          assertThat(policy.shouldRetry(failure, 1)).isTrue();
+        });
+      smtpServer.join();
+    }
+  }
+
+  @Test
+  void shouldIncreaseDelayExponentially() {
+    assertThat(policy.delayMillis(1)).isBetween(50L, 100L);
+    assertThat(policy.delayMillis(2)).isBetween(100L, 200L);
+    assertThat(policy.delayMillis(3)).isBetween(200L, 400L);
+  }
+
+  private MimeMessage createMessage(ServerSocket server) throws MessagingException {
+    Properties properties = new Properties();
+    properties.put("mail.smtp.host", server.getInetAddress().getHostAddress());
+    properties.put("mail.smtp.port", String.valueOf(server.getLocalPort()));
+    properties.put("mail.smtp.connectiontimeout", "5000");
+    properties.put("mail.smtp.timeout", "5000");
+
+    MimeMessage message = new MimeMessage(Session.getInstance(properties));
+    message.setFrom("trainer.red@mail.com");
+    message.setRecipients(Message.RecipientType.TO, "trainer.blue@mail.com");
+    message.setSubject("Pokemon Champion");
+    message.setText("Today");
+    return message;
+  }
+
+  /**
+   * Speaks just enough smtp to reject the sender with the given reply.
+   */
+  private void replyToMailFrom(ServerSocket server, String reply) {
+    try (Socket socket = server.accept()) {
+      socket.setSoTimeout(5000);
+      BufferedReader input = new BufferedReader(
+        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)
+      );
+      OutputStream output = socket.getOutputStream();
+      write(output, "220 localhost ESMTP");
+      String line;
+      while ((line = input.readLine()) != null) {
+        String command = line.toUpperCase(Locale.ENGLISH);
+        if (command.startsWith("MAIL FROM")) {
+          write(output, reply);
+        } else if (command.startsWith("QUIT")) {
+          write(output, "221 bye");
+          return;
+        } else {
+          write(output, "250 localhost");
+        }
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private void write(OutputStream output, String line) throws IOException {
+    output.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    output.flush();
+  }
+
+  private RuntimeException smtpFailure(int returnCode) {
+    return new RuntimeException(
+      new SMTPSendFailedException("DATA", returnCode, returnCode + " try again", null, null, null, null)
+    );
+  }
+
+  /**
+   * Smtp exception of another jakarta mail provider, which has no common type with the exceptions of
+   * {@code com.sun.mail.smtp}.
+   */
+  public static class ProviderSendFailedException extends MessagingException {
+
+    private final int returnCode;
+
+    ProviderSendFailedException(int returnCode) {
+      super(returnCode + " failure");
+      this.returnCode = returnCode;
+    }
+
+    public int getReturnCode() {
+      return returnCode;
+    }
+  }
+}
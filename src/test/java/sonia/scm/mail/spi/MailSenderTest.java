@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.inject.Provider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.simplejavamail.MailException;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.api.mailer.Mailer;
+import org.simplejavamail.email.EmailBuilder;
+import sonia.scm.mail.api.MailConfiguration;
+import sonia.scm.mail.api.MailDomainPolicy;
+import sonia.scm.mail.api.MailPriority;
+import sonia.scm.mail.api.MailRelay;
+import sonia.scm.mail.api.MailRelayStatus;
+import sonia.scm.mail.api.MailRelayStatus.CircuitState;
+import sonia.scm.mail.api.MailSendBatchException;
+import sonia.scm.mail.api.MailSendException;
+import sonia.scm.mail.api.ScmTransportStrategy;
+import sonia.scm.trace.Span;
+import sonia.scm.trace.Tracer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class MailSenderTest {
+
+  @Mock
+  private MailConfiguration configuration;
+
+  @Mock
+  private Provider<SSLContext> sslContextProvider;
+
+  @Mock
+  private Tracer tracer;
+  @Mock
+  private Span span;
+
+  @Mock
+  private Mailer mailer;
+
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final MailCircuitBreakerRegistry circuitBreakers = new MailCircuitBreakerRegistry();
+
+  private TestingMailSender mailSender;
+
+  @BeforeEach
+  void setUpMocks() {
+    mailSender = new TestingMailSender();
+    lenient().when(configuration.isValid()).thenReturn(Boolean.TRUE);
+    lenient().when(mailer.sendMail(any(Email.class))).thenReturn(CompletableFuture.completedFuture(null));
+    lenient().when(tracer.span("Mail")).thenReturn(span);
+  }
+
+  @AfterEach
+  void shutdownMailSender() {
+    mailSender.shutdown(0);
+  }
+
+  @Test
+  void shouldDeliverBatchOverParallelConnections() {
+    when(configuration.getParallelConnections()).thenReturn(2);
+    Queue<String> deliveredTo = new ConcurrentLinkedQueue<>();
+    when(mailer.sendMail(any(Email.class))).thenAnswer(ic -> {
+      Email email = ic.getArgument(0);
+      String address = email.getRecipients().get(0).getAddress();
+      if (address.startsWith("marvin")) {
+        throw new MailerException("marvin is depressed");
+      }
+      deliveredTo.add(address);
+      return CompletableFuture.completedFuture(null);
+    });
+
+    List<Email> emails = List.of(
+      createEmail("dent@hitchhiker.com"),
+      createEmail("trillian@hitchhiker.com"),
+      createEmail("marvin@hitchhiker.com"),
+      createEmail("zaphod@hitchhiker.com")
+    );
+
+    assertThatThrownBy(() -> mailSender.send(configuration, emails))
+      .isInstanceOfSatisfying(MailSendBatchException.class, ex -> assertThat(ex.getSendExceptions())
+        .extracting(MailSendException::getEmail)
+        .containsExactly(emails.get(2))
+      );
+    assertThat(deliveredTo).containsExactlyInAnyOrder(
+      "dent@hitchhiker.com", "trillian@hitchhiker.com", "zaphod@hitchhiker.com"
+    );
+  }
+
+  @Test
+  void shouldWriteMailsToPickupDirectory(@TempDir Path directory) throws IOException, MailSendBatchException {
+    when(configuration.getTransportStrategy()).thenReturn(ScmTransportStrategy.PICKUP_DIRECTORY);
+    when(configuration.getPickupDirectory()).thenReturn(directory.toString());
+
+    mailSender.send(configuration, List.of(createEmail("dent@hitchhiker.com"), createEmail("trillian@hitchhiker.com")));
+
+    try (Stream<Path> files = Files.list(directory)) {
+      assertThat(files).hasSize(2);
+    }
+    verify(mailer, never()).sendMail(any(Email.class));
+    verify(span, times(2)).label("method", "PICKUP");
+  }
+
+  @Test
+  void shouldRetryTransientFailures() throws MailSendBatchException {
+    when(configuration.getRetryMaxAttempts()).thenReturn(3);
+    when(configuration.getRetryBackoffMillis()).thenReturn(1L);
+    when(mailer.sendMail(any(Email.class)))
+      .thenThrow(new MailerException("greylisted", new SocketTimeoutException("timeout")))
+      .thenReturn(CompletableFuture.completedFuture(null));
+
+    mailSender.send(configuration, List.of(createEmail("dent@hitchhiker.com")));
+
+    verify(mailer, times(2)).sendMail(any(Email.class));
+    verify(span).label("attempt", "2");
+  }
+
+  @Test
+  void shouldFailPendingRetriesOnShutdown() {
+    when(configuration.getRetryMaxAttempts()).thenReturn(3);
+    when(configuration.getRetryBackoffMillis()).thenReturn(60_000L);
+    when(mailer.sendMail(any(Email.class)))
+      .thenThrow(new MailerException("greylisted", new SocketTimeoutException("timeout")));
+    Email email = createEmail("dent@hitchhiker.com");
+
+    CompletableFuture<Void> delivery = CompletableFuture.runAsync(() -> {
+      try {
+        mailSender.send(configuration, List.of(email));
+      } catch (MailSendBatchException ex) {
+        throw new CompletionException(ex);
+      }
+    });
+    verify(mailer, timeout(5000)).sendMail(any(Email.class));
+
+    assertThat(mailSender.shutdown(5000)).isTrue();
+
+    assertThatThrownBy(() -> delivery.get(5, TimeUnit.SECONDS))
+      .isInstanceOf(ExecutionException.class)
+      .hasCauseInstanceOf(MailSendBatchException.class);
+    verify(mailer).sendMail(any(Email.class));
+  }
+
+  @Test
+  void shouldNotRetryPermanentFailures() {
+    when(mailer.sendMail(any(Email.class))).thenThrow(new MailerException("no such user"));
+
+    assertThatThrownBy(() -> mailSender.send(configuration, List.of(createEmail("dent@hitchhiker.com"))))
+      .isInstanceOf(MailSendBatchException.class);
+
+    verify(mailer).sendMail(any(Email.class));
+  }
+
+  @Test
+  void shouldFailFastIfCircuitBreakerIsOpen() {
+    when(configuration.getCircuitBreakerThreshold()).thenReturn(1);
+    when(configuration.getCircuitBreakerOpenMillis()).thenReturn(60_000L);
+    when(mailer.sendMail(any(Email.class)))
+      .thenThrow(new MailerException("could not connect", new SocketTimeoutException("timeout")));
+
+    List<Email> emails = List.of(createEmail("dent@hitchhiker.com"), createEmail("trillian@hitchhiker.com"));
+
+    assertThatThrownBy(() -> mailSender.send(configuration, emails))
+      .isInstanceOfSatisfying(MailSendBatchException.class, ex -> assertThat(ex.getSendExceptions())
+        .extracting(failure -> failure.getCause().getClass())
+        .containsExactly(MailerException.class, MailRelayUnavailableException.class)
+      );
+    verify(mailer).sendMail(any(Email.class));
+    verify(span).label("circuit", "OPEN");
+  }
+
+  @Test
+  void shouldNotCloseCircuitBreakerAfterUnclassifiedError() {
+    when(configuration.getCircuitBreakerThreshold()).thenReturn(1);
+    when(mailer.sendMail(any(Email.class)))
+      .thenThrow(new MailerException("could not connect", new SocketTimeoutException("timeout")))
+      .thenThrow(new IllegalStateException("don't panic"));
+
+    assertThatThrownBy(() -> mailSender.send(configuration, List.of(createEmail("dent@hitchhiker.com"))))
+      .isInstanceOf(MailSendBatchException.class);
+    assertThatThrownBy(() -> mailSender.send(configuration, List.of(createEmail("trillian@hitchhiker.com"))))
+      .isInstanceOf(IllegalStateException.class);
+
+    assertThat(circuitBreakers.getStatus())
+      .extracting(MailRelayStatus::getState)
+      .containsExactly(CircuitState.OPEN);
+  }
+
+  @Test
+  void shouldDistributeMailsOverRelays() throws MailSendBatchException {
+    when(configuration.getHost()).thenReturn("marvin");
+    when(configuration.getPort()).thenReturn(42);
+    when(configuration.getRelays()).thenReturn(List.of(new MailRelay("zaphod", 25, 1)));
+
+    mailSender.send(configuration, List.of(createEmail("dent@hitchhiker.com"), createEmail("trillian@hitchhiker.com")));
+
+    verify(span).label("url", "marvin:42");
+    verify(span).label("url", "zaphod:25");
+  }
+
+  @Test
+  void shouldRouteRecipientDomainToDedicatedRelay() throws MailSendBatchException {
+    when(configuration.getHost()).thenReturn("marvin");
+    when(configuration.getPort()).thenReturn(42);
+    when(configuration.getDomainPolicies())
+      .thenReturn(List.of(new MailDomainPolicy("heartofgold.com", "eddie", 2525, 1, 0)));
+
+    mailSender.send(
+      configuration, List.of(createEmail("dent@hitchhiker.com"), createEmail("trillian@mail.heartofgold.com"))
+    );
+
+    verify(span).label("url", "marvin:42");
+    verify(span).label("url", "eddie:2525");
+    verify(span).label("domain", "heartofgold.com");
+  }
+
+  @Test
+  void shouldFailoverToNextRelay() throws MailSendBatchException {
+    when(configuration.getHost()).thenReturn("marvin");
+    when(configuration.getPort()).thenReturn(42);
+    when(configuration.getRelays()).thenReturn(List.of(new MailRelay("zaphod", 25, 1)));
+    when(mailer.sendMail(any(Email.class)))
+      .thenThrow(new MailerException("could not connect", new SocketTimeoutException("timeout")))
+      .thenReturn(CompletableFuture.completedFuture(null));
+
+    mailSender.send(configuration, List.of(createEmail("dent@hitchhiker.com")));
+
+    verify(mailer, times(2)).sendMail(any(Email.class));
+    verify(span).label("url", "marvin:42");
+    verify(span).label("url", "zaphod:25");
+  }
+
+  @Test
+  void shouldRecordTimeWaitingForRateLimit() throws MailSendBatchException {
+    when(configuration.getHost()).thenReturn("marvin");
+    when(configuration.getPort()).thenReturn(42);
+    when(configuration.getRateLimitPerSecond()).thenReturn(100);
+    when(configuration.getRateLimitBurst()).thenReturn(1);
+
+    mailSender.send(configuration, List.of(createEmail("dent@hitchhiker.com"), createEmail("trillian@hitchhiker.com")));
+
+    verify(mailer, times(2)).sendMail(any(Email.class));
+    Timer timer = meterRegistry.get("scm.mail.ratelimit.wait").tag("relay", "marvin:42").timer();
+    assertThat(timer.count()).isEqualTo(2);
+  }
+
+  @Test
+  void shouldLabelSpanWithPriority() throws MailSendBatchException {
+    mailSender.send(configuration, MailPriority.CRITICAL, List.of(createEmail("dent@hitchhiker.com")));
+
+    verify(span).label("priority", "CRITICAL");
+  }
+
+  @Test
+  void shouldReuseMailerForSameConfiguration() throws MailSendBatchException {
+    for (int i = 0; i < 2; i++) {
+      mailSender.send(configuration, List.of(createEmail("dent@hitchhiker.com")));
+    }
+
+    verify(mailer, times(2)).sendMail(any(Email.class));
+    assertThat(mailSender.createdMailers).isEqualTo(1);
+  }
+
+  @Test
+  void shouldShareSocketFactoryBetweenMailers() {
+    SSLContext sslContext = mock(SSLContext.class);
+    when(sslContextProvider.get()).thenReturn(sslContext);
+    SSLSocketFactory socketFactory = mock(SSLSocketFactory.class);
+    when(sslContext.getSocketFactory()).thenReturn(socketFactory);
+
+    MailSender sender = new MailSender(tracer, sslContextProvider, new MailCircuitBreakerRegistry(), meterRegistry);
+    MailConfiguration smtps = new MailConfiguration("host", 465, ScmTransportStrategy.SMTPS, "trillian", "Testmail");
+
+    Mailer first = sender.createMailer(smtps, new MailRelay("host", 465, 1));
+    Mailer second = sender.createMailer(smtps, new MailRelay("backup", 465, 1));
+
+    assertThat(first.getSession().getProperties()).containsEntry("mail.smtps.ssl.socketFactory", socketFactory);
+    assertThat(second.getSession().getProperties()).containsEntry("mail.smtps.ssl.socketFactory", socketFactory);
+    verify(sslContextProvider).get();
+    verify(sslContext).getSocketFactory();
+  }
+
+  private Email createEmail(String to) {
+    return EmailBuilder.startingBlank()
+      .from("deep.thought@hitchhiker.com")
+      .to(to)
+      .withSubject("The Answer")
+      .withPlainText("42")
+      .buildEmail();
+  }
+
+  private class TestingMailSender extends MailSender {
+
+    private int createdMailers = 0;
+
+    TestingMailSender() {
+      super(tracer, sslContextProvider, circuitBreakers, meterRegistry);
+    }
+
+    @Override
+    Mailer createMailer(MailConfiguration configuration, MailRelay relay) {
+      createdMailers++;
+      return mailer;
+    }
+  }
+
+  private static class MailerException extends MailException {
+    MailerException(String message) {
+      super(message);
+    }
+
+    MailerException(String message, Exception cause) {
+      super(message, cause);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import jakarta.mail.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.simplejavamail.api.email.Email;
+import org.simplejavamail.api.email.Recipient;
+import org.simplejavamail.email.EmailBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MailSmtpPipeTest {
+
+  private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final AtomicBoolean aborted = new AtomicBoolean();
+  private final ScheduledExecutorService watchdog = MailDeliveryExecutors.createScheduler("MailSmtpPipeTest");
+
+  @AfterEach
+  void shutdownWatchdog() {
+    watchdog.shutdownNow();
+  }
+
+  @Test
+  void shouldSendAllMailsOfBatchOverOnePipe() throws IOException {
+    MailSmtpPipe pipe = open(
+      "220 localhost ESMTP",
+      "250-localhost",
+      "250 PIPELINING",
+      "250 ok", "250 ok", "354 go ahead", "250 queued",
+      "250 ok", "250 ok", "354 go ahead", "250 queued",
+      "221 bye"
+    );
+
+    pipe.send(createMail("trainer.blue@mail.com", "Pokemon Champion"));
+    pipe.send(createMail("trainer.green@mail.com", "Pokemon League"));
+    pipe.close();
+
+    String transcript = output.toString(StandardCharsets.US_ASCII);
+    assertThat(transcript)
+      .startsWith("EHLO localhost\r\nMAIL FROM:<trainer.red@mail.com>\r\nRCPT TO:<trainer.blue@mail.com>\r\nDATA\r\n")
+      .contains("RCPT TO:<trainer.green@mail.com>")
+      .contains("Subject: Pokemon Champion")
+      .contains("\r\n.\r\nMAIL FROM:")
+      .endsWith("\r\n.\r\nQUIT\r\n");
+    assertThat(closed).isTrue();
+  }
+
+  @Test
+  void shouldResetTransactionIfRecipientIsRejected() throws IOException {
+    MailSmtpPipe pipe = open(
+      "220 localhost ESMTP",
+      "250 localhost",
+      "250 ok", "550 no such user", "250 reset",
+      "250 ok", "250 ok", "354 go ahead", "250 queued"
+    );
+
+    Email rejected = createMail("trainer.yellow@mail.com", "Pokemon Champion");
+    assertThatThrownBy(() -> pipe.send(rejected))
+      .isInstanceOf(IOException.class)
+      .hasMessageContaining("550 no such user");
+
+    pipe.send(createMail("trainer.blue@mail.com", "Pokemon Champion"));
+
+    assertThat(output.toString(StandardCharsets.US_ASCII))
+      .contains("RCPT TO:<trainer.yellow@mail.com>\r\nRSET\r\nMAIL FROM:");
+  }
+
+  @Test
+  void shouldFailIfGreetingIsMissing() {
+    assertThatThrownBy(this::open).isInstanceOf(IOException.class);
+  }
+
+  @Test
+  void shouldAbortSessionIfMailTransferAgentDoesNotReply() throws IOException {
+    PipedOutputStream replies = new PipedOutputStream();
+    PipedInputStream input = new PipedInputStream(replies);
+    replies.write("220 localhost ESMTP\r\n250 localhost\r\n".getBytes(StandardCharsets.US_ASCII));
+
+    MailSmtpPipe pipe = new MailSmtpPipe("sendmail -bs", input, output, Duration.ofMillis(100), watchdog, () -> {
+      aborted.set(true);
+      try {
+        replies.close();
+      } catch (IOException ex) {
+        throw new IllegalStateException(ex);
+      }
+    }, () -> closed.set(true));
+
+    Email email = createMail("trainer.blue@mail.com", "Pokemon Champion");
+    assertThatThrownBy(() -> pipe.send(email))
+      .isInstanceOf(InterruptedIOException.class);
+    assertThat(aborted).isTrue();
+  }
+
+  @Test
+  void shouldFailRemainingMailsAfterBrokenPipe() throws IOException {
+    MailSmtpPipe pipe = open(
+      "220 localhost ESMTP",
+      "250 localhost",
+      "250 ok", "250 ok", "354 go ahead"
+    );
+
+    Email broken = createMail("trainer.blue@mail.com", "Pokemon Champion");
+    assertThatThrownBy(() -> pipe.send(broken)).isInstanceOf(EOFException.class);
+    assertThat(aborted).isTrue();
+
+    int written = output.size();
+    Email next = createMail("trainer.green@mail.com", "Pokemon League");
+    assertThatThrownBy(() -> pipe.send(next))
+      .isInstanceOf(IOException.class)
+      .hasMessageContaining("aborted");
+    pipe.close();
+
+    assertThat(output.size()).isEqualTo(written);
+    assertThat(closed).isTrue();
+  }
+
+  @Test
+  void shouldRejectAddressWithLineBreak() throws IOException {
+    MailSmtpPipe pipe = open(
+      "220 localhost ESMTP",
+      "250 localhost"
+    );
+
+    Email email = mock(Email.class);
+    when(email.getFromRecipient()).thenReturn(new Recipient(null, "trainer.red@mail.com", null));
+    when(email.getRecipients()).thenReturn(List.of(
+      new Recipient(null, "trainer.blue@mail.com>\r\nRCPT TO:<victim@mail.com", Message.RecipientType.TO)
+    ));
+
+    assertThatThrownBy(() -> pipe.send(email))
+      .isInstanceOf(IOException.class)
+      .hasMessageContaining("invalid mail address");
+    assertThat(output.toString(StandardCharsets.US_ASCII)).doesNotContain("RCPT TO");
+    assertThat(aborted).isFalse();
+  }
+
+  private MailSmtpPipe open(String... replies) throws IOException {
+    String input = replies.length > 0 ? String.join("\r\n", replies) + "\r\n" : "";
+    return new MailSmtpPipe(
+      "sendmail -bs",
+      new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)),
+      output,
+      Duration.ofSeconds(10),
+      watchdog,
+      () -> aborted.set(true),
+      () -> closed.set(true)
+    );
+  }
+
+  private Email createMail(String to, String subject) {
+    return EmailBuilder.startingBlank()
+      .from("Trainer Red", "trainer.red@mail.com")
+      .to(to)
+      .withSubject(subject)
+      .withPlainText("Today")
+      .buildEmail();
+  }
+}
@@ -284,6 +284,23 @@ class MailSummarizerTest {
     verify(scheduler).schedule(eq(SummaryFrequency.MINUTES_15.getCronExpression()), any(Runnable.class));
   }
 
+  @Test
+  void shouldCancelTasksOnShutdown() {
+    when(summaryQueueStore.getAll()).thenReturn(Map.of("userId", new MailSummaryQueue()));
+
+    UserMailConfiguration userConfig = new UserMailConfiguration();
+    userConfig.setSummarizeMails(true);
+    when(mailContext.getUserConfiguration("userId")).thenReturn(of(userConfig));
+
+    Task task = mock(Task.class);
+    when(scheduler.schedule(eq(userConfig.getSummaryFrequency().getCronExpression()), any(Runnable.class))).thenReturn(task);
+
+    MailSummarizer mailSummaryService = new MailSummarizer(summaryQueueStore, mailService::emailTemplateBuilder, mailContext, scheduler);
+    mailSummaryService.shutdown();
+
+    verify(task).cancel();
+  }
+
   @Test
   void shouldNotUpdateAnything() {
     when(summaryQueueStore.getAll()).thenReturn(Map.of("userId", new MailSummaryQueue()));
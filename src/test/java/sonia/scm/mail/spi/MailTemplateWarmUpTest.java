@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.mail.api.MailTemplate;
+import sonia.scm.mail.api.MailTemplateProvider;
+import sonia.scm.mail.api.MailTemplateType;
+import sonia.scm.mail.spi.content.MailContentRenderer;
+import sonia.scm.mail.spi.content.MailContentRendererFactory;
+import sonia.scm.mail.spi.content.RenderedMailContent;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class MailTemplateWarmUpTest {
+
+  @Mock
+  private MailContentRendererFactory rendererFactory;
+
+  @Mock
+  private MailContentRenderer renderer;
+
+  @Test
+  void shouldRenderAllTemplatesInAllLocales() {
+    AtomicInteger renderedHtml = new AtomicInteger();
+    when(rendererFactory.createMailContentRenderer("a.mustache", MailTemplateType.MARKDOWN_HTML)).thenReturn(renderer);
+    when(renderer.renderAll(any(Locale.class), any())).thenAnswer(ic -> new RenderedMailContent(
+      "# a", () -> "a", () -> "<h1>a</h1>" + renderedHtml.incrementAndGet()
+    ));
+
+    MailTemplateProvider provider = () -> List.of(new MailTemplate("a.mustache", MailTemplateType.MARKDOWN_HTML));
+    new MailTemplateWarmUp(rendererFactory, Set.of(provider)).warmUp();
+
+    verify(renderer).renderAll(Locale.ENGLISH, Collections.emptyMap());
+    verify(renderer).renderAll(Locale.GERMAN, Collections.emptyMap());
+    assertThat(renderedHtml).hasValue(2);
+  }
+
+  @Test
+  void shouldContinueIfTemplateCouldNotBeRendered() {
+    when(rendererFactory.createMailContentRenderer("broken.mustache", MailTemplateType.TEXT))
+      .thenThrow(new IllegalStateException("broken"));
+    when(rendererFactory.createMailContentRenderer("b.mustache", MailTemplateType.TEXT)).thenReturn(renderer);
+    when(renderer.renderAll(Locale.ENGLISH, Collections.emptyMap()))
+      .thenReturn(new RenderedMailContent("b", () -> "b", () -> null));
+
+    MailTemplateProvider provider = () -> List.of(
+      new MailTemplate("broken.mustache", MailTemplateType.TEXT, List.of(Locale.ENGLISH)),
+      new MailTemplate("b.mustache", MailTemplateType.TEXT, List.of(Locale.ENGLISH))
+    );
+    new MailTemplateWarmUp(rendererFactory, Set.of(provider)).warmUp();
+
+    verify(renderer).renderAll(Locale.ENGLISH, Collections.emptyMap());
+  }
+}
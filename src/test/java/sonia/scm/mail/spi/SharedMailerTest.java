@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package sonia.scm.mail.spi;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.simplejavamail.api.mailer.Mailer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class SharedMailerTest {
+
+  @Mock
+  private Mailer mailer;
+
+  @Test
+  void shouldCloseUnusedMailerOnRetire() {
+    SharedMailer sharedMailer = new SharedMailer("hog.org:25", mailer);
+
+    sharedMailer.retire();
+
+    assertThat(sharedMailer.isClosed()).isTrue();
+    verify(mailer).shutdownConnectionPool();
+  }
+
+  @Test
+  void shouldCloseRetiredMailerAfterLastLeaseIsReleased() {
+    SharedMailer sharedMailer = new SharedMailer("hog.org:25", mailer);
+    SharedMailer.Lease first = sharedMailer.lease();
+    SharedMailer.Lease second = sharedMailer.lease();
+
+    sharedMailer.retire();
+    first.close();
+    first.close();
+
+    verify(mailer, never()).shutdownConnectionPool();
+
+    second.close();
+
+    assertThat(sharedMailer.isClosed()).isTrue();
+    verify(mailer).shutdownConnectionPool();
+  }
+
+  @Test
+  void shouldNotLeaseRetiredMailer() {
+    SharedMailer sharedMailer = new SharedMailer("hog.org:25", mailer);
+
+    sharedMailer.retire();
+
+    assertThat(sharedMailer.lease()).isNull();
+  }
+
+  @Test
+  void shouldKeepMailerOpenWhileNotRetired() {
+    SharedMailer sharedMailer = new SharedMailer("hog.org:25", mailer);
+
+    try (SharedMailer.Lease lease = sharedMailer.lease()) {
+      assertThat(lease.getMailer()).isSameAs(mailer);
+    }
+
+    assertThat(sharedMailer.isClosed()).isFalse();
+    verify(mailer, never()).shutdownConnectionPool();
+  }
+}
@@ -16,6 +16,7 @@
 
 package sonia.scm.mail.spi.content;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -28,6 +29,7 @@ import sonia.scm.template.TemplateEngineFactory;
 
 import java.io.IOException;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
@@ -43,15 +45,26 @@ class HtmlMarkdownContentRendererTest {
   @Mock
   private TemplateEngine templateEngine;
 
-  private final Template content = (writer, model) -> writer.write(model + "!");
-  private final Template layout = (writer, model) -> writer.write("<>" + model + "</>");
+  private final AtomicInteger contentExecutions = new AtomicInteger();
+  private final AtomicInteger layoutExecutions = new AtomicInteger();
+
+  private final Template content = (writer, model) -> {
+    contentExecutions.incrementAndGet();
+    writer.write(model + "!");
+  };
+  private final Template layout = (writer, model) -> {
+    layoutExecutions.incrementAndGet();
+    writer.write("<>" + model + "</>");
+  };
 
   private ScmConfiguration configuration;
+  private MailTemplateCache templateCache;
 
   @BeforeEach
   void setUp() throws IOException {
     configuration = new ScmConfiguration();
     configuration.setBaseUrl("http://hitchhiker.com");
+    templateCache = new MailTemplateCache(templateEngineFactory, new SimpleMeterRegistry());
 
     when(templateEngineFactory.getEngineByExtension(anyString())).thenReturn(templateEngine);
     when(templateEngine.getTemplate(anyString(), any(Locale.class))).thenAnswer((ic) -> {
@@ -71,7 +84,7 @@ class HtmlMarkdownContentRendererTest {
     ContentRenderer.Context context = new ContentRenderer.Context("/tpl.mustache", Locale.ENGLISH, "# Super");
 
     HtmlMarkdownContentRenderer renderer = new HtmlMarkdownContentRenderer(
-      templateEngineFactory, new TextMarkdownContentRenderer(templateEngineFactory), configuration
+      templateCache, new TextMarkdownContentRenderer(templateCache), configuration
     );
 
     MailContent content = renderer.render(context);
@@ -88,7 +101,7 @@ class HtmlMarkdownContentRendererTest {
   void shouldRenderImageWithoutAltText() {
     ContentRenderer.Context context = new ContentRenderer.Context("/tpl.mustache", Locale.ENGLISH, "![](https://some-domain.de/some/image/url.png)");
     HtmlMarkdownContentRenderer renderer = new HtmlMarkdownContentRenderer(
-      templateEngineFactory, new TextMarkdownContentRenderer(templateEngineFactory), configuration
+      templateCache, new TextMarkdownContentRenderer(templateCache), configuration
     );
 
     MailContent content = renderer.render(context);
@@ -101,7 +114,7 @@ class HtmlMarkdownContentRendererTest {
   void shouldRenderImageWithAltText() {
     ContentRenderer.Context context = new ContentRenderer.Context("/tpl.mustache", Locale.ENGLISH, "![Some Alt Text](https://some-domain.de/some/image/url.png)");
     HtmlMarkdownContentRenderer renderer = new HtmlMarkdownContentRenderer(
-      templateEngineFactory, new TextMarkdownContentRenderer(templateEngineFactory), configuration
+      templateCache, new TextMarkdownContentRenderer(templateCache), configuration
     );
 
     MailContent content = renderer.render(context);
@@ -114,7 +127,7 @@ class HtmlMarkdownContentRendererTest {
   void shouldNotRenderRelativeImagePath() {
     ContentRenderer.Context context = new ContentRenderer.Context("/tpl.mustache", Locale.ENGLISH, "![Some Alt Text](/some/image/url.png)");
     HtmlMarkdownContentRenderer renderer = new HtmlMarkdownContentRenderer(
-      templateEngineFactory, new TextMarkdownContentRenderer(templateEngineFactory), configuration
+      templateCache, new TextMarkdownContentRenderer(templateCache), configuration
     );
 
     MailContent content = renderer.render(context);
@@ -122,4 +135,34 @@ class HtmlMarkdownContentRendererTest {
     assertThat(content.getHtml())
       .contains("<img src=\"\" alt=\"Some Alt Text\" style=\"margin: 20px auto; padding: 0; font-size: 100%; font-family: BlinkMacSystemFont,-apple-system,Segoe UI,Roboto,Oxygen,Ubuntu,Cantarell,Fira Sans,Droid Sans,Helvetica Neue,Helvetica,Arial,sans-serif; line-height: 1.65; max-width: 100%; display: block;\" />");
   }
+
+  @Test
+  void shouldRenderAllFormatsFromSingleTemplateExecution() {
+    ContentRenderer.Context context = new ContentRenderer.Context("/tpl.mustache", Locale.ENGLISH, "# Super");
+    HtmlMarkdownContentRenderer renderer = new HtmlMarkdownContentRenderer(
+      templateCache, new TextMarkdownContentRenderer(templateCache), configuration
+    );
+
+    RenderedMailContent rendered = renderer.renderAll(context);
+
+    assertThat(rendered.getPlainText()).isEqualTo("# Super!");
+    assertThat(rendered.getText()).isEqualTo("Super!");
+    assertThat(rendered.getHtml()).contains("<h1 style=");
+    assertThat(rendered.getHtml()).endsWith("</>");
+    assertThat(contentExecutions).hasValue(1);
+    assertThat(layoutExecutions).hasValue(1);
+  }
+
+  @Test
+  void shouldNotRenderUnusedFormats() {
+    ContentRenderer.Context context = new ContentRenderer.Context("/tpl.mustache", Locale.ENGLISH, "# Super");
+    HtmlMarkdownContentRenderer renderer = new HtmlMarkdownContentRenderer(
+      templateCache, new TextMarkdownContentRenderer(templateCache), configuration
+    );
+
+    RenderedMailContent rendered = renderer.renderAll(context);
+
+    assertThat(rendered.getPlainText()).isEqualTo("# Super!");
+    assertThat(layoutExecutions).hasValue(0);
+  }
 }
@@ -19,6 +19,8 @@ package sonia.scm.mail.spi.content;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -67,6 +69,7 @@ class MailContentModuleTest {
     @Override
     protected void configure() {
       bind(TemplateEngineFactory.class).toInstance(templateEngineFactory);
+      bind(MeterRegistry.class).toInstance(new SimpleMeterRegistry());
     }
   }
 
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package sonia.scm.mail.spi.content;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.template.Template;
+import sonia.scm.template.TemplateEngine;
+import sonia.scm.template.TemplateEngineFactory;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class MailTemplateCacheTest {
+
+  @Mock
+  private TemplateEngineFactory templateEngineFactory;
+
+  @Mock
+  private TemplateEngine templateEngine;
+
+  @Mock
+  private Template template;
+
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private MailTemplateCache cache;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    lenient().when(templateEngineFactory.getEngineByExtension("/tpl.mustache")).thenReturn(templateEngine);
+    lenient().when(templateEngine.getTemplate("/tpl.mustache", Locale.ENGLISH)).thenReturn(template);
+    lenient().when(templateEngine.getTemplate("/tpl.mustache", Locale.GERMAN)).thenReturn(template);
+    cache = new MailTemplateCache(templateEngineFactory, meterRegistry);
+  }
+
+  @Test
+  void shouldResolveTemplateOnlyOnce() throws IOException {
+    assertThat(cache.get("/tpl.mustache", Locale.ENGLISH)).isSameAs(template);
+    assertThat(cache.get("/tpl.mustache", Locale.ENGLISH)).isSameAs(template);
+
+    verify(templateEngine).getTemplate("/tpl.mustache", Locale.ENGLISH);
+    assertThat(count("hit")).isEqualTo(1);
+    assertThat(count("miss")).isEqualTo(1);
+  }
+
+  @Test
+  void shouldCacheLocaleVariantsSeparately() throws IOException {
+    cache.get("/tpl.mustache", Locale.ENGLISH);
+    cache.get("/tpl.mustache", Locale.GERMAN);
+
+    verify(templateEngine).getTemplate("/tpl.mustache", Locale.ENGLISH);
+    verify(templateEngine).getTemplate("/tpl.mustache", Locale.GERMAN);
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  void shouldNotCacheMissingTemplates() {
+    lenient().when(templateEngineFactory.getEngineByExtension("/missing.mustache")).thenReturn(templateEngine);
+
+    assertThat(cache.get("/missing.mustache", Locale.ENGLISH)).isNull();
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test
+  void shouldFailWithoutTemplateEngine() {
+    assertThatThrownBy(() -> cache.get("/tpl.unknown", Locale.ENGLISH))
+      .isInstanceOf(MailContentException.class);
+  }
+
+  private double count(String result) {
+    return meterRegistry.get("scm.mail.template.cache").tag("result", result).counter().count();
+  }
+}
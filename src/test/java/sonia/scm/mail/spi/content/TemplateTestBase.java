@@ -16,6 +16,7 @@
 
 package sonia.scm.mail.spi.content;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.mockito.Mock;
 import sonia.scm.template.Template;
 import sonia.scm.template.TemplateEngine;
@@ -36,6 +37,10 @@ class TemplateTestBase {
 
   Template template = (writer, model) -> writer.write(model.toString() + "!");
 
+  MailTemplateCache createTemplateCache() {
+    return new MailTemplateCache(templateEngineFactory, new SimpleMeterRegistry());
+  }
+
   ContentRenderer.Context prepareEngineAndCreateContext(String templatePath, Locale locale, Object model) throws IOException {
     when(templateEngineFactory.getEngineByExtension(templatePath)).thenReturn(templateEngine);
     when(templateEngine.getTemplate(templatePath, locale)).thenReturn(template);
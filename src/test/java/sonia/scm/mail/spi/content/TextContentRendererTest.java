@@ -16,9 +16,9 @@
 
 package sonia.scm.mail.spi.content;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.IOException;
@@ -29,9 +29,13 @@ import static org.assertj.core.api.Assertions.assertThat;
 @ExtendWith(MockitoExtension.class)
 class TextContentRendererTest extends TemplateTestBase {
 
-  @InjectMocks
   private TextContentRenderer renderer;
 
+  @BeforeEach
+  void createRenderer() {
+    renderer = new TextContentRenderer(createTemplateCache());
+  }
+
   @Test
   void shouldReturnRenderedText() throws IOException {
     ContentRenderer.Context context = prepareEngineAndCreateContext("/tpl.mustache", Locale.GERMAN, "super");
@@ -16,9 +16,9 @@
 
 package sonia.scm.mail.spi.content;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.IOException;
@@ -29,9 +29,13 @@ import static org.assertj.core.api.Assertions.assertThat;
 @ExtendWith(MockitoExtension.class)
 class TextMarkdownContentRendererTest extends TemplateTestBase {
 
-  @InjectMocks
   private TextMarkdownContentRenderer renderer;
 
+  @BeforeEach
+  void createRenderer() {
+    renderer = new TextMarkdownContentRenderer(createTemplateCache());
+  }
+
   @Test
   void shouldRenderMarkdownAndReturnText() throws IOException {
     ContentRenderer.Context context = prepareEngineAndCreateContext("/tpl.mustache", Locale.ENGLISH, "# Awesome");